@@ -20,10 +20,7 @@ import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.MessagingException;
 
-import org.apache.commons.io.IOUtils;
-
 import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,6 +29,8 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A Body that is backed by a temp file. The Body exposes a getOutputStream method that allows
@@ -40,6 +39,13 @@ import java.io.OutputStream;
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
  */
 public class BinaryTempFileBody implements Body {
+    /**
+     * Number of raw bytes encoded per block in {@link #writeTo(OutputStream)}. Must be a
+     * multiple of 57, the number of bytes encoded into one 76 character base64 line, so that
+     * encoding block by block produces exactly the same lines as encoding the whole file.
+     */
+    private static final int ENCODE_BLOCK_SIZE = 57 * 1024;
+
     private File mFile;
 
     /**
@@ -69,11 +75,26 @@ public class BinaryTempFileBody implements Body {
 
     @Override
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        InputStream in = getInputStream();
-        Base64OutputStream base64Out = new Base64OutputStream(
-            out, Base64.CRLF | Base64.NO_CLOSE);
-        IOUtils.copy(in, base64Out);
-        base64Out.close();
+        final FileInputStream in = new FileInputStream(mFile);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(ENCODE_BLOCK_SIZE);
+            while (true) {
+                buffer.clear();
+                // Fill the whole block; only the final one may be short
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                }
+                if (buffer.position() == 0) {
+                    break;
+                }
+                out.write(Base64.encode(buffer.array(), 0, buffer.position(), Base64.CRLF));
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
         mFile.delete();
     }
 
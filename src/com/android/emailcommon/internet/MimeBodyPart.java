@@ -20,10 +20,8 @@ import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.BodyPart;
 import com.android.emailcommon.mail.MessagingException;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.regex.Pattern;
 
 /**
@@ -197,12 +195,14 @@ public class MimeBodyPart extends BodyPart {
      */
     @Override
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
-        mHeader.writeTo(out);
-        writer.write("\r\n");
-        writer.flush();
+        final MimeOutputStream mimeOut = MimeOutputStream.wrap(out);
+        mHeader.writeTo(mimeOut);
+        mimeOut.writeCrlf();
         if (mBody != null) {
-            mBody.writeTo(out);
+            mBody.writeTo(mimeOut);
+        }
+        if (mimeOut != out) {
+            mimeOut.flush();
         }
     }
 }
@@ -18,10 +18,8 @@ package com.android.emailcommon.internet;
 
 import com.android.emailcommon.mail.MessagingException;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 
 public class MimeHeader {
@@ -110,20 +108,25 @@ public class MimeHeader {
         StringBuilder builder = new StringBuilder();
         for (Field field : mFields) {
             if (!arrayContains(WRITE_OMIT_FIELDS, field.name)) {
-                builder.append(field.name + ": " + field.value + "\r\n");
+                builder.append(field.name).append(": ").append(field.value).append("\r\n");
             }
         }
         return builder.toString();
     }
     
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
+        final MimeOutputStream mimeOut = MimeOutputStream.wrap(out);
         for (Field field : mFields) {
             if (!arrayContains(WRITE_OMIT_FIELDS, field.name)) {
-                writer.write(field.name + ": " + field.value + "\r\n");
+                mimeOut.writeString(field.name);
+                mimeOut.writeString(": ");
+                mimeOut.writeString(field.value);
+                mimeOut.writeCrlf();
             }
         }
-        writer.flush();
+        if (mimeOut != out) {
+            mimeOut.flush();
+        }
     }
 
     private static class Field {
@@ -34,11 +34,9 @@ import org.apache.james.mime4j.field.Field;
 
 import android.text.TextUtils;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -518,16 +516,18 @@ public class MimeMessage extends Message {
      */
     @Override
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
+        final MimeOutputStream mimeOut = MimeOutputStream.wrap(out);
         // Force creation of local message-id
         getMessageId();
-        getMimeHeaders().writeTo(out);
+        getMimeHeaders().writeTo(mimeOut);
         // mExtendedHeader will not be write out to external output stream,
         // because it is intended to internal use.
-        writer.write("\r\n");
-        writer.flush();
+        mimeOut.writeCrlf();
         if (mBody != null) {
-            mBody.writeTo(out);
+            mBody.writeTo(mimeOut);
+        }
+        if (mimeOut != out) {
+            mimeOut.flush();
         }
     }
 
@@ -20,11 +20,9 @@ import com.android.emailcommon.mail.BodyPart;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Multipart;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 
 public class MimeMultipart extends Multipart {
     protected String mPreamble;
@@ -84,22 +82,29 @@ public class MimeMultipart extends Multipart {
 
     @Override
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
+        final MimeOutputStream mimeOut = MimeOutputStream.wrap(out);
 
         if (mPreamble != null) {
-            writer.write(mPreamble + "\r\n");
+            mimeOut.writeString(mPreamble);
+            mimeOut.writeCrlf();
         }
 
         for (int i = 0, count = mParts.size(); i < count; i++) {
             BodyPart bodyPart = mParts.get(i);
-            writer.write("--" + mBoundary + "\r\n");
-            writer.flush();
-            bodyPart.writeTo(out);
-            writer.write("\r\n");
+            mimeOut.writeString("--");
+            mimeOut.writeString(mBoundary);
+            mimeOut.writeCrlf();
+            bodyPart.writeTo(mimeOut);
+            mimeOut.writeCrlf();
         }
 
-        writer.write("--" + mBoundary + "--\r\n");
-        writer.flush();
+        mimeOut.writeString("--");
+        mimeOut.writeString(mBoundary);
+        mimeOut.writeString("--");
+        mimeOut.writeCrlf();
+        if (mimeOut != out) {
+            mimeOut.flush();
+        }
     }
 
     @Override
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream shared by all parts of a message while it is being written out.
+ * The outermost writeTo() wraps the caller's stream once with {@link #wrap(OutputStream)};
+ * nested parts get the same instance back, so the whole message goes through a single buffer
+ * instead of a new BufferedWriter per header block.
+ *
+ * Strings are encoded straight into the buffer: ASCII (the normal case for MIME headers) one
+ * byte per char, anything else as UTF-8, which is what the platform default writer produced.
+ */
+class MimeOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mCount;
+
+    private MimeOutputStream(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Returns {@code out} itself if it is already a MimeOutputStream, otherwise a new one
+     * writing to it. Callers that get a new stream back must {@link #flush()} it when done.
+     */
+    static MimeOutputStream wrap(OutputStream out) {
+        if (out instanceof MimeOutputStream) {
+            return (MimeOutputStream) out;
+        }
+        return new MimeOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= BUFFER_SIZE) {
+            // Large blocks (e.g. encoded attachment data) bypass the buffer
+            flushBuffer();
+            mOut.write(b, off, len);
+            return;
+        }
+        if (len > BUFFER_SIZE - mCount) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Writes the string without creating any intermediate String or byte array. A null string is
+     * written as "null", as the string concatenation this replaced did for null header values.
+     */
+    public void writeString(String s) throws IOException {
+        if (s == null) {
+            s = "null";
+        }
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (mCount == BUFFER_SIZE) {
+                    flushBuffer();
+                }
+                mBuffer[mCount++] = (byte) c;
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (cp >> 18));
+                write(0x80 | ((cp >> 12) & 0x3f));
+                write(0x80 | ((cp >> 6) & 0x3f));
+                write(0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate; same replacement the charset encoder would use
+                write('?');
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    public void writeCrlf() throws IOException {
+        if (mCount > BUFFER_SIZE - 2) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = '\r';
+        mBuffer[mCount++] = '\n';
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    /**
+     * Flushes, but does not close the underlying stream; it belongs to the caller of writeTo().
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
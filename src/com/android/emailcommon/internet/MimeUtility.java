@@ -35,10 +35,11 @@ import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,6 +47,8 @@ import java.util.regex.Pattern;
 public class MimeUtility {
     private static final String LOG_TAG = "Email";
 
+    private static final int TEXT_DECODE_BUFFER_SIZE = 4096;
+
     public static final String MIME_TYPE_RFC822 = "message/rfc822";
     private final static Pattern PATTERN_CR_OR_LF = Pattern.compile("\r|\n");
 
@@ -223,22 +226,31 @@ public class MimeUtility {
      * or an error during conversion.
      */
     public static String getTextFromPart(Part part, boolean closeInput) {
+        final StringBuilder sb = new StringBuilder();
+        if (appendTextFromPart(part, closeInput, sb, Integer.MAX_VALUE)) {
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the Part's body through its charset straight into the given builder, without
+     * building an intermediate byte array or String for the whole part.
+     * @param part The part containing a body
+     * @param sb The builder to append the converted text to
+     * @param limit Stop reading once the builder holds at least this many chars. Callers that
+     * need to know whether anything was cut off should pass one more than the length they keep.
+     * @return true if the part's text was appended; false if there was no text or an error
+     * during conversion, in which case the builder is left as it was.
+     */
+    public static boolean appendTextFromPart(Part part, boolean closeInput, StringBuilder sb,
+            int limit) {
+        final int start = sb.length();
         try {
             if (part != null && part.getBody() != null) {
                 InputStream in = part.getBody().getInputStream();
                 String mimeType = part.getMimeType();
                 if (mimeType != null && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
-                    /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
-                     */
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    IOUtils.copy(in, out);
-                    if (closeInput) {
-                        in.close();
-                    }
-                    in = null;      // we want all of our memory back, and close might not release
-
                     /*
                      * We've got a text part, so let's see if it needs to be processed further.
                      */
@@ -256,11 +268,26 @@ public class MimeUtility {
                         charset = "ASCII";
                     }
                     /*
-                     * Convert and return as new String
+                     * Decode the part chunk by chunk. Because the stream is wrapped we'll
+                     * remove any transfer encoding at this point.
                      */
-                    String result = out.toString(charset);
-                    out.close();
-                    return result;
+                    try {
+                        final Reader reader = new InputStreamReader(in, charset);
+                        final char[] buffer = new char[TEXT_DECODE_BUFFER_SIZE];
+                        while (sb.length() < limit) {
+                            final int count = reader.read(buffer, 0,
+                                    Math.min(buffer.length, limit - sb.length()));
+                            if (count == -1) {
+                                break;
+                            }
+                            sb.append(buffer, 0, count);
+                        }
+                    } finally {
+                        if (closeInput) {
+                            in.close();
+                        }
+                    }
+                    return true;
                 }
             }
 
@@ -279,7 +306,8 @@ public class MimeUtility {
              */
             Log.e(LOG_TAG, "Unable to getTextFromPart " + e.toString());
         }
-        return null;
+        sb.setLength(start);
+        return false;
     }
 
     /**
@@ -16,8 +16,12 @@
 
 package com.android.emailcommon.mail;
 
+import com.android.mail.utils.LruCache;
+
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A utility class for creating and modifying Strings that are tagged and packed together.
@@ -37,9 +41,16 @@ public class PackedString {
     private static final char DELIMITER_ELEMENT = '\1';
     private static final char DELIMITER_TAG = '\2';
 
-    private String mString;
-    private HashMap<String, String> mExploded;
-    private static final HashMap<String, String> EMPTY_MAP = new HashMap<String, String>();
+    /**
+     * Number of recently parsed packed strings kept so that new instances created from the same
+     * raw string (e.g. the same account or folder row read again) share one parsed form.
+     */
+    private static final int PARSED_CACHE_SIZE = 32;
+    private static final LruCache<String, Parsed> sParsedCache =
+            new LruCache<String, Parsed>(PARSED_CACHE_SIZE);
+
+    private final String mString;
+    private Parsed mParsed;
 
     /**
      * Create a packed string using an already-packed string (e.g. from database)
@@ -47,7 +58,7 @@ public class PackedString {
      */
     public PackedString(String string) {
         mString = string;
-        mExploded = null;
+        mParsed = null;
     }
 
     /**
@@ -56,10 +67,7 @@ public class PackedString {
      * @return returns value, or null if no string is found
      */
     public String get(String tag) {
-        if (mExploded == null) {
-            mExploded = explode(mString);
-        }
-        return mExploded.get(tag);
+        return getParsed().get(tag);
     }
 
     /**
@@ -68,20 +76,65 @@ public class PackedString {
      * @return a map of the values in the packed string
      */
     public Map<String, String> unpack() {
-        if (mExploded == null) {
-            mExploded = explode(mString);
+        return getParsed().toMap();
+    }
+
+    private Parsed getParsed() {
+        if (mParsed == null) {
+            mParsed = Parsed.of(mString);
         }
-        return new HashMap<String,String>(mExploded);
+        return mParsed;
     }
 
     /**
-     * Read out all values into a map.
+     * Immutable parsed form of a packed string: the tags in sorted order and their values in
+     * parallel arrays, so a lookup is a binary search with no hashing or boxing.
      */
-    private static HashMap<String, String> explode(String packed) {
-        if (packed == null || packed.length() == 0) {
-            return EMPTY_MAP;
+    private static final class Parsed {
+        static final Parsed EMPTY = new Parsed(new String[0], new String[0]);
+
+        private final String[] mTags;
+        private final String[] mValues;
+
+        private Parsed(String[] tags, String[] values) {
+            mTags = tags;
+            mValues = values;
+        }
+
+        static Parsed of(String packed) {
+            if (packed == null || packed.length() == 0) {
+                return EMPTY;
+            }
+            Parsed parsed = sParsedCache.getElement(packed);
+            if (parsed == null) {
+                final TreeMap<String, String> map = explode(packed);
+                final int size = map.size();
+                parsed = new Parsed(map.keySet().toArray(new String[size]),
+                        map.values().toArray(new String[size]));
+                sParsedCache.putElement(packed, parsed);
+            }
+            return parsed;
+        }
+
+        String get(String tag) {
+            final int index = Arrays.binarySearch(mTags, tag);
+            return index >= 0 ? mValues[index] : null;
+        }
+
+        HashMap<String, String> toMap() {
+            final HashMap<String, String> map = new HashMap<String, String>(mTags.length * 2);
+            for (int i = 0; i < mTags.length; i++) {
+                map.put(mTags[i], mValues[i]);
+            }
+            return map;
         }
-        HashMap<String, String> map = new HashMap<String, String>();
+    }
+
+    /**
+     * Read out all values into a map, ordered by tag.
+     */
+    private static TreeMap<String, String> explode(String packed) {
+        TreeMap<String, String> map = new TreeMap<String, String>();
 
         int length = packed.length();
         int elementStartIndex = 0;
@@ -131,7 +184,7 @@ public class PackedString {
          * Create a builder using the values of an existing PackedString (for editing).
          */
         public Builder(String packed) {
-            mMap = explode(packed);
+            mMap = Parsed.of(packed).toMap();
         }
 
         /**
@@ -161,7 +214,12 @@ public class PackedString {
          */
         @Override
         public String toString() {
-            StringBuilder sb = new StringBuilder();
+            // Size the builder up front so it never has to grow
+            int length = 0;
+            for (Map.Entry<String,String> entry : mMap.entrySet()) {
+                length += entry.getValue().length() + entry.getKey().length() + 2;
+            }
+            StringBuilder sb = new StringBuilder(length);
             for (Map.Entry<String,String> entry : mMap.entrySet()) {
                 if (sb.length() > 0) {
                     sb.append(DELIMITER_ELEMENT);
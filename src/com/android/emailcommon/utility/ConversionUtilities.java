@@ -18,32 +18,99 @@ package com.android.emailcommon.utility;
 
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 
 import android.text.TextUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class ConversionUtilities {
+    /** Appended to the plain text body when it was cut off by the size limit. */
+    private static final String TEXT_TRUNCATED_MARKER = "\n[...]";
+    /** Appended to the HTML body when it was cut off by the size limit. */
+    private static final String HTML_TRUNCATED_MARKER = "<br>[...]";
+    /** Longer than any named or numeric character reference. */
+    private static final int MAX_ENTITY_LENGTH = 40;
+
     /**
-     * Helper function to append text to a StringBuffer, creating it if necessary.
-     * Optimization:  The majority of the time we are *not* appending - we should have a path
-     * that deals with single strings.
+     * Helper function to decode a text part onto the end of a StringBuilder, separated by a
+     * newline from any earlier part.
+     * @param maxLength maximum length of the text to keep, or 0 for no limit
+     * @param isHtml whether the text is HTML, which is not cut inside a tag or an entity
+     * @return true if the text had to be cut off at or before maxLength
      */
-    private static StringBuffer appendTextPart(StringBuffer sb, String newText) {
-        if (newText == null) {
-            return sb;
+    private static boolean appendTextPart(StringBuilder sb, Part part, boolean closeInput,
+            int maxLength, boolean isHtml) {
+        final int start = sb.length();
+        if (start > 0) {
+            sb.append('\n');
+        }
+        // Read one char past the limit so we can tell whether anything was cut off
+        final int limit = maxLength > 0 ? maxLength + 1 : Integer.MAX_VALUE;
+        if (!MimeUtility.appendTextFromPart(part, closeInput, sb, limit)) {
+            sb.setLength(start);
+            return false;
+        }
+        if (sb.length() > maxLength && maxLength > 0) {
+            sb.setLength(findCut(sb, start, maxLength, isHtml));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns where to cut off text that is too long: at <code>maxLength</code>, or before it so
+     * as not to split a surrogate pair or, in HTML, a tag or a character reference. The part of
+     * the text before <code>start</code> was already complete and is never cut.
+     */
+    private static int findCut(CharSequence text, int start, int maxLength, boolean isHtml) {
+        int cut = maxLength;
+        if (isHtml) {
+            // Inside a tag if its '<' is not closed before the cut
+            for (int i = cut - 1; i >= start; i--) {
+                final char c = text.charAt(i);
+                if (c == '>') {
+                    break;
+                } else if (c == '<') {
+                    cut = i;
+                    break;
+                }
+            }
+            // Inside a character reference if only name chars follow its '&'
+            for (int i = cut - 1; i >= start && i >= cut - MAX_ENTITY_LENGTH; i--) {
+                final char c = text.charAt(i);
+                if (c == '&') {
+                    cut = i;
+                    break;
+                } else if (!Character.isLetterOrDigit(c) && c != '#') {
+                    break;
+                }
+            }
+        }
+        if (cut > start && Character.isHighSurrogate(text.charAt(cut - 1))) {
+            cut--;
         }
-        else if (sb == null) {
-            sb = new StringBuffer(newText);
-        } else {
-            if (sb.length() > 0) {
-                sb.append('\n');
+        return cut;
+    }
+
+    /**
+     * Closes the input of a part that was skipped because its body was already cut off, as
+     * decoding it would have. For temporary file bodies this also deletes the file.
+     */
+    private static void closePartInput(Part part) {
+        try {
+            final Body body = part.getBody();
+            if (body != null) {
+                body.getInputStream().close();
             }
-            sb.append(newText);
+        } catch (IOException e) {
+            // ignore
+        } catch (MessagingException e) {
+            // ignore
         }
-        return sb;
     }
 
     /**
@@ -56,6 +123,7 @@ public class ConversionUtilities {
         public String snippet;
         public boolean isQuotedReply;
         public boolean isQuotedForward;
+        public boolean isTruncated;
     }
 
     /**
@@ -71,22 +139,51 @@ public class ConversionUtilities {
      */
     public static BodyFieldData parseBodyFields(ArrayList<Part> viewables, boolean closeInputs)
     throws MessagingException {
+        return parseBodyFields(viewables, closeInputs, 0);
+    }
+
+    /**
+     * Parse body text (plain and/or HTML) from MimeMessage to {@link BodyFieldData}.
+     * Each part is decoded straight into one buffer for the text body and one for the HTML body.
+     * @param maxBodyLength maximum number of chars kept for each of the text and HTML bodies,
+     * or 0 for no limit. Bodies over the limit are cut off and end with a truncation marker.
+     */
+    public static BodyFieldData parseBodyFields(ArrayList<Part> viewables, boolean closeInputs,
+            int maxBodyLength) throws MessagingException {
         final BodyFieldData data = new BodyFieldData();
-        StringBuffer sbHtml = null;
-        StringBuffer sbText = null;
+        final StringBuilder sbHtml = new StringBuilder();
+        final StringBuilder sbText = new StringBuilder();
+        boolean htmlTruncated = false;
+        boolean textTruncated = false;
 
         for (Part viewable : viewables) {
-            String text = MimeUtility.getTextFromPart(viewable, closeInputs);
             // Deploy text as marked by the various tags
             boolean isHtml = "text/html".equalsIgnoreCase(viewable.getMimeType());
 
             // Most of the time, just process regular body parts
             if (isHtml) {
-                sbHtml = appendTextPart(sbHtml, text);
+                if (!htmlTruncated) {
+                    htmlTruncated = appendTextPart(sbHtml, viewable, closeInputs, maxBodyLength,
+                            true /* isHtml */);
+                } else if (closeInputs) {
+                    closePartInput(viewable);
+                }
             } else {
-                sbText = appendTextPart(sbText, text);
+                if (!textTruncated) {
+                    textTruncated = appendTextPart(sbText, viewable, closeInputs, maxBodyLength,
+                            false /* isHtml */);
+                } else if (closeInputs) {
+                    closePartInput(viewable);
+                }
             }
         }
+        if (textTruncated) {
+            sbText.append(TEXT_TRUNCATED_MARKER);
+        }
+        if (htmlTruncated) {
+            sbHtml.append(HTML_TRUNCATED_MARKER);
+        }
+        data.isTruncated = textTruncated || htmlTruncated;
 
         // write the combined data to the body part
         if (!TextUtils.isEmpty(sbText)) {
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.android.mail.bitmap.ContactPhotoCache;
+import com.android.mail.utils.CacheRegistry;
+import com.android.mail.utils.ContactsObserver;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers, for the whole process, what the contacts provider said about email addresses: the
+ * contact of those that belong to a contact, and that the others don't. Most senders in a large
+ * inbox are not contacts, so without the negative entries the same failing lookups would be
+ * repeated by every conversation view, compose screen and conversation list.
+ * <p>
+ * Photos are not kept in memory but in {@link ContactPhotoCache}; an address whose photo is no
+ * longer there is looked up again. Entries expire after {@link #POSITIVE_TTL_MS} or
+ * {@link #NEGATIVE_TTL_MS}, and are all dropped whenever the contacts provider reports a change,
+ * through {@link ContactsObserver}. The addresses that are not cached are looked
+ * up in as many of the truncated batches of
+ * {@link SenderInfoLoader#loadContactPhotos(ContentResolver, Set, boolean)} as it takes to answer
+ * all of them.
+ * <p>
+ * Queries the contacts provider, so must not be used from the main thread.
+ */
+public final class ContactInfoRepository
+        implements CacheRegistry.Cache, ContactsObserver.Listener {
+    private static final int MAX_ENTRIES = 4096;
+    private static final long POSITIVE_TTL_MS = 30 * 60 * 1000;
+    /** Shorter, since a sender may be added as a contact from the conversation itself. */
+    private static final long NEGATIVE_TTL_MS = 10 * 60 * 1000;
+
+    private static ContactInfoRepository sInstance;
+
+    private final LruCache<String, Entry> mCache = new LruCache<String, Entry>(MAX_ENTRIES);
+    private final ContactPhotoCache mPhotoCache;
+    /** Bumped on invalidation, so that lookups started before it don't cache stale results. */
+    private int mGeneration;
+
+    private int mRequests;
+    private int mQueries;
+    private int mSavedRequests;
+    private int mPositiveHits;
+    private int mNegativeHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    public static synchronized ContactInfoRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactInfoRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactInfoRepository(Context context) {
+        mPhotoCache = ContactPhotoCache.getInstance(context);
+        CacheRegistry.register(context, this);
+        ContactsObserver.register(context, this);
+    }
+
+    /**
+     * Returns what is known about these addresses, querying the contacts provider for those that
+     * are not cached. The result is interpreted as that of
+     * {@link SenderInfoLoader#loadContactPhotos(ContentResolver, Set, boolean)}, except that
+     * addresses are only skipped if the provider stops answering them.
+     *
+     * @return a mapping of email to {@link ContactInfo}, or null if a query failed
+     */
+    public ImmutableMap<String, ContactInfo> getContactInfos(ContentResolver resolver,
+            Set<String> emails, boolean decodeBitmaps) {
+        return getContactInfos(resolver, emails, decodeBitmaps, null);
+    }
+
+    /**
+     * @param queries counts the queries made for this lookup, if not null
+     */
+    ImmutableMap<String, ContactInfo> getContactInfos(ContentResolver resolver,
+            Set<String> emails, boolean decodeBitmaps, AtomicInteger queries) {
+        final long now = SystemClock.elapsedRealtime();
+        final Map<String, Entry> cached = Maps.newHashMap();
+        final Set<String> misses = Sets.newHashSet();
+        final int generation;
+        synchronized (this) {
+            mRequests++;
+            generation = mGeneration;
+            for (String email : emails) {
+                final Entry entry = mCache.get(email);
+                if (entry != null && now - entry.mCreated < entry.getTtl()) {
+                    cached.put(email, entry);
+                } else {
+                    misses.add(email);
+                }
+            }
+        }
+
+        final Map<String, ContactInfo> results = Maps.newHashMap();
+        int positiveHits = 0;
+        int negativeHits = 0;
+        for (Map.Entry<String, Entry> cachedEntry : cached.entrySet()) {
+            final String email = cachedEntry.getKey();
+            final Entry entry = cachedEntry.getValue();
+            byte[] photo = null;
+            if (entry.mHasPhoto) {
+                photo = mPhotoCache.get(email);
+                if (photo == null) {
+                    // Evicted or expired on disk
+                    misses.add(email);
+                    continue;
+                }
+            }
+            if (entry.mContactUri != null) {
+                positiveHits++;
+            } else {
+                negativeHits++;
+            }
+            results.put(email, toContactInfo(entry.mContactUri, photo, decodeBitmaps));
+        }
+        synchronized (this) {
+            mPositiveHits += positiveHits;
+            mNegativeHits += negativeHits;
+            mMisses += misses.size();
+            if (misses.isEmpty()) {
+                mSavedRequests++;
+            }
+        }
+
+        while (!misses.isEmpty()) {
+            // Answers at most MAX_QUERY_PARAMS of the addresses, and all of those it does
+            final ImmutableMap<String, ContactInfo> found =
+                    SenderInfoLoader.loadContactPhotos(resolver, misses, false /* decodeBitmaps */);
+            synchronized (this) {
+                mQueries++;
+            }
+            if (queries != null) {
+                queries.incrementAndGet();
+            }
+            if (found == null) {
+                return null;
+            }
+            final int missCount = misses.size();
+            final boolean current;
+            synchronized (this) {
+                current = generation == mGeneration;
+            }
+            final Map<String, Entry> entries = Maps.newHashMap();
+            for (Map.Entry<String, ContactInfo> answer : found.entrySet()) {
+                final String email = answer.getKey();
+                final ContactInfo info = answer.getValue();
+                misses.remove(email);
+                results.put(email, toContactInfo(info.contactUri, info.photoBytes, decodeBitmaps));
+                if (!current) {
+                    continue;
+                }
+                // An entry with a photo is only kept if the photo could be stored; otherwise
+                // every lookup would find the photo missing, and the address is queried again
+                if (info.photoBytes == null || mPhotoCache.put(email, info.photoBytes)) {
+                    entries.put(email, new Entry(info.contactUri, info.photoBytes != null,
+                            SystemClock.elapsedRealtime()));
+                }
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        mCache.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (misses.size() == missCount) {
+                // No progress; leave the rest to be tried again
+                break;
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    @Override
+    public void onContactsChanged() {
+        invalidate();
+    }
+
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mInvalidations++;
+        }
+        mCache.evictAll();
+    }
+
+    @Override
+    public void releaseMemory() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Writes how many lookups were answered from the cache, and how many queries that saved.
+     */
+    @Override
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("ContactInfoRepository:");
+        writer.print(prefix);
+        writer.print("  requests=");
+        writer.print(mRequests);
+        writer.print(" queries=");
+        writer.print(mQueries);
+        writer.print(" savedRequests=");
+        writer.print(mSavedRequests);
+        writer.print(" invalidations=");
+        writer.println(mInvalidations);
+        writer.print(prefix);
+        writer.print("  positiveHits=");
+        writer.print(mPositiveHits);
+        writer.print(" negativeHits=");
+        writer.print(mNegativeHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" entries=");
+        writer.println(mCache.size());
+    }
+
+    private static ContactInfo toContactInfo(Uri contactUri, byte[] photo,
+            boolean decodeBitmaps) {
+        if (photo == null) {
+            return new ContactInfo(contactUri);
+        }
+        if (decodeBitmaps) {
+            return new ContactInfo(contactUri,
+                    BitmapFactory.decodeByteArray(photo, 0, photo.length));
+        }
+        return new ContactInfo(contactUri, photo);
+    }
+
+    private static final class Entry {
+        /** Null if the address does not belong to a contact. */
+        private final Uri mContactUri;
+        /** Whether a photo was found for the address, and so put in {@link ContactPhotoCache}. */
+        private final boolean mHasPhoto;
+        private final long mCreated;
+
+        Entry(Uri contactUri, boolean hasPhoto, long created) {
+            mContactUri = contactUri;
+            mHasPhoto = hasPhoto;
+            mCreated = created;
+        }
+
+        long getTtl() {
+            return mContactUri != null ? POSITIVE_TTL_MS : NEGATIVE_TTL_MS;
+        }
+    }
+}
@@ -31,6 +31,8 @@ import com.android.mail.utils.NotificationUtils;
 import com.android.mail.utils.StorageLowState;
 import com.android.mail.utils.Utils;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A service to handle various intents asynchronously.
  */
@@ -56,6 +58,9 @@ public class MailIntentService extends IntentService {
 
     public static final String CONVERSATION_EXTRA = "conversation";
 
+    /** Intents started but not handled yet. */
+    private final AtomicInteger mUnhandledIntents = new AtomicInteger();
+
     public MailIntentService() {
         super("MailIntentService");
     }
@@ -64,8 +69,26 @@ public class MailIntentService extends IntentService {
         super(name);
     }
 
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        mUnhandledIntents.incrementAndGet();
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(final Intent intent) {
+        try {
+            handleIntent(intent);
+        } finally {
+            if (mUnhandledIntents.decrementAndGet() == 0) {
+                // Notification updates are coalesced on another thread; once no intents are
+                // left, keep the service running until they are posted
+                NotificationUtils.awaitScheduledNotifications();
+            }
+        }
+    }
+
+    private void handleIntent(final Intent intent) {
         // UnifiedEmail does not handle all Intents
 
         LogUtils.v(LOG_TAG, "Handling intent %s", intent);
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A {@link Loader} to look up presence, contact URI, and photo data for a set of email
@@ -70,10 +71,30 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
     private static final int MAX_QUERY_PARAMS = 75;
 
     private final Set<String> mSenders;
+    private final boolean mDecodeBitmaps;
+    /** Contact queries made by the loads so far. */
+    private final AtomicInteger mQueries = new AtomicInteger();
 
     public SenderInfoLoader(Context context, Set<String> senders) {
+        this(context, senders, true /* decodeBitmaps */);
+    }
+
+    /**
+     * @param decodeBitmaps If {@code false}, only load the photo bytes, for the caller to decode
+     *                      as it sees fit.
+     */
+    public SenderInfoLoader(Context context, Set<String> senders, boolean decodeBitmaps) {
         super(context);
         mSenders = senders;
+        mDecodeBitmaps = decodeBitmaps;
+    }
+
+    /**
+     * Returns how many contact queries the loads so far needed, not counting the senders
+     * answered from the {@link ContactInfoRepository}.
+     */
+    public int getQueryCount() {
+        return mQueries.get();
     }
 
     @Override
@@ -92,12 +113,13 @@ public class SenderInfoLoader extends AsyncTaskLoader<ImmutableMap<String, Conta
             return null;
         }
 
-        return loadContactPhotos(
-                getContext().getContentResolver(), mSenders, true /* decodeBitmaps */);
+        return ContactInfoRepository.getInstance(getContext()).getContactInfos(
+                getContext().getContentResolver(), mSenders, mDecodeBitmaps, mQueries);
     }
 
     /**
-     * Loads contact photos from the ContentProvider.
+     * Loads contact photos from the ContentProvider. Callers that have a {@link Context} should
+     * go through {@link ContactInfoRepository} instead, which remembers the results.
      * @param resolver {@link ContentResolver} to use in queries to the ContentProvider.
      * @param emails The email addresses of the sender images to return.
      * @param decodeBitmaps If {@code true}, decode the bitmaps and put them into
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.bitmap;
+
+import android.content.Context;
+
+import com.android.mail.utils.CacheRegistry;
+import com.android.mail.utils.ContactsObserver;
+import com.android.mail.utils.DiskFileCache;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.io.Closeables;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Keeps the photo thumbnails found for sender addresses on disk, so that a list of conversations
+ * shows the avatars it showed before without querying the contacts provider for them again,
+ * even after the process was restarted.
+ * <p>
+ * Entries are the thumbnail bytes as stored by the contacts provider (at most 96px square, i.e.
+ * already scaled for avatars), keyed by a hash of the address. They expire after
+ * {@link #TTL_MS} (counted from when they were written, so that reads don't keep them alive),
+ * are all deleted when the contacts provider reports a change, and the oldest ones are evicted
+ * above {@link #MAX_DISK_BYTES}. Addresses without a photo are not recorded.
+ * <p>
+ * Does disk I/O, so must not be used from the main thread.
+ */
+public final class ContactPhotoCache implements CacheRegistry.Cache, ContactsObserver.Listener {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final String DIR_NAME = "contact_photos";
+    private static final long MAX_DISK_BYTES = 2 * 1024 * 1024;
+    /** Bounds how long a photo changed while the process was not running is shown. */
+    private static final long TTL_MS = 24 * 60 * 60 * 1000;
+
+    private static ContactPhotoCache sInstance;
+
+    private final DiskFileCache mDiskCache;
+
+    private int mHits;
+    private int mMisses;
+    private int mWrites;
+    private int mInvalidations;
+
+    public static synchronized ContactPhotoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactPhotoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactPhotoCache(Context context) {
+        mDiskCache = new DiskFileCache(new File(context.getCacheDir(), DIR_NAME), MAX_DISK_BYTES);
+        CacheRegistry.register(context, this);
+        ContactsObserver.register(context, this);
+    }
+
+    /**
+     * Returns the photo bytes cached for this address, or null if there are none or they have
+     * expired.
+     */
+    public byte[] get(String email) {
+        final String name = DiskFileCache.hashKey(email);
+        final File file = name != null ? mDiskCache.get(name) : null;
+        if (file == null) {
+            countLookup(false);
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TTL_MS) {
+            mDiskCache.remove(file);
+            countLookup(false);
+            return null;
+        }
+        final byte[] photo = readEntry(file);
+        countLookup(photo != null);
+        return photo;
+    }
+
+    /**
+     * Caches the photo bytes found for this address.
+     *
+     * @return true if the photo was stored, false if it is too large or could not be written
+     */
+    public boolean put(String email, final byte[] photo) {
+        final String name = DiskFileCache.hashKey(email);
+        if (name == null || photo == null || photo.length > MAX_DISK_BYTES / 16) {
+            return false;
+        }
+        final boolean written = mDiskCache.put(name, new DiskFileCache.EntryWriter() {
+            @Override
+            public boolean writeTo(OutputStream out) throws IOException {
+                out.write(photo);
+                return true;
+            }
+        });
+        if (written) {
+            synchronized (this) {
+                mWrites++;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void onContactsChanged() {
+        invalidate();
+    }
+
+    public void invalidate() {
+        mDiskCache.clear();
+        synchronized (this) {
+            mInvalidations++;
+        }
+    }
+
+    private synchronized void countLookup(boolean hit) {
+        if (hit) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+    }
+
+    private byte[] readEntry(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            final byte[] photo = new byte[(int) file.length()];
+            in.readFully(photo);
+            return photo;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read contact photo %s", file);
+            mDiskCache.remove(file);
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void releaseMemory() {
+        // Entries are only kept on disk
+    }
+
+    /**
+     * Writes the hit ratio of the cache so far.
+     */
+    @Override
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("ContactPhotoCache:");
+        writer.print(prefix);
+        writer.print("  hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" writes=");
+        writer.print(mWrites);
+        writer.print(" invalidations=");
+        writer.print(mInvalidations);
+        writer.print(" diskBytes=");
+        writer.println(mDiskCache.getBytes());
+    }
+}
@@ -18,9 +18,12 @@
 package com.android.mail.bitmap;
 
 import android.content.ContentResolver;
+import android.content.Context;
 import android.os.AsyncTask;
 import android.os.AsyncTask.Status;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.android.bitmap.BitmapCache;
 import com.android.bitmap.DecodeTask;
@@ -28,14 +31,19 @@ import com.android.bitmap.RequestKey;
 import com.android.bitmap.ReusableBitmap;
 import com.android.ex.photo.util.Trace;
 import com.android.mail.ContactInfo;
+import com.android.mail.ContactInfoRepository;
 import com.android.mail.SenderInfoLoader;
 import com.android.mail.bitmap.ContactRequest.ContactRequestHolder;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -44,7 +52,8 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Batches up ContactRequests so we can efficiently query the contacts provider. Kicks off a
- * ContactResolverTask to query for contact images in the background.
+ * ContactResolverTask to query for contact images in the background, and decodes the images found
+ * on a separate pool, once per address however many drawables asked for it.
  */
 public class ContactResolver implements Runnable {
 
@@ -56,8 +65,12 @@ public class ContactResolver implements Runnable {
 
     protected final ContentResolver mResolver;
     private final BitmapCache mCache;
+    private final ContactPhotoCache mPhotoCache;
+    private final ContactInfoRepository mRepository;
     /** Insertion ordered set allows us to work from the top down. */
     private final LinkedHashSet<ContactRequestHolder> mBatch;
+    /** Requests handed to a task whose results have not been delivered yet. */
+    private final Set<ContactRequestHolder> mInFlight = new HashSet<ContactRequestHolder>();
 
     private final Handler mHandler = new Handler();
     private ContactResolverTask mTask;
@@ -67,6 +80,13 @@ public class ContactResolver implements Runnable {
     private static final Executor SMALL_POOL_EXECUTOR = new ThreadPoolExecutor(1, 1,
             1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private static final Executor EXECUTOR = SMALL_POOL_EXECUTOR;
+    /**
+     * Decodes run apart from the queries, so that the next batch can be looked up while the photos
+     * of this one are decoded, and one slow decode does not hold up the rest.
+     */
+    private static final int DECODE_POOL_SIZE = 2;
+    private static final Executor DECODE_EXECUTOR = new ThreadPoolExecutor(DECODE_POOL_SIZE,
+            DECODE_POOL_SIZE, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 
     public interface ContactDrawableInterface {
         public void onDecodeComplete(final RequestKey key, final ReusableBitmap result);
@@ -75,8 +95,20 @@ public class ContactResolver implements Runnable {
     }
 
     public ContactResolver(final ContentResolver resolver, final BitmapCache cache) {
+        this(resolver, cache, null);
+    }
+
+    /**
+     * @param context if not null, the photos found are kept on disk in {@link ContactPhotoCache},
+     *                and lookups are shared with the rest of the process through
+     *                {@link ContactInfoRepository}
+     */
+    public ContactResolver(final ContentResolver resolver, final BitmapCache cache,
+            final Context context) {
         mResolver = resolver;
         mCache = cache;
+        mPhotoCache = context != null ? ContactPhotoCache.getInstance(context) : null;
+        mRepository = context != null ? ContactInfoRepository.getInstance(context) : null;
         mBatch = new LinkedHashSet<ContactRequestHolder>();
     }
 
@@ -92,16 +124,28 @@ public class ContactResolver implements Runnable {
             return;
         }
 
+        // Make a copy of the batch. Leave out the requests for addresses that are still being
+        // decoded; they get the same result when it is delivered.
+        final Set<String> inFlightEmails = new HashSet<String>(mInFlight.size());
+        for (ContactRequestHolder request : mInFlight) {
+            inFlightEmails.add(request.getEmail());
+        }
+        final LinkedHashSet<ContactRequestHolder> batch =
+                new LinkedHashSet<ContactRequestHolder>(mBatch.size());
+        for (ContactRequestHolder request : mBatch) {
+            if (!inFlightEmails.contains(request.getEmail())) {
+                batch.add(request);
+            }
+        }
+        if (batch.isEmpty()) {
+            LogUtils.d(TAG, "ContactResolver << batch in flight");
+            return;
+        }
+
         Trace.beginSection("ContactResolver run");
         LogUtils.d(TAG, "ContactResolver >> batch start");
 
-        // Make a copy of the batch.
-        LinkedHashSet<ContactRequestHolder> batch = new LinkedHashSet<ContactRequestHolder>(mBatch);
-
-        if (mTask != null) {
-            mTask.cancel(true);
-        }
-
+        mInFlight.addAll(batch);
         mTask = getContactResolverTask(batch);
         mTask.executeOnExecutor(EXECUTOR);
         Trace.endSection();
@@ -125,6 +169,30 @@ public class ContactResolver implements Runnable {
         mBatch.remove(new ContactRequestHolder(request, drawable));
     }
 
+    /**
+     * Called on the main thread when the requests for one address are done with.
+     *
+     * @param requests the requests for the address that were handed to the task
+     * @param delivered whether the result will be delivered to them, or they were skipped
+     * @return the requests to deliver the result to: those given that are still in the batch, and
+     *         any other requests for the address added since
+     */
+    private List<ContactRequestHolder> onRequestsDone(final List<ContactRequestHolder> requests,
+            final boolean delivered) {
+        mInFlight.removeAll(requests);
+        if (!delivered) {
+            return requests;
+        }
+        final String email = requests.get(0).getEmail();
+        final List<ContactRequestHolder> waiting = Lists.newArrayList();
+        for (ContactRequestHolder request : mBatch) {
+            if (email.equals(request.getEmail()) && !mInFlight.contains(request)) {
+                waiting.add(request);
+            }
+        }
+        return waiting;
+    }
+
     /**
      * A layout pass traverses the whole tree during a single iteration of the event loop. That
      * means that every ContactDrawable on the screen will add its ContactRequest to the batch in
@@ -151,17 +219,23 @@ public class ContactResolver implements Runnable {
      * <p/>
      * The reason we do this is because this task is responsible for decoding an entire batch of
      * ContactRequests. But, we do not want to have to wait to decode all of them before updating
-     * any views. So we must do all the work in doInBackground(),
-     * but upon finishing each individual task, we need to jump out to the UI thread and update
-     * that view.
+     * any views. So we do the lookups in doInBackground(), hand the photos found to the decode
+     * pool, and jump out to the UI thread to update the views as each address is done with.
      */
     public static class ContactResolverTask extends AsyncTask<Void, Result, Void> {
 
+        private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
         private final Set<ContactRequestHolder> mContactRequests;
         private final ContentResolver mResolver;
         private final BitmapCache mCache;
         private final ContactResolver mCallback;
 
+        private final long mStartTime = SystemClock.uptimeMillis();
+        /** Addresses whose results have not been delivered yet. Only used on the UI thread. */
+        private int mRemaining;
+        private int mDiskHits;
+
         public ContactResolverTask(final Set<ContactRequestHolder> contactRequests,
                 final ContentResolver resolver, final BitmapCache cache,
                 final ContactResolver callback) {
@@ -174,68 +248,77 @@ public class ContactResolver implements Runnable {
         @Override
         protected Void doInBackground(final Void... params) {
             Trace.beginSection("set up");
-            final Set<String> emails = new HashSet<String>(mContactRequests.size());
+            // Drawables showing the same address share one lookup and decode.
+            final Map<String, List<ContactRequestHolder>> requestsByEmail =
+                    Maps.newLinkedHashMap();
             for (ContactRequestHolder request : mContactRequests) {
                 final String email = request.getEmail();
-                emails.add(email);
+                List<ContactRequestHolder> requests = requestsByEmail.get(email);
+                if (requests == null) {
+                    requests = Lists.newArrayListWithCapacity(1);
+                    requestsByEmail.put(email, requests);
+                }
+                requests.add(request);
             }
+            mRemaining = requestsByEmail.size();
+            Trace.endSection();
+
+            Trace.beginSection("load cached photo bytes");
+            final ContactPhotoCache photoCache = mCallback.mPhotoCache;
+            final Map<String, byte[]> cachedPhotos = Maps.newHashMap();
+            final Set<String> emails = new HashSet<String>(requestsByEmail.size());
+            for (String email : requestsByEmail.keySet()) {
+                final byte[] photo = photoCache != null ? photoCache.get(email) : null;
+                if (photo != null) {
+                    cachedPhotos.put(email, photo);
+                } else {
+                    emails.add(email);
+                }
+            }
+            mDiskHits = cachedPhotos.size();
             Trace.endSection();
 
             Trace.beginSection("load contact photo bytes");
             // Query the contacts provider for the current batch of emails.
-            final ImmutableMap<String, ContactInfo> contactInfos = loadContactPhotos(emails);
+            final ImmutableMap<String, ContactInfo> contactInfos = emails.isEmpty()
+                    ? ImmutableMap.<String, ContactInfo>of() : loadContactPhotos(emails);
             Trace.endSection();
 
-            for (ContactRequestHolder request : mContactRequests) {
-                Trace.beginSection("decode");
-                final String email = request.getEmail();
-                if (contactInfos == null) {
-                    // Query failed.
-                    LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
-                    publishProgress(new Result(request, null));
-                    Trace.endSection();
-                    continue;
-                }
-
-                final ContactInfo contactInfo = contactInfos.get(email);
-                if (contactInfo == null) {
-                    // Request skipped. Try again next batch.
-                    LogUtils.d(TAG, "ContactResolver  = skipped %s", email);
-                    Trace.endSection();
-                    continue;
-                }
-
-                // Query attempted.
-                final byte[] photo = contactInfo.photoBytes;
+            for (Map.Entry<String, List<ContactRequestHolder>> entry
+                    : requestsByEmail.entrySet()) {
+                final String email = entry.getKey();
+                final List<ContactRequestHolder> requests = entry.getValue();
+                byte[] photo = cachedPhotos.get(email);
                 if (photo == null) {
-                    // No photo bytes found.
-                    LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
-                    publishProgress(new Result(request, null));
-                    Trace.endSection();
-                    continue;
+                    if (contactInfos == null) {
+                        // Query failed.
+                        LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
+                        publishProgress(new Result(requests, null, false /* skipped */));
+                        continue;
+                    }
+
+                    final ContactInfo contactInfo = contactInfos.get(email);
+                    if (contactInfo == null) {
+                        // Request skipped. Try again next batch.
+                        LogUtils.d(TAG, "ContactResolver  = skipped %s", email);
+                        publishProgress(new Result(requests, null, true /* skipped */));
+                        continue;
+                    }
+
+                    // Query attempted.
+                    photo = contactInfo.photoBytes;
+                    if (photo == null) {
+                        // No photo bytes found.
+                        LogUtils.d(TAG, "ContactResolver -- failed  %s", email);
+                        publishProgress(new Result(requests, null, false /* skipped */));
+                        continue;
+                    }
+                    // The repository has already put it in the photo cache
                 }
 
                 // Query succeeded. Photo bytes found.
-                request.contactRequest.bytes = photo;
-
-                // Start decode.
                 LogUtils.d(TAG, "ContactResolver ++ found   %s", email);
-                // Synchronously decode the photo bytes. We are already in a background
-                // thread, and we want decodes to finish in order. The decodes are blazing
-                // fast so we don't need to kick off multiple threads.
-                final int width = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeWidth()
-                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
-                final int height = HALF_MAXIMUM_PHOTO_SIZE >= request.destination.getDecodeHeight()
-                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
-                final DecodeTask.DecodeOptions opts = new DecodeTask.DecodeOptions(
-                        width, height, 1 / 2f, DecodeTask.DecodeOptions.STRATEGY_ROUND_NEAREST);
-                final ReusableBitmap result = new DecodeTask(request.contactRequest, opts, null,
-                        null, mCache).decode();
-                request.contactRequest.bytes = null;
-
-                // Decode success.
-                publishProgress(new Result(request, result));
-                Trace.endSection();
+                DECODE_EXECUTOR.execute(new DecodeRunnable(requests, photo));
             }
 
             return null;
@@ -245,45 +328,123 @@ public class ContactResolver implements Runnable {
             if (mResolver == null) {
                 return null;
             }
+            if (mCallback.mRepository != null) {
+                return mCallback.mRepository.getContactInfos(
+                        mResolver, emails, false /* decodeBitmaps */);
+            }
             return SenderInfoLoader.loadContactPhotos(mResolver, emails, false /* decodeBitmaps */);
         }
 
+        /**
+         * Decodes the photo of one address on the decode pool, and delivers it on the UI thread.
+         */
+        private class DecodeRunnable implements Runnable {
+            private final List<ContactRequestHolder> mRequests;
+            private final byte[] mPhoto;
+
+            public DecodeRunnable(final List<ContactRequestHolder> requests, final byte[] photo) {
+                mRequests = requests;
+                mPhoto = photo;
+            }
+
+            @Override
+            public void run() {
+                Trace.beginSection("decode");
+                // Decode at the largest size any of the drawables asked for.
+                int decodeWidth = 0;
+                int decodeHeight = 0;
+                for (ContactRequestHolder request : mRequests) {
+                    decodeWidth = Math.max(decodeWidth, request.destination.getDecodeWidth());
+                    decodeHeight = Math.max(decodeHeight, request.destination.getDecodeHeight());
+                }
+                final int width = HALF_MAXIMUM_PHOTO_SIZE >= decodeWidth
+                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
+                final int height = HALF_MAXIMUM_PHOTO_SIZE >= decodeHeight
+                        ? HALF_MAXIMUM_PHOTO_SIZE : MAXIMUM_PHOTO_SIZE;
+                final DecodeTask.DecodeOptions opts = new DecodeTask.DecodeOptions(
+                        width, height, 1 / 2f, DecodeTask.DecodeOptions.STRATEGY_ROUND_NEAREST);
+                // Each batch has its own requests, and an address is only in one batch at a time,
+                // so nothing else is using these bytes.
+                final ContactRequest contactRequest = mRequests.get(0).contactRequest;
+                contactRequest.bytes = mPhoto;
+                final ReusableBitmap bitmap = new DecodeTask(contactRequest, opts, null, null,
+                        mCache).decode();
+                contactRequest.bytes = null;
+                Trace.endSection();
+
+                // Decode success.
+                final Result result = new Result(mRequests, bitmap, false /* skipped */);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onProgressUpdate(result);
+                    }
+                });
+            }
+        }
+
         /**
          * We use progress updates to jump to the UI thread so we can decode the batch
-         * incrementally.
+         * incrementally. Decoded photos arrive here from the decode pool rather than through
+         * publishProgress(), possibly after the task has finished.
          */
         @Override
         protected void onProgressUpdate(final Result... values) {
-            final ContactRequestHolder request = values[0].request;
-            final ReusableBitmap bitmap = values[0].bitmap;
+            final Result result = values[0];
+            final ReusableBitmap bitmap = result.bitmap;
+
+            final List<ContactRequestHolder> requests =
+                    mCallback.onRequestsDone(result.requests, !result.skipped);
+            if (!result.skipped) {
+                // DecodeTask does not add null results to the cache.
+                if (bitmap == null && mCache != null) {
+                    // Cache null result.
+                    mCache.put(result.requests.get(0).contactRequest, null);
+                }
 
-            // DecodeTask does not add null results to the cache.
-            if (bitmap == null && mCache != null) {
-                // Cache null result.
-                mCache.put(request.contactRequest, null);
+                if (requests.isEmpty() && bitmap != null) {
+                    // Nobody is waiting for it any more; allow it to be pooled
+                    bitmap.releaseReference();
+                }
+                for (int i = 0; i < requests.size(); i++) {
+                    final ContactRequestHolder request = requests.get(i);
+                    if (i > 0 && bitmap != null) {
+                        // Every destination holds, and eventually releases, its own reference.
+                        bitmap.acquireReference();
+                    }
+                    request.destination.onDecodeComplete(request.contactRequest, bitmap);
+                }
             }
 
-            request.destination.onDecodeComplete(request.contactRequest, bitmap);
+            if (--mRemaining == 0) {
+                LogUtils.d(TAG, "ContactResolver << batch of %d done in %dms, %d from disk",
+                        mContactRequests.size(), SystemClock.uptimeMillis() - mStartTime,
+                        mDiskHits);
+            }
         }
 
         @Override
         protected void onPostExecute(final Void aVoid) {
-            // Batch completed. Start next batch.
+            // Batch looked up. Start next batch.
             mCallback.notifyBatchReady();
         }
     }
 
     /**
-     * Wrapper for the ContactRequest and its decoded bitmap. This class is used to pass results
+     * The requests for one address and its decoded bitmap. This class is used to pass results
      * to onProgressUpdate().
      */
     private static class Result {
-        public final ContactRequestHolder request;
+        public final List<ContactRequestHolder> requests;
         public final ReusableBitmap bitmap;
+        /** The address was not looked up in this batch, and should be tried again. */
+        public final boolean skipped;
 
-        private Result(final ContactRequestHolder request, final ReusableBitmap bitmap) {
-            this.request = request;
+        private Result(final List<ContactRequestHolder> requests, final ReusableBitmap bitmap,
+                final boolean skipped) {
+            this.requests = requests;
             this.bitmap = bitmap;
+            this.skipped = skipped;
         }
     }
 }
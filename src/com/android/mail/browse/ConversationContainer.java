@@ -631,6 +631,15 @@ public class ConversationContainer extends ViewGroup implements ScrollListener {
         return overlayView.getMeasuredHeight();
     }
 
+    /**
+     * Returns the width that {@link #measureOverlay(View)} measures overlays against, i.e. the
+     * size of the current width measure spec. Before the first measure pass, and while the width
+     * is changing, this can differ from {@link #getWidth()}.
+     */
+    public int getOverlayMeasureWidth() {
+        return MeasureSpec.getSize(mWidthMeasureSpec);
+    }
+
     /**
      * Copied/stolen from {@link ListView}.
      */
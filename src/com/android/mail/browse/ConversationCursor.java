@@ -2402,8 +2402,16 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         mMainThreadHandler.post(new Runnable() {
             @Override
             public void run() {
+                // Copied, since the notification threads update it
                 final SparseArrayCompat<NotificationAction> undoNotifications =
-                        NotificationActionUtils.sUndoNotifications;
+                        new SparseArrayCompat<NotificationAction>();
+                synchronized (NotificationActionUtils.sUndoNotifications) {
+                    final SparseArrayCompat<NotificationAction> actions =
+                            NotificationActionUtils.sUndoNotifications;
+                    for (int i = 0; i < actions.size(); i++) {
+                        undoNotifications.append(actions.keyAt(i), actions.valueAt(i));
+                    }
+                }
                 final Set<Conversation> undoneConversations =
                         NotificationActionUtils.sUndoneConversations;
 
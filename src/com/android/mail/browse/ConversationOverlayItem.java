@@ -121,6 +121,16 @@ public abstract class ConversationOverlayItem {
         mTop = top;
     }
 
+    /**
+     * Returns everything about this item that affects the height of its view, as a value that
+     * implements equals() and hashCode(), so that a height measured for one item can be reused
+     * for any item of the same type, at the same width, with an equal key. The default is null,
+     * for items whose height must always be measured.
+     */
+    public Object getMeasurementKey() {
+        return null;
+    }
+
     public boolean isMeasurementValid() {
         return !mNeedsMeasure;
     }
@@ -121,6 +121,8 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
 
     private boolean mPageChangeListenerEnabled;
 
+    private final ConversationPrefetcher mPrefetcher;
+
     private static final String LOG_TAG = ConversationPagerController.LOG_TAG;
 
     private static final String BUNDLE_DETACHED_MODE =
@@ -145,6 +147,7 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
                 mAccount.supportsCapability(UIProvider.AccountCapabilities.SERVER_SANITIZED_HTML);
         mClientSanitizedHtml =
                 mAccount.supportsCapability(UIProvider.AccountCapabilities.CLIENT_SANITIZED_HTML);
+        mPrefetcher = new ConversationPrefetcher(context);
     }
 
     public boolean matches(Account account, Folder folder) {
@@ -225,9 +228,22 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
     }
 
     private AbstractConversationViewFragment getConversationViewFragment(Conversation c) {
+        if (isScriptingEnabled()) {
+            return ConversationViewFragment.newInstance(mCommonFragmentArgs, c);
+        }
+
+        // otherwise we do not enable scripting
+        return SecureConversationViewFragment.newInstance(mCommonFragmentArgs, c);
+    }
+
+    /**
+     * Returns whether conversations open in a {@link ConversationViewFragment}, with scripting
+     * enabled, rather than in a {@link SecureConversationViewFragment}.
+     */
+    private boolean isScriptingEnabled() {
         // if Html email bodies are already sanitized by the mail server, scripting can be enabled
         if (mServerSanitizedHtml) {
-            return ConversationViewFragment.newInstance(mCommonFragmentArgs, c);
+            return true;
         }
 
         // if this client is permitted to sanitize emails for this account, attempt to do so
@@ -235,13 +251,9 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
             // if the version of the Html Sanitizer meets or exceeds the required version, the
             // results of the sanitizer can be trusted and scripting can be enabled
             final MailPrefs mailPrefs = MailPrefs.get(mContext);
-            if (HtmlSanitizer.VERSION >= mailPrefs.getRequiredSanitizerVersionNumber()) {
-                return ConversationViewFragment.newInstance(mCommonFragmentArgs, c);
-            }
+            return HtmlSanitizer.VERSION >= mailPrefs.getRequiredSanitizerVersionNumber();
         }
-
-        // otherwise we do not enable scripting
-        return SecureConversationViewFragment.newInstance(mCommonFragmentArgs, c);
+        return false;
     }
 
     @Override
@@ -493,7 +505,25 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
         mPager = pager;
         if (mPager != null) {
             mPager.setOnPageChangeListener(this);
+            schedulePrefetch();
+        } else {
+            mPrefetcher.cancel();
+        }
+    }
+
+    /**
+     * Prefetches the conversations beyond the offscreen pages around the current item, once the
+     * pager has settled. See {@link ConversationPrefetcher}.
+     */
+    private void schedulePrefetch() {
+        // SecureConversationViewFragment renders its own message, without the prepared bodies
+        if (mPager == null || mStopListeningMode || isPagingDisabled(getCursor())
+                || !isScriptingEnabled()) {
+            mPrefetcher.cancel();
+            return;
         }
+        mPrefetcher.onPageSettled(getCursor(), mController, mPager.getCurrentItem(),
+                mPager.getOffscreenPageLimit());
     }
 
     public void setActivityController(ActivityController controller) {
@@ -534,6 +564,7 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
         }
         mLastKnownCount = getCount();
         mStopListeningMode = true;
+        mPrefetcher.cancel();
         LogUtils.d(LOG_TAG, "CPA.stopListening, this=%s", this);
     }
 
@@ -560,11 +591,16 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
         c.position = position;
         LogUtils.d(LOG_TAG, "pager adapter setting current conv: %s", c);
         mController.onConversationViewSwitched(c);
+        schedulePrefetch();
     }
 
     @Override
     public void onPageScrollStateChanged(int state) {
-        // no-op
+        if (state == ViewPager.SCROLL_STATE_IDLE) {
+            schedulePrefetch();
+        } else {
+            mPrefetcher.cancel();
+        }
     }
 
     // update the pager dataset as the Controller's cursor changes
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.mail.R;
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ListParams;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.ui.ConversationListCallbacks;
+import com.android.mail.ui.MessageBodyPreparer;
+import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.LruCache;
+import com.android.mail.utils.Utils;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the messages of the conversations just beyond the pager's offscreen pages and prepares
+ * their bodies (see {@link MessageBodyPreparer#prefetch}), so that when a swipe brings one of them
+ * into the offscreen window its fragment renders from ready-made HTML.
+ * <p>
+ * Prefetching starts once the pager has been idle for {@link #SETTLE_DELAY_MS} and the visible
+ * conversation has finished loading, and runs one conversation at a time on a single background
+ * thread. It follows the same policy as offscreen loading in the conversation view: nothing on low
+ * RAM devices, and nothing for remote conversations or those with more than
+ * {@code max_auto_load_messages} messages. How far ahead to look is
+ * {@code conversation_prefetch_distance}; 0 disables prefetching.
+ */
+class ConversationPrefetcher {
+    private static final String LOG_TAG = ConversationPagerController.LOG_TAG;
+
+    private static final long SETTLE_DELAY_MS = 750;
+    /**
+     * Conversations already prefetched, so settling on the same page again does not redo them.
+     */
+    private static final int MAX_REMEMBERED_CONVERSATIONS = 16;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            r.run();
+                        }
+                    }, "ConversationPrefetcher");
+                }
+            });
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final int mDistance;
+    private final int mMaxMessages;
+
+    /** Conversation URI to the message count it was prefetched with. UI thread only. */
+    private final LruCache<Uri, Integer> mDone =
+            new LruCache<Uri, Integer>(MAX_REMEMBERED_CONVERSATIONS);
+    private final List<Future<?>> mPending = Lists.newArrayList();
+
+    private ConversationCursor mCursor;
+    private ConversationListCallbacks mCallbacks;
+    private int mPosition;
+    private int mOffscreenLimit;
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetchNeighbors();
+        }
+    };
+
+    ConversationPrefetcher(Context context) {
+        mContext = context;
+        mDistance = Utils.isLowRamDevice(context) ? 0
+                : context.getResources().getInteger(R.integer.conversation_prefetch_distance);
+        mMaxMessages = context.getResources().getInteger(R.integer.max_auto_load_messages);
+    }
+
+    /**
+     * Schedules a prefetch around <code>position</code>, replacing any earlier one. Should be
+     * called whenever the pager settles on a page, and only for accounts whose conversations open
+     * in a {@link com.android.mail.ui.ConversationViewFragment}, the only one to use the prepared
+     * bodies.
+     */
+    void onPageSettled(ConversationCursor cursor, ConversationListCallbacks callbacks,
+            int position, int offscreenLimit) {
+        cancel();
+        if (mDistance <= 0 || cursor == null || callbacks == null) {
+            return;
+        }
+        mCursor = cursor;
+        mCallbacks = callbacks;
+        mPosition = position;
+        mOffscreenLimit = offscreenLimit;
+        mHandler.postDelayed(mPrefetchRunnable, SETTLE_DELAY_MS);
+    }
+
+    /**
+     * Stops any prefetch that has not started yet. Work already prepared is kept.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mPrefetchRunnable);
+        for (Future<?> f : mPending) {
+            f.cancel(false);
+        }
+        mPending.clear();
+        mCursor = null;
+        mCallbacks = null;
+    }
+
+    private void prefetchNeighbors() {
+        if (mCursor == null || mCursor.isClosed()) {
+            return;
+        }
+        if (mCallbacks.isInitialConversationLoading()) {
+            // not settled yet
+            mHandler.postDelayed(mPrefetchRunnable, SETTLE_DELAY_MS);
+            return;
+        }
+        // The cursor is shared with the list and the pager, so leave it where it was
+        final int savedPosition = mCursor.getPosition();
+        try {
+            // Nearest first, alternating next and previous. Pages within the offscreen limit
+            // have fragments of their own that load themselves.
+            for (int i = mOffscreenLimit + 1; i <= mOffscreenLimit + mDistance; i++) {
+                maybePrefetch(mPosition + i);
+                maybePrefetch(mPosition - i);
+            }
+        } finally {
+            mCursor.moveToPosition(savedPosition);
+        }
+    }
+
+    private void maybePrefetch(int position) {
+        if (position < 0 || !mCursor.moveToPosition(position)) {
+            return;
+        }
+        final Conversation conv = mCursor.getConversation();
+        final int numMessages = conv.getNumMessages();
+        if (conv.isRemote || numMessages > mMaxMessages || conv.messageListUri == null) {
+            return;
+        }
+        final Integer done = mDone.getElement(conv.uri);
+        if (done != null && done == numMessages) {
+            return;
+        }
+        mDone.putElement(conv.uri, numMessages);
+        mPending.add(sExecutor.submit(new PrefetchTask(mContext.getContentResolver(),
+                conv.messageListUri)));
+    }
+
+    private static class PrefetchTask implements Runnable {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+
+        PrefetchTask(ContentResolver resolver, Uri messageListUri) {
+            mResolver = resolver;
+            // Same as what the conversation view asks for after its first load: no network
+            mUri = messageListUri.buildUpon().appendQueryParameter(
+                    UIProvider.LIST_PARAMS_QUERY_PARAMETER,
+                    new ListParams(ListParams.NO_LIMIT, false /* useNetwork */).serialize())
+                    .build();
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.uptimeMillis();
+            final Cursor inner = mResolver.query(mUri, UIProvider.MESSAGE_PROJECTION, null, null,
+                    null);
+            if (inner == null) {
+                return;
+            }
+            final MessageCursor cursor = new MessageCursor(inner);
+            int prepared = 0;
+            try {
+                int pos = -1;
+                while (cursor.moveToPosition(++pos)) {
+                    if (MessageBodyPreparer.prefetch(cursor.getMessage())) {
+                        prepared++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            LogUtils.d(LOG_TAG, "prefetched %d message bodies of %s in %dms", prepared, mUri,
+                    SystemClock.uptimeMillis() - start);
+        }
+    }
+}
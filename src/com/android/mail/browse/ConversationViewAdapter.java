@@ -50,6 +50,7 @@ import com.google.common.collect.Lists;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -85,6 +86,9 @@ public class ConversationViewAdapter extends BaseAdapter {
     private final OnClickListener mSuperCollapsedListener;
     private final Map<String, Address> mAddressCache;
     private final LayoutInflater mInflater;
+    private final OverlayViewPool mOverlayViewPool;
+    private final OverlayViewPool.InflationStats mInflationStats =
+            new OverlayViewPool.InflationStats();
 
     private final List<ConversationOverlayItem> mItems;
     private final VeiledAddressMatcher mMatcher;
@@ -129,8 +133,8 @@ public class ConversationViewAdapter extends BaseAdapter {
 
         @Override
         public View createView(Context context, LayoutInflater inflater, ViewGroup parent) {
-            final ConversationViewHeader v = (ConversationViewHeader) inflater.inflate(
-                    R.layout.conversation_view_header, parent, false);
+            final ConversationViewHeader v = (ConversationViewHeader) inflateOverlay(
+                    R.layout.conversation_view_header, parent);
             v.setCallbacks(
                     mConversationCallbacks, mAccountController, mConversationUpdater);
             v.setSubject(mConversation.subject);
@@ -180,7 +184,7 @@ public class ConversationViewAdapter extends BaseAdapter {
         @Override
         public View createView(Context context, LayoutInflater inflater, ViewGroup parent) {
             final ConversationFooterView v = (ConversationFooterView)
-                    inflater.inflate(R.layout.conversation_footer, parent, false);
+                    inflateOverlay(R.layout.conversation_footer, parent);
             v.setAccountController(mAccountController);
             v.setConversationFooterCallbacks(mConversationFooterCallbacks);
             v.setTag(OVERLAY_ITEM_ROOT_TAG);
@@ -269,8 +273,8 @@ public class ConversationViewAdapter extends BaseAdapter {
 
         @Override
         public View createView(Context context, LayoutInflater inflater, ViewGroup parent) {
-            final MessageHeaderView v = (MessageHeaderView) inflater.inflate(
-                    R.layout.conversation_message_header, parent, false);
+            final MessageHeaderView v = (MessageHeaderView) mAdapter.inflateOverlay(
+                    R.layout.conversation_message_header, parent);
             v.initialize(mAdapter.mAccountController,
                     mAdapter.mAddressCache);
             v.setCallbacks(mAdapter.mMessageCallbacks);
@@ -333,6 +337,16 @@ public class ConversationViewAdapter extends BaseAdapter {
             mShowImages = showImages;
         }
 
+        @Override
+        public Object getMeasurementKey() {
+            final ConversationMessage m = mMessage;
+            return Arrays.asList(mExpanded, detailsExpanded, mShowImages, m.id, m.uri,
+                    m.getFrom(), m.getTo(), m.getCc(), m.getBcc(), m.getReplyTo(), m.snippet,
+                    m.dateReceivedMs, m.draftType, m.sendingState, m.starred, m.read,
+                    m.alwaysShowImages, m.embedsExternalResources, m.spamWarningLevel,
+                    m.viaDomain);
+        }
+
         @Override
         public boolean canBecomeSnapHeader() {
             return isExpanded();
@@ -413,8 +427,8 @@ public class ConversationViewAdapter extends BaseAdapter {
 
         @Override
         public View createView(Context context, LayoutInflater inflater, ViewGroup parent) {
-            final MessageFooterView v = (MessageFooterView) inflater.inflate(
-                    R.layout.conversation_message_footer, parent, false);
+            final MessageFooterView v = (MessageFooterView) mAdapter.inflateOverlay(
+                    R.layout.conversation_message_footer, parent);
             v.initialize(mAdapter.mLoaderManager, mAdapter.mFragmentManager,
                     mAdapter.mAccountController, mAdapter.mFooterCallbacks);
             v.setTag(OVERLAY_ITEM_ROOT_TAG);
@@ -446,6 +460,13 @@ public class ConversationViewAdapter extends BaseAdapter {
             return mHeaderItem.isExpanded();
         }
 
+        @Override
+        public Object getMeasurementKey() {
+            final ConversationMessage m = mHeaderItem.getMessage();
+            return Arrays.asList(isExpanded(), m.id, m.uri, m.attachmentsJson, m.clipped,
+                    m.permalink);
+        }
+
         @Override
         public int getGravity() {
             // attachments are top-aligned within their spacer area
@@ -487,8 +508,8 @@ public class ConversationViewAdapter extends BaseAdapter {
 
         @Override
         public View createView(Context context, LayoutInflater inflater, ViewGroup parent) {
-            final SuperCollapsedBlock v = (SuperCollapsedBlock) inflater.inflate(
-                    R.layout.super_collapsed_block, parent, false);
+            final SuperCollapsedBlock v = (SuperCollapsedBlock) inflateOverlay(
+                    R.layout.super_collapsed_block, parent);
             v.initialize(mSuperCollapsedListener);
             v.setOnKeyListener(mOnKeyListener);
             v.setTag(OVERLAY_ITEM_ROOT_TAG);
@@ -532,6 +553,11 @@ public class ConversationViewAdapter extends BaseAdapter {
             return mHasDraft;
         }
 
+        @Override
+        public Object getMeasurementKey() {
+            return Arrays.asList(mEnd - mStart, mHasDraft);
+        }
+
         @Override
         public boolean canPushSnapHeader() {
             return true;
@@ -566,6 +592,8 @@ public class ConversationViewAdapter extends BaseAdapter {
         mSuperCollapsedListener = scbListener;
         mAddressCache = addressCache;
         mInflater = LayoutInflater.from(mContext);
+        final OverlayViewPool pool = controllableActivity.getOverlayViewPool();
+        mOverlayViewPool = pool != null ? pool : new OverlayViewPool(mContext);
 
         mItems = Lists.newArrayList();
         mMatcher = controllableActivity.getAccountController().getVeiledAddressMatcher();
@@ -622,6 +650,22 @@ public class ConversationViewAdapter extends BaseAdapter {
         return mInflater;
     }
 
+    /**
+     * Inflates an overlay view for {@link ConversationOverlayItem#createView}, taking a
+     * pre-inflated one from the activity's {@link OverlayViewPool} if there is one.
+     */
+    View inflateOverlay(int layoutId, ViewGroup parent) {
+        return mOverlayViewPool.obtain(layoutId, parent, mInflationStats);
+    }
+
+    public OverlayViewPool getOverlayViewPool() {
+        return mOverlayViewPool;
+    }
+
+    public OverlayViewPool.InflationStats getInflationStats() {
+        return mInflationStats;
+    }
+
     public FormattedDateBuilder getDateBuilder() {
         return mDateBuilder;
     }
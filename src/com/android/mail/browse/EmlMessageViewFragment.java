@@ -186,6 +186,14 @@ public class EmlMessageViewFragment extends Fragment
         mViewController.onActivityCreated(savedInstanceState);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mContactLoaderCallbacks != null) {
+            mContactLoaderCallbacks.cancelPhotoDecode();
+        }
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         if (Utils.isRunningKitkatOrLater()) {
@@ -30,8 +30,10 @@ import com.android.mail.providers.UIProvider.CursorStatus;
 import com.android.mail.ui.ConversationUpdater;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * MessageCursor contains the messages within a conversation; the public methods within should
@@ -48,6 +50,17 @@ public class MessageCursor extends ObjectCursor<ConversationMessage> {
 
     private Integer mStatus;
 
+    /**
+     * Element n is the state hash code of the first n messages (see {@link #getStateHashCode(int)}),
+     * for n from 0 to the message count. Built along with {@link #mPositionsById}, either when the
+     * loader fills the cache or on first use.
+     */
+    private int[] mStateHashCodes;
+    /**
+     * Position of each message id; the first position if an id appears more than once.
+     */
+    private Map<Long, Integer> mPositionsById;
+
     public interface ConversationController {
         Conversation getConversation();
         ConversationUpdater getListController();
@@ -110,14 +123,47 @@ public class MessageCursor extends ObjectCursor<ConversationMessage> {
             return null;
         }
 
+        ensureIndex();
+        final Integer pos = mPositionsById.get(id);
+        if (pos == null || !moveToPosition(pos)) {
+            return null;
+        }
+        return getMessage();
+    }
+
+    @Override
+    protected void onCacheFilled() {
+        buildIndex();
+    }
+
+    private void ensureIndex() {
+        if (mStateHashCodes == null) {
+            buildIndex();
+        }
+    }
+
+    /**
+     * Walks the messages once to compute the rolling state hash codes and the id index. Message
+     * state hash codes only depend on the message URI and attachments, which do not change for
+     * the life of a cursor.
+     */
+    private void buildIndex() {
+        final int count = getCount();
+        final int[] hashCodes = new int[count + 1];
+        final Map<Long, Integer> positions = Maps.newHashMapWithExpectedSize(count);
+        int hashCode = 17;
+        hashCodes[0] = hashCode;
         int pos = -1;
         while (moveToPosition(++pos)) {
-            final ConversationMessage m = getMessage();
-            if (id == m.id) {
-                return m;
+            final ConversationMessage m = getModel();
+            hashCode = 31 * hashCode + m.getStateHashCode();
+            hashCodes[pos + 1] = hashCode;
+            if (!positions.containsKey(m.id)) {
+                positions.put(m.id, pos);
             }
         }
-        return null;
+        mPositionsById = positions;
+        mStateHashCodes = hashCodes;
     }
 
     public int getStateHashCode() {
@@ -135,13 +181,10 @@ public class MessageCursor extends ObjectCursor<ConversationMessage> {
      * @return state hash code of the selected messages in this cursor
      */
     public int getStateHashCode(int exceptLast) {
-        int hashCode = 17;
-        int pos = -1;
-        final int stopAt = getCount() - exceptLast;
-        while (moveToPosition(++pos) && pos < stopAt) {
-            hashCode = 31 * hashCode + getMessage().getStateHashCode();
-        }
-        return hashCode;
+        ensureIndex();
+        final int count = mStateHashCodes.length - 1;
+        final int stopAt = Math.max(0, Math.min(count, count - exceptLast));
+        return mStateHashCodes[stopAt];
     }
 
     public int getStatus() {
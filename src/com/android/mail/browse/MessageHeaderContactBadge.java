@@ -18,6 +18,7 @@
 package com.android.mail.browse;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.AttributeSet;
@@ -34,6 +35,12 @@ public class MessageHeaderContactBadge extends ImageView implements View.OnClick
 
     private Drawable mDefaultAvatar;
 
+    /**
+     * The bitmap shown, if it was set with {@link #setImageBitmap}, so that headers rebound as
+     * each batch of photos arrives don't replace it with an identical drawable.
+     */
+    private Bitmap mBitmap;
+
     public MessageHeaderContactBadge(Context context) {
         this(context, null);
     }
@@ -63,6 +70,27 @@ public class MessageHeaderContactBadge extends ImageView implements View.OnClick
         setImageDrawable(mDefaultAvatar);
     }
 
+    @Override
+    public void setImageBitmap(Bitmap bm) {
+        if (bm != null && bm == mBitmap) {
+            return;
+        }
+        super.setImageBitmap(bm);
+        mBitmap = bm;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        mBitmap = null;
+        super.setImageDrawable(drawable);
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        mBitmap = null;
+        super.setImageResource(resId);
+    }
+
     public void assignContactUri(Uri contactUri) {
         if (mQuickContactBadge != null) {
             mQuickContactBadge.assignContactUri(contactUri);
@@ -61,7 +61,6 @@ import com.android.mail.providers.UIProvider;
 import com.android.mail.text.EmailAddressSpan;
 import com.android.mail.ui.AbstractConversationViewFragment;
 import com.android.mail.ui.ImageCanvas;
-import com.android.mail.utils.BitmapUtil;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.StyleUtils;
@@ -854,7 +853,8 @@ public class MessageHeaderView extends SnapHeader implements OnClickListener,
             }
 
             if (info.photo != null) {
-                mPhotoView.setImageBitmap(BitmapUtil.frameBitmapInCircle(info.photo));
+                // Already framed in a circle by the ContactLoaderCallbacks
+                mPhotoView.setImageBitmap(info.photo);
                 photoSet = true;
             }
         } else {
@@ -862,8 +862,7 @@ public class MessageHeaderView extends SnapHeader implements OnClickListener,
         }
 
         if (!photoSet) {
-            mPhotoView.setImageBitmap(
-                    BitmapUtil.frameBitmapInCircle(makeLetterTile(mSender.getPersonal(), email)));
+            mPhotoView.setImageBitmap(makeLetterTile(mSender.getPersonal(), email));
         }
     }
 
@@ -875,7 +874,8 @@ public class MessageHeaderView extends SnapHeader implements OnClickListener,
 
         final ImageCanvas.Dimensions dimensions = new ImageCanvas.Dimensions(
                 mContactPhotoWidth, mContactPhotoHeight, ImageCanvas.Dimensions.SCALE_ONE);
-        return mLetterTileProvider.getLetterTile(dimensions, displayName, senderAddress);
+        return mLetterTileProvider.getLetterTile(dimensions, displayName, senderAddress,
+                true /* circle */);
     }
 
     @Override
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import com.android.mail.R;
+import com.android.mail.utils.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Freshly inflated conversation overlay views (message headers and footers, super-collapsed
+ * blocks, conversation header and footer), shared by all conversation views in an activity.
+ * <p>
+ * Views are inflated ahead of time when the UI thread is idle, up to a few per layout, so that
+ * opening the next conversation does not have to inflate them in the middle of rendering. Views
+ * handed out by {@link #obtain(int, ViewGroup)} are never given back: once set up by a
+ * conversation view they belong to it and are recycled by its {@link ConversationContainer}.
+ * <p>
+ * The pool also remembers overlay heights by item type, width and content, see
+ * {@link #getCachedHeight(int, int, Object)}.
+ * <p>
+ * UI thread only.
+ */
+public class OverlayViewPool {
+
+    /** Layouts to keep ready, and how many of each. */
+    private static final int[] WARM_LAYOUTS = {
+        R.layout.conversation_message_header,
+        R.layout.conversation_message_footer,
+        R.layout.super_collapsed_block,
+        R.layout.conversation_view_header,
+        R.layout.conversation_footer,
+    };
+    private static final int[] WARM_COUNTS = { 4, 2, 1, 1, 1 };
+
+    private static final int MAX_CACHED_HEIGHTS = 256;
+
+    private final LayoutInflater mInflater;
+    /**
+     * Parent for inflating ahead of time, so views get the same kind of layout params as when
+     * inflated into a {@link ConversationContainer}.
+     */
+    private final ViewGroup mWarmParent;
+    private final SparseArray<Deque<View>> mViews = new SparseArray<Deque<View>>();
+    private final LruCache<HeightKey, Integer> mHeights =
+            new LruCache<HeightKey, Integer>(MAX_CACHED_HEIGHTS);
+    private boolean mWarming;
+
+    private final MessageQueue.IdleHandler mWarmer = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // one view per idle pass, to stay out of the way of anything else
+            for (int i = 0; i < WARM_LAYOUTS.length; i++) {
+                final int layoutId = WARM_LAYOUTS[i];
+                if (getViews(layoutId).size() < WARM_COUNTS[i]) {
+                    getViews(layoutId).add(mInflater.inflate(layoutId, mWarmParent, false));
+                    return true;
+                }
+            }
+            mWarming = false;
+            return false;
+        }
+    };
+
+    public OverlayViewPool(Context activityContext) {
+        mInflater = LayoutInflater.from(activityContext);
+        mWarmParent = new FrameLayout(activityContext);
+    }
+
+    /**
+     * Starts inflating views ahead of time once the UI thread is idle, unless the pool is already
+     * full or being filled.
+     */
+    public void warm() {
+        if (!mWarming) {
+            mWarming = true;
+            Looper.myQueue().addIdleHandler(mWarmer);
+        }
+    }
+
+    /**
+     * Returns a view of the given layout that has never been used, from the pool if one is ready,
+     * otherwise inflated now.
+     *
+     * @param stats counts the view as pooled or inflated
+     */
+    public View obtain(int layoutId, ViewGroup parent, InflationStats stats) {
+        final View pooled = getViews(layoutId).poll();
+        if (pooled != null) {
+            stats.mPooled++;
+            warm();
+            return pooled;
+        }
+        final long start = SystemClock.uptimeMillis();
+        final View v = mInflater.inflate(layoutId, parent, false);
+        stats.mInflated++;
+        stats.mInflateMs += SystemClock.uptimeMillis() - start;
+        return v;
+    }
+
+    private Deque<View> getViews(int layoutId) {
+        Deque<View> views = mViews.get(layoutId);
+        if (views == null) {
+            views = new ArrayDeque<View>();
+            mViews.put(layoutId, views);
+        }
+        return views;
+    }
+
+    /**
+     * Returns the height an overlay of this type and width had when last measured with the same
+     * content, or -1.
+     *
+     * @param contentKey see {@link ConversationOverlayItem#getMeasurementKey()}
+     */
+    public int getCachedHeight(int itemType, int width, Object contentKey) {
+        final Integer h = mHeights.getElement(new HeightKey(itemType, width, contentKey));
+        return h != null ? h : -1;
+    }
+
+    public void putCachedHeight(int itemType, int width, Object contentKey, int height) {
+        mHeights.putElement(new HeightKey(itemType, width, contentKey), height);
+    }
+
+    /**
+     * Drops all pooled views and cached heights and stops inflating ahead of time. Called when the
+     * activity is destroyed, so that a pending idle pass does not inflate into a dead context.
+     */
+    public void clear() {
+        if (mWarming) {
+            Looper.myQueue().removeIdleHandler(mWarmer);
+            mWarming = false;
+        }
+        mViews.clear();
+        mHeights.clear();
+    }
+
+    private static final class HeightKey {
+        private final int mItemType;
+        private final int mWidth;
+        private final Object mContentKey;
+
+        HeightKey(int itemType, int width, Object contentKey) {
+            mItemType = itemType;
+            mWidth = width;
+            mContentKey = contentKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HeightKey)) {
+                return false;
+            }
+            final HeightKey other = (HeightKey) o;
+            return mItemType == other.mItemType && mWidth == other.mWidth
+                    && mContentKey.equals(other.mContentKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mItemType * 31 + mWidth) * 31 + mContentKey.hashCode();
+        }
+    }
+
+    /**
+     * Overlay view counts for one conversation render.
+     */
+    public static class InflationStats {
+        private int mInflated;
+        private int mPooled;
+        private long mInflateMs;
+        private int mMeasured;
+        private int mMeasureCacheHits;
+
+        public void reset() {
+            mInflated = 0;
+            mPooled = 0;
+            mInflateMs = 0;
+            mMeasured = 0;
+            mMeasureCacheHits = 0;
+        }
+
+        public void onMeasured(boolean cached) {
+            if (cached) {
+                mMeasureCacheHits++;
+            } else {
+                mMeasured++;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "inflated=" + mInflated + " in " + mInflateMs + "ms, fromPool=" + mPooled
+                    + ", measured=" + mMeasured + ", measureCacheHits=" + mMeasureCacheHits;
+        }
+    }
+}
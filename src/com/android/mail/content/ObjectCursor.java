@@ -83,6 +83,15 @@ public class ObjectCursor <T> extends CursorWrapper {
             // As a side effect of getModel, the model is cached away.
             getModel();
         } while (c.moveToNext());
+        onCacheFilled();
+    }
+
+    /**
+     * Called at the end of {@link #fillCache()}, still on the loader's worker thread, once every
+     * model has been created. Subclasses can precompute anything derived from the whole set of
+     * models here instead of on the UI thread.
+     */
+    protected void onCacheFilled() {
     }
 
     @Override
@@ -25,13 +25,18 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.text.TextPaint;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.mail.R;
 import com.android.mail.bitmap.ColorPicker;
 import com.android.mail.ui.ImageCanvas.Dimensions;
 import com.android.mail.utils.BitmapUtil;
+import com.android.mail.utils.CacheRegistry;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
+import com.google.common.base.Objects;
+
+import java.io.PrintWriter;
 
 /**
  * LetterTileProvider is an implementation of the DefaultImageProvider. When no
@@ -40,10 +45,41 @@ import com.android.mail.utils.LogUtils;
  * number), this method creates a bitmap with the letter in the center of a
  * tile. If there is no English alphabet character (or digit), it creates a
  * bitmap with the default contact avatar.
+ * <p>
+ * There are only so many distinct tiles (glyphs by colors by sizes), so finished tiles are kept
+ * in a cache shared by all providers. The tiles returned are immutable, and may be shared with
+ * any number of callers on any thread.
  */
 public class LetterTileProvider {
     private static final String TAG = LogTag.getLogTag();
-    private final Bitmap mDefaultBitmap;
+
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    /** Finished tiles, weighted by their bytes. */
+    private static final LruCache<TileKey, Bitmap> sTileCache =
+            new LruCache<TileKey, Bitmap>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(TileKey key, Bitmap tile) {
+                    return tile.getByteCount();
+                }
+            };
+
+    static {
+        CacheRegistry.register(new CacheRegistry.Cache() {
+            @Override
+            public void releaseMemory() {
+                sTileCache.evictAll();
+            }
+
+            @Override
+            public void dump(String prefix, PrintWriter writer) {
+                dumpStats(prefix, writer);
+            }
+        });
+    }
+
+    private final Resources mResources;
+    /** Decoded on first use; most tiles have a letter. */
+    private Bitmap mDefaultBitmap;
     private final Bitmap[] mBitmapBackgroundCache;
     private final Bitmap[] mDefaultBitmapCache;
     private final Typeface mSansSerifLight;
@@ -63,6 +99,7 @@ public class LetterTileProvider {
     }
 
     public LetterTileProvider(Resources res, ColorPicker colorPicker) {
+        mResources = res;
         mTileLetterFontSize = res.getDimensionPixelSize(R.dimen.tile_letter_font_size_small);
         mTileLetterFontSizeSmall = res.getDimensionPixelSize(R.dimen.tile_letter_font_size_tiny);
         mTileFontColor = res.getColor(R.color.letter_tile_font_color);
@@ -74,7 +111,6 @@ public class LetterTileProvider {
         mPaint.setAntiAlias(true);
         mBitmapBackgroundCache = new Bitmap[POSSIBLE_BITMAP_SIZES];
 
-        mDefaultBitmap = BitmapFactory.decodeResource(res, R.drawable.ic_anonymous_avatar_40dp);
         mDefaultBitmapCache = new Bitmap[POSSIBLE_BITMAP_SIZES];
 
         mTileColorPicker = colorPicker;
@@ -82,27 +118,52 @@ public class LetterTileProvider {
 
     public Bitmap getLetterTile(final Dimensions dimensions, final String displayName,
             final String address) {
+        return getLetterTile(dimensions, displayName, address, false /* circle */);
+    }
+
+    /**
+     * Returns the tile for this sender, from the shared cache if it has been drawn before.
+     *
+     * @param circle whether to frame the tile in a circle, as with
+     *               {@link BitmapUtil#frameBitmapInCircle(Bitmap)}
+     * @return an immutable tile, or null if the dimensions are empty
+     */
+    public Bitmap getLetterTile(final Dimensions dimensions, final String displayName,
+            final String address, final boolean circle) {
         final String display = !TextUtils.isEmpty(displayName) ? displayName : address;
         final char firstChar = !TextUtils.isEmpty(display) ? display.charAt(0) : '\0';
 
-        // get an empty bitmap
-        final Bitmap bitmap = getBitmap(dimensions, false /* getDefault */);
-        if (bitmap == null) {
+        if (dimensions.width <= 0 || dimensions.height <= 0) {
             LogUtils.w(TAG, "LetterTileProvider width(%d) or height(%d) is 0 for name %s and "
                     + "address %s.", dimensions.width, dimensions.height, displayName, address);
             return null;
         }
 
+        // The glyph is 0 for the generic icon
+        final char glyph = isEnglishLetterOrDigit(firstChar) ? Character.toUpperCase(firstChar)
+                : '\0';
+        final int color = mTileColorPicker.pickColor(address);
+        final float textSize = glyph == '\0' ? 0
+                : dimensions.fontSize > 0 ? dimensions.fontSize : getFontSize(dimensions.scale);
+        final TileKey key = new TileKey(glyph, color, mTileFontColor, textSize, dimensions.width,
+                dimensions.height, circle);
+        final Bitmap cached = sTileCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // get an empty bitmap
+        final Bitmap bitmap = getBitmap(dimensions, false /* getDefault */);
+
         final Canvas c = mCanvas;
         c.setBitmap(bitmap);
-        c.drawColor(mTileColorPicker.pickColor(address));
+        c.drawColor(color);
 
         // If its a valid English alphabet letter,
         // draw the letter on top of the color
-        if (isEnglishLetterOrDigit(firstChar)) {
-            mFirstChar[0] = Character.toUpperCase(firstChar);
-            mPaint.setTextSize(
-                    dimensions.fontSize > 0 ? dimensions.fontSize : getFontSize(dimensions.scale));
+        if (glyph != '\0') {
+            mFirstChar[0] = glyph;
+            mPaint.setTextSize(textSize);
             mPaint.getTextBounds(mFirstChar, 0, 1, mBounds);
             c.drawText(mFirstChar, 0, 1, 0 + dimensions.width / 2,
                     0 + dimensions.height / 2 + (mBounds.bottom - mBounds.top) / 2, mPaint);
@@ -110,7 +171,13 @@ public class LetterTileProvider {
             c.drawBitmap(getBitmap(dimensions, true /* getDefault */), 0, 0, null);
         }
 
-        return bitmap;
+        // The bitmap drawn on is reused for the next tile, and cached tiles are shared, so cache
+        // an immutable copy
+        final Bitmap drawn = circle ? BitmapUtil.frameBitmapInCircle(bitmap, null /* pool */)
+                : bitmap;
+        final Bitmap result = drawn.copy(Bitmap.Config.ARGB_8888, false /* isMutable */);
+        sTileCache.put(key, result);
+        return result;
     }
 
     private static boolean isEnglishLetterOrDigit(char c) {
@@ -143,6 +210,10 @@ public class LetterTileProvider {
         if (bitmap == null || bitmap.getWidth() != d.width || bitmap.getHeight() != d.height) {
             // create and place the bitmap
             if (getDefault) {
+                if (mDefaultBitmap == null) {
+                    mDefaultBitmap = BitmapFactory.decodeResource(mResources,
+                            R.drawable.ic_anonymous_avatar_40dp);
+                }
                 bitmap = BitmapUtil.centerCrop(mDefaultBitmap, d.width, d.height);
             } else {
                 bitmap = Bitmap.createBitmap(d.width, d.height, Bitmap.Config.ARGB_8888);
@@ -159,4 +230,67 @@ public class LetterTileProvider {
             return mTileLetterFontSizeSmall;
         }
     }
+
+    /**
+     * Writes how many tiles are cached, and how often they were reused, if any were drawn.
+     */
+    private static void dumpStats(String prefix, PrintWriter writer) {
+        if (sTileCache.hitCount() + sTileCache.missCount() == 0) {
+            return;
+        }
+        writer.print(prefix);
+        writer.println("LetterTileProvider:");
+        writer.print(prefix);
+        writer.print("  hits=");
+        writer.print(sTileCache.hitCount());
+        writer.print(" misses=");
+        writer.print(sTileCache.missCount());
+        writer.print(" evictions=");
+        writer.print(sTileCache.evictionCount());
+        writer.print(" bytes=");
+        writer.println(sTileCache.size());
+    }
+
+    /**
+     * Everything a finished tile depends on.
+     */
+    private static final class TileKey {
+        private final char mGlyph;
+        private final int mColor;
+        private final int mFontColor;
+        private final float mTextSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mCircle;
+        private final int mHashCode;
+
+        public TileKey(char glyph, int color, int fontColor, float textSize, int width, int height,
+                boolean circle) {
+            mGlyph = glyph;
+            mColor = color;
+            mFontColor = fontColor;
+            mTextSize = textSize;
+            mWidth = width;
+            mHeight = height;
+            mCircle = circle;
+            mHashCode = Objects.hashCode(glyph, color, fontColor, textSize, width, height, circle);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return mHashCode == other.mHashCode && mGlyph == other.mGlyph
+                    && mColor == other.mColor && mFontColor == other.mFontColor
+                    && mTextSize == other.mTextSize && mWidth == other.mWidth
+                    && mHeight == other.mHeight && mCircle == other.mCircle;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
 }
@@ -77,6 +77,13 @@ public final class MailPrefs extends VersionedPrefs {
         private static final String CACHED_ACTIVE_NOTIFICATION_SET =
                 "cache-active-notification-set";
 
+        /**
+         * Hidden preference used to cache the accounts and folders of the active notification
+         * set, so they can be restored without querying the providers
+         */
+        private static final String CACHED_ACTIVE_NOTIFICATION_SNAPSHOT =
+                "cache-active-notification-snapshot";
+
         /**
          * A string indicating whether the conversation photo teaser has been previously
          * shown and dismissed. This is the third version of it (thus the three at the end).
@@ -333,10 +340,21 @@ public final class MailPrefs extends VersionedPrefs {
     }
 
     /**
-     * Caches the current notification set.
+     * Returns the snapshot of the accounts and folders of the cached notification set, or null.
+     */
+    public String getActiveNotificationSnapshot() {
+        return getSharedPreferences()
+                .getString(PreferenceKeys.CACHED_ACTIVE_NOTIFICATION_SNAPSHOT, null);
+    }
+
+    /**
+     * Caches the current notification set, along with a snapshot of its accounts and folders
+     * (which may be null).
      */
-    public void cacheActiveNotificationSet(final Set<String> notificationSet) {
+    public void cacheActiveNotificationSet(final Set<String> notificationSet,
+            final String snapshot) {
         getEditor().putStringSet(PreferenceKeys.CACHED_ACTIVE_NOTIFICATION_SET, notificationSet)
+                .putString(PreferenceKeys.CACHED_ACTIVE_NOTIFICATION_SNAPSHOT, snapshot)
                 .apply();
     }
 
@@ -33,19 +33,19 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
 
     private static final String TAG = LogTag.getLogTag();
 
-    private final String mConversationUpper;
-    private final String mMessage;
-    private final String mConversationLower;
-    private final String mConversationLowerNoJs;
+    private final Template mConversationUpper;
+    private final Template mMessage;
+    private final Template mConversationLower;
+    private final Template mConversationLowerNoJs;
     private final String mLogo;
 
     public HtmlPrintTemplates(Context context) {
         super(context);
 
-        mConversationUpper = readTemplate(R.raw.template_print_conversation_upper);
-        mMessage = readTemplate(R.raw.template_print_message);
-        mConversationLower = readTemplate(R.raw.template_print_conversation_lower);
-        mConversationLowerNoJs = readTemplate(R.raw.template_print_conversation_lower_no_js);
+        mConversationUpper = compileTemplate(R.raw.template_print_conversation_upper);
+        mMessage = compileTemplate(R.raw.template_print_message);
+        mConversationLower = compileTemplate(R.raw.template_print_conversation_lower);
+        mConversationLowerNoJs = compileTemplate(R.raw.template_print_conversation_lower_no_js);
         mLogo = readTemplate(R.raw.logo);
     }
 
@@ -68,8 +68,11 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
         final String printedSubject =
                 Conversation.getSubjectForDisplay(mContext, null /* badgeText */, subject);
 
-        append(mConversationUpper, mLogo, mContext.getString(R.string.app_name),
-                printedSubject, numMessageString);
+        render(mConversationUpper)
+                .slot(mLogo)
+                .slot(mContext.getString(R.string.app_name))
+                .slot(printedSubject)
+                .slot(numMessageString);
 
         mInProgress = true;
     }
@@ -79,7 +82,13 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
      */
     public void appendMessage(String senderName, String senderAddress, String date,
             String recipients, String bodyHtml, String attachments) {
-        append(mMessage, senderName, senderAddress, date, recipients, bodyHtml, attachments);
+        render(mMessage)
+                .slot(senderName)
+                .slot(senderAddress)
+                .slot(date)
+                .slot(recipients)
+                .slot(bodyHtml)
+                .slot(attachments);
     }
 
     /**
@@ -96,7 +105,8 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
             throw new IllegalStateException("must call startConversation first");
         }
 
-        append(mConversationLower, mContext.getString(R.string.quoted_text_hidden_print));
+        render(mConversationLower)
+                .slot(mContext.getString(R.string.quoted_text_hidden_print));
 
         mInProgress = false;
 
@@ -117,7 +127,7 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
             throw new IllegalStateException("must call startConversation first");
         }
 
-        append(mConversationLowerNoJs);
+        render(mConversationLowerNoJs);
 
         mInProgress = false;
 
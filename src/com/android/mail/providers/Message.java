@@ -40,7 +40,8 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.mail.providers.UIProvider.MessageColumns;
 import com.android.mail.ui.HtmlMessage;
-import com.android.mail.utils.HtmlSanitizer;
+import com.android.mail.utils.ImgSrcScanner;
+import com.android.mail.utils.SanitizedHtmlCache;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
@@ -54,16 +55,10 @@ import java.util.regex.Pattern;
 
 
 public class Message implements Parcelable, HtmlMessage {
-    /**
-     * Regex pattern used to look for any inline images in message bodies, including Gmail-hosted
-     * relative-URL images, Gmail emoticons, and any external inline images (although we usually
-     * count on the server to detect external images).
-     */
-    private static Pattern INLINE_IMAGE_PATTERN = Pattern.compile("<img\\s+[^>]*src=",
-            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-
     // regex that matches content id surrounded by "<>" optionally.
     private static final Pattern REMOVE_OPTIONAL_BRACKETS = Pattern.compile("^<?([^>]+)>?$");
+    // max chars kept of each of the text and HTML bodies of an .eml file; the rest is clipped
+    private static final int MAX_EML_BODY_LENGTH = 1024 * 1024;
 
     /**
      * @see BaseColumns#_ID
@@ -225,6 +220,10 @@ public class Message implements Parcelable, HtmlMessage {
 
     private transient List<Attachment> mAttachments = null;
 
+    /** The body last checked by {@link #hasInlineImage()}, and the result. */
+    private transient String mInlineImageCheckedBody = null;
+    private transient boolean mHasInlineImage;
+
     @Override
     public int describeContents() {
         return 0;
@@ -461,13 +460,16 @@ public class Message implements Parcelable, HtmlMessage {
         ArrayList<Part> attachments = new ArrayList<Part>();
         MimeUtility.collectParts(mimeMessage, viewables, attachments);
 
-        ConversionUtilities.BodyFieldData data = ConversionUtilities.parseBodyFields(viewables);
+        ConversionUtilities.BodyFieldData data = ConversionUtilities.parseBodyFields(viewables,
+                true /* closeInputs */, MAX_EML_BODY_LENGTH);
 
         snippet = data.snippet;
+        clipped = data.isTruncated;
         bodyText = data.textContent;
 
         // sanitize the HTML found within the .eml file before consuming it
-        bodyHtml = HtmlSanitizer.sanitizeHtml(data.htmlContent);
+        bodyHtml = SanitizedHtmlCache.getInstance(context).getSanitizedHtml(emlFileUri,
+                data.htmlContent);
 
         // populate mAttachments
         mAttachments = Lists.newArrayList();
@@ -683,8 +685,23 @@ public class Message implements Parcelable, HtmlMessage {
      * @return true if a "Show Pictures" button should appear.
      */
     public boolean shouldShowImagePrompt() {
-        return !alwaysShowImages && (embedsExternalResources ||
-                (!TextUtils.isEmpty(bodyHtml) && INLINE_IMAGE_PATTERN.matcher(bodyHtml).find()));
+        return !alwaysShowImages && (embedsExternalResources || hasInlineImage());
+    }
+
+    /**
+     * Looks for any inline images in the body, including Gmail-hosted relative-URL images, Gmail
+     * emoticons, and any external inline images (although we usually count on the server to
+     * detect external images). The result is kept until the body changes.
+     */
+    private boolean hasInlineImage() {
+        if (TextUtils.isEmpty(bodyHtml)) {
+            return false;
+        }
+        if (bodyHtml != mInlineImageCheckedBody) {
+            mHasInlineImage = ImgSrcScanner.hasInlineImage(bodyHtml);
+            mInlineImageCheckedBody = bodyHtml;
+        }
+        return mHasInlineImage;
     }
 
     @Override
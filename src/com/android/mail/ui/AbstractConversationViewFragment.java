@@ -449,6 +449,9 @@ public abstract class AbstractConversationViewFragment extends Fragment implemen
     public void onDestroyView() {
         super.onDestroyView();
         mAccountObserver.unregisterAndDestroy();
+        if (mContactLoaderCallbacks != null) {
+            mContactLoaderCallbacks.cancelPhotoDecode();
+        }
     }
 
     /**
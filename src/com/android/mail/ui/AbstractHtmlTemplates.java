@@ -22,7 +22,7 @@ import android.content.res.Resources;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Formatter;
+import java.util.ArrayList;
 
 /**
  * Abstract class to support common functionality for both
@@ -31,8 +31,10 @@ import java.util.Formatter;
  *
  * Renders data into very simple string-substitution HTML templates.
  *
- * Templates should be UTF-8 encoded HTML with '%s' placeholders to be substituted upon render.
- * Plain-jane string substitution with '%s' is slightly faster than typed substitution.
+ * Templates should be UTF-8 encoded HTML with '%s' placeholders to be substituted upon render,
+ * and '%%' for a literal '%'. Each template is compiled once by {@link #compileTemplate(int)} into
+ * the literal text between its placeholders, so rendering is a series of plain appends into one
+ * builder with no format string parsing and no boxing of int arguments.
  */
 public abstract class AbstractHtmlTemplates {
     // TODO: refine. too expensive to iterate over cursor and pre-calculate total. so either
@@ -41,25 +43,26 @@ public abstract class AbstractHtmlTemplates {
     private static final int BUFFER_SIZE_CHARS = 64 * 1024;
 
     protected Context mContext;
-    protected Formatter mFormatter;
     protected StringBuilder mBuilder;
     protected boolean mInProgress = false;
 
+    private final Renderer mRenderer = new Renderer();
+
     public AbstractHtmlTemplates(Context context) {
         mContext = context;
     }
 
     public String emit() {
-        final String out = mFormatter.toString();
+        mRenderer.checkDone();
+        final String out = mBuilder.toString();
         // release the builder memory ASAP
-        mFormatter = null;
         mBuilder = null;
         return out;
     }
 
     public void reset() {
         mBuilder = new StringBuilder(BUFFER_SIZE_CHARS);
-        mFormatter = new Formatter(mBuilder, null /* no localization */);
+        mRenderer.reset();
     }
 
     protected String readTemplate(int id) throws Resources.NotFoundException {
@@ -89,7 +92,122 @@ public abstract class AbstractHtmlTemplates {
         }
     }
 
-    protected void append(String template, Object... args) {
-        mFormatter.format(template, args);
+    protected Template compileTemplate(int id) throws Resources.NotFoundException {
+        return new Template(readTemplate(id));
+    }
+
+    /**
+     * Starts appending the given template. Its slots must then be filled in order through the
+     * returned {@link Renderer}; the template is complete once the last slot is filled.
+     */
+    protected Renderer render(Template template) {
+        mRenderer.begin(template, mBuilder);
+        return mRenderer;
+    }
+
+    /**
+     * A template split at its '%s' placeholders. The literal before the first placeholder, between
+     * each pair, and after the last are kept in order; '%%' is already resolved to '%'.
+     */
+    protected static final class Template {
+        private final String[] mLiterals;
+
+        public Template(String source) {
+            final ArrayList<String> literals = new ArrayList<String>();
+            final StringBuilder literal = new StringBuilder();
+            final int length = source.length();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (source.charAt(i) != '%') {
+                    continue;
+                }
+                literal.append(source, start, i);
+                final char next = i + 1 < length ? source.charAt(i + 1) : 0;
+                if (next == 's') {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                } else if (next == '%') {
+                    literal.append('%');
+                } else {
+                    throw new IllegalArgumentException(
+                            "Unsupported placeholder in template at index " + i);
+                }
+                start = i + 2;
+                i++;
+            }
+            literal.append(source, start, length);
+            literals.add(literal.toString());
+            mLiterals = literals.toArray(new String[literals.size()]);
+        }
+
+        public int getSlotCount() {
+            return mLiterals.length - 1;
+        }
+    }
+
+    /**
+     * Fills the slots of the template being rendered, appending each value followed by the
+     * template's next literal.
+     */
+    public static final class Renderer {
+        private Template mTemplate;
+        private StringBuilder mOut;
+        private int mSlot;
+
+        private Renderer() {}
+
+        private void begin(Template template, StringBuilder out) {
+            checkDone();
+            mTemplate = template;
+            mOut = out;
+            mSlot = 0;
+            mOut.append(template.mLiterals[0]);
+            if (template.getSlotCount() == 0) {
+                mTemplate = null;
+            }
+        }
+
+        private void reset() {
+            mTemplate = null;
+            mOut = null;
+        }
+
+        private void checkDone() {
+            if (mTemplate != null) {
+                throw new IllegalStateException("Template rendered with only " + mSlot + " of "
+                        + mTemplate.getSlotCount() + " slots filled");
+            }
+        }
+
+        private StringBuilder out() {
+            if (mTemplate == null) {
+                throw new IllegalStateException("No template slots left to fill");
+            }
+            return mOut;
+        }
+
+        private Renderer next() {
+            mSlot++;
+            mOut.append(mTemplate.mLiterals[mSlot]);
+            if (mSlot == mTemplate.getSlotCount()) {
+                mTemplate = null;
+            }
+            return this;
+        }
+
+        public Renderer slot(String value) {
+            out().append(value);
+            return next();
+        }
+
+        public Renderer slot(int value) {
+            out().append(value);
+            return next();
+        }
+
+        public Renderer slot(boolean value) {
+            out().append(value);
+            return next();
+        }
     }
 }
@@ -22,6 +22,8 @@ import android.os.Bundle;
 import android.os.StrictMode;
 import android.support.v7.app.ActionBarActivity;
 
+import com.android.mail.utils.CacheRegistry;
+
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 
@@ -61,6 +63,7 @@ public abstract class AbstractMailActivity extends ActionBarActivity implements
 
         super.onCreate(savedInstanceState);
         mUiHandler.setEnabled(true);
+        CacheRegistry.listen(this);
     }
 
     @Override
@@ -96,6 +99,7 @@ public abstract class AbstractMailActivity extends ActionBarActivity implements
         // Both are still possible to use, and the supportlib dump reads from neither.
         getLoaderManager().dump(prefix, fd, writer, args);
         getFragmentManager().dump(prefix, fd, writer, args);
+        CacheRegistry.dump(prefix, writer);
     }
 
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import com.android.mail.utils.CacheRegistry;
+import com.android.mail.utils.DiskFileCache;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Keeps the finished thumbnails of image attachments on disk, so that reopening a conversation
+ * full of photos shows them without opening, subsampling and rotating every attachment again,
+ * even after the process was restarted.
+ * <p>
+ * Entries are the thumbnails as handed to the {@link AttachmentBitmapHolder} (already rotated to
+ * their EXIF orientation and subsampled for the tile), compressed, and keyed by a hash of the
+ * attachment's identifier URI and the tile size. Attachments don't change once received, so
+ * entries don't expire; the least recently used ones are evicted above {@link #MAX_DISK_BYTES}.
+ * <p>
+ * Does disk I/O, so must not be used from the main thread.
+ */
+final class AttachmentThumbnailCache implements CacheRegistry.Cache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final String DIR_NAME = "attachment_thumbnails";
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+
+    private static AttachmentThumbnailCache sInstance;
+
+    private final DiskFileCache mDiskCache;
+
+    private int mHits;
+    private int mMisses;
+    private int mWrites;
+
+    public static synchronized AttachmentThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AttachmentThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AttachmentThumbnailCache(Context context) {
+        mDiskCache = new DiskFileCache(new File(context.getCacheDir(), DIR_NAME), MAX_DISK_BYTES);
+        CacheRegistry.register(context, this);
+    }
+
+    /**
+     * Returns the thumbnail cached for this attachment at this size, or null if there is none.
+     */
+    public Bitmap get(Uri identifierUri, int width, int height) {
+        final String name = getName(identifierUri, width, height);
+        final File file = name != null ? mDiskCache.get(name) : null;
+        if (file == null) {
+            countLookup(false);
+            return null;
+        }
+        final Bitmap thumbnail = BitmapFactory.decodeFile(file.getPath());
+        if (thumbnail == null) {
+            LogUtils.w(LOG_TAG, "Unable to read attachment thumbnail %s", file);
+            mDiskCache.remove(file);
+            countLookup(false);
+            return null;
+        }
+        // Marks the entry as recently used for eviction
+        mDiskCache.touch(file);
+        countLookup(true);
+        return thumbnail;
+    }
+
+    /**
+     * Caches the thumbnail made for this attachment at this size.
+     */
+    public void put(Uri identifierUri, int width, int height, final Bitmap thumbnail) {
+        final String name = getName(identifierUri, width, height);
+        if (name == null || thumbnail == null) {
+            return;
+        }
+        final boolean written = mDiskCache.put(name, new DiskFileCache.EntryWriter() {
+            @Override
+            public boolean writeTo(OutputStream out) {
+                // Photos don't need lossless compression, but transparent images do
+                return thumbnail.hasAlpha()
+                        ? thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out)
+                        : thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        });
+        if (written) {
+            synchronized (this) {
+                mWrites++;
+            }
+        }
+    }
+
+    private synchronized void countLookup(boolean hit) {
+        if (hit) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+    }
+
+    /**
+     * Returns the name of the entry for the attachment and size, or null if it can't be computed.
+     */
+    private static String getName(Uri identifierUri, int width, int height) {
+        if (identifierUri == null || Uri.EMPTY.equals(identifierUri)) {
+            return null;
+        }
+        return DiskFileCache.hashKey(identifierUri.toString() + '#' + width + 'x' + height);
+    }
+
+    @Override
+    public void releaseMemory() {
+        // Entries are only kept on disk
+    }
+
+    /**
+     * Writes the hit ratio of the cache so far.
+     */
+    @Override
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("AttachmentThumbnailCache:");
+        writer.print(prefix);
+        writer.print("  hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" writes=");
+        writer.print(mWrites);
+        writer.print(" diskBytes=");
+        writer.println(mDiskCache.getBytes());
+    }
+}
@@ -97,6 +97,14 @@ public abstract class AttachmentTile extends RelativeLayout implements Attachmen
         ThumbnailLoadTask.setupThumbnailPreview(mAttachmentPreviewCache, this, mAttachment, null);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // Scrolled away; the next layout starts the load again if it is still needed
+        ThumbnailLoadTask.cancelThumbnailLoad(this);
+    }
+
     public Attachment getAttachment() {
         return mAttachment;
     }
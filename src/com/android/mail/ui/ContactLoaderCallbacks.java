@@ -20,60 +20,217 @@ package com.android.mail.ui;
 import android.app.LoaderManager;
 import android.content.Context;
 import android.content.Loader;
+import android.content.res.Resources;
 import android.database.DataSetObservable;
 import android.database.DataSetObserver;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Bundle;
 
 import com.android.mail.ContactInfo;
 import com.android.mail.ContactInfoSource;
+import com.android.mail.R;
 import com.android.mail.SenderInfoLoader;
+import com.android.mail.utils.BitmapPool;
+import com.android.mail.utils.BitmapUtil;
+import com.android.mail.utils.CacheRegistry;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Asynchronously loads contact data for all senders in the conversation,
  * and notifies observers when the data is ready.
+ * <p>
+ * The photos are decoded and framed in a circle off the main thread, ready to be shown by
+ * {@link com.android.mail.browse.MessageHeaderView}. Senders given to
+ * {@link #loadSenders(LoaderManager, int, List)} are looked up together, and their photos
+ * delivered one group after the other, so that the headers on screen get theirs first.
  */
 public class ContactLoaderCallbacks implements ContactInfoSource,
         LoaderManager.LoaderCallbacks<ImmutableMap<String, ContactInfo>> {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /**
+     * The photos as decoded, given back once cropped and framed, so that the next photo can be
+     * decoded into them. Decodes are at most twice the size of a header photo in each direction,
+     * so this holds a couple. Emptied under memory pressure.
+     */
+    private static final BitmapPool sDecodePool = new BitmapPool(512 * 1024);
+
+    static {
+        CacheRegistry.register(new CacheRegistry.Cache() {
+            @Override
+            public void releaseMemory() {
+                sDecodePool.clear();
+            }
+
+            @Override
+            public void dump(String prefix, PrintWriter writer) {
+                sDecodePool.dump(prefix, "ContactLoaderCallbacks decode pool", writer);
+            }
+        });
+    }
 
     private Set<String> mSenders;
+    /** Null when the senders were set without priorities. */
+    private List<Set<String>> mSendersByPriority;
     private ImmutableMap<String, ContactInfo> mContactInfoMap;
+    /** The senders whose photos are ready to show, by email. */
+    private final Map<String, FramedPhoto> mFramedPhotos = Maps.newHashMap();
+    private PhotoDecodeTask mDecodeTask;
     private DataSetObservable mObservable = new DataSetObservable();
 
+    private int mLoads;
+    private int mQueries;
+    /** The loader whose queries were last counted, and its query count at the time. */
+    private Loader<?> mCountedLoader;
+    private int mCountedQueries;
+
     private Context mContext;
+    private final int mPhotoWidth;
+    private final int mPhotoHeight;
 
     public ContactLoaderCallbacks(Context context) {
         mContext = context;
+        final Resources res = context.getResources();
+        mPhotoWidth = res.getDimensionPixelSize(R.dimen.contact_image_width);
+        mPhotoHeight = res.getDimensionPixelSize(R.dimen.contact_image_height);
     }
 
     public void setSenders(Set<String> emailAddresses) {
         mSenders = emailAddresses;
+        mSendersByPriority = null;
+    }
+
+    /**
+     * Looks up all of these senders with a single load, unless they have all been asked for
+     * already, e.g. when the conversation is rendered again. Senders asked for before are kept.
+     *
+     * @param sendersByPriority groups of senders whose photos are delivered one group after the
+     *                          other, e.g. those of expanded headers before those of
+     *                          super-collapsed ones
+     */
+    public void loadSenders(LoaderManager loaderManager, int loaderId,
+            List<Set<String>> sendersByPriority) {
+        final Set<String> senders = Sets.newHashSet();
+        for (Set<String> group : sendersByPriority) {
+            senders.addAll(group);
+        }
+        if (mSenders != null && mSendersByPriority != null && mSenders.containsAll(senders)) {
+            return;
+        }
+        if (mSenders != null) {
+            senders.addAll(mSenders);
+        }
+        mSenders = senders;
+        mSendersByPriority = ImmutableList.copyOf(sendersByPriority);
+        loaderManager.restartLoader(loaderId, Bundle.EMPTY, this);
     }
 
     @Override
     public Loader<ImmutableMap<String, ContactInfo>> onCreateLoader(int id, Bundle args) {
-        return new SenderInfoLoader(mContext, mSenders);
+        return new SenderInfoLoader(mContext, mSenders, false /* decodeBitmaps */);
     }
 
     @Override
     public void onLoadFinished(Loader<ImmutableMap<String, ContactInfo>> loader,
             ImmutableMap<String, ContactInfo> data) {
+        // Delivered again, e.g. when the fragment is started again, the load was already counted
+        final boolean redelivered = data != null && data == mContactInfoMap;
         mContactInfoMap = data;
-        mObservable.notifyChanged();
+        if (!redelivered) {
+            countLoad(loader);
+        }
+        LogUtils.i(LOG_TAG, "contact info for %d senders: loads=%d queries=%d",
+                data != null ? data.size() : 0, mLoads, mQueries);
+
+        cancelPhotoDecode();
+        // Photos framed by an earlier load are kept only while the sender's contact and photo
+        // are unchanged, e.g. not once the sender has been added to the contacts
+        boolean dropped = false;
+        final Iterator<Map.Entry<String, FramedPhoto>> it = mFramedPhotos.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, FramedPhoto> entry = it.next();
+            final ContactInfo info = data != null ? data.get(entry.getKey()) : null;
+            if (info == null || !entry.getValue().isFramedFrom(info)) {
+                it.remove();
+                dropped = true;
+            }
+        }
+        if (data == null || data.isEmpty()) {
+            mObservable.notifyChanged();
+            return;
+        }
+        if (dropped) {
+            mObservable.notifyChanged();
+        }
+        final List<Set<String>> groups = Lists.newArrayList();
+        if (mSendersByPriority != null) {
+            groups.addAll(mSendersByPriority);
+        }
+        // Whoever was not in a group comes last
+        groups.add(data.keySet());
+        mDecodeTask = new PhotoDecodeTask(data, groups,
+                ImmutableSet.copyOf(mFramedPhotos.keySet()));
+        mDecodeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void countLoad(Loader<?> loader) {
+        mLoads++;
+        if (loader instanceof SenderInfoLoader) {
+            // The loader counts the queries of all its loads, so only add those since last time
+            if (loader != mCountedLoader) {
+                mCountedLoader = loader;
+                mCountedQueries = 0;
+            }
+            final int queries = ((SenderInfoLoader) loader).getQueryCount();
+            mQueries += queries - mCountedQueries;
+            mCountedQueries = queries;
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<ImmutableMap<String, ContactInfo>> loader) {
+        cancelPhotoDecode();
+    }
+
+    /**
+     * Stops decoding photos, e.g. when the view of the fragment is destroyed. The next load
+     * decodes those still missing.
+     */
+    public void cancelPhotoDecode() {
+        if (mDecodeTask != null) {
+            mDecodeTask.cancel(false);
+            mDecodeTask = null;
+        }
     }
 
     @Override
     public ContactInfo getContactInfo(String email) {
+        final FramedPhoto framed = mFramedPhotos.get(email);
+        if (framed != null) {
+            return framed.framed;
+        }
         if (mContactInfoMap == null) {
             return null;
         }
-        return mContactInfoMap.get(email);
+        final ContactInfo info = mContactInfoMap.get(email);
+        // Until its photo is ready, only the contact is known
+        return info == null || info.photo == null ? info : new ContactInfo(info.contactUri);
     }
 
     @Override
@@ -93,4 +250,99 @@ public class ContactLoaderCallbacks implements ContactInfoSource,
     protected Set<String> getSenders() {
         return mSenders;
     }
+
+    /**
+     * Returns how many times contact info was loaded, and how many contact queries that took,
+     * since this was created (i.e. since the conversation was opened).
+     */
+    public int getLoadCount() {
+        return mLoads;
+    }
+
+    public int getQueryCount() {
+        return mQueries;
+    }
+
+    /**
+     * A sender's photo framed in a circle, and the contact info it was framed from.
+     */
+    private static class FramedPhoto {
+        final ContactInfo source;
+        final ContactInfo framed;
+
+        FramedPhoto(ContactInfo source, ContactInfo framed) {
+            this.source = source;
+            this.framed = framed;
+        }
+
+        boolean isFramedFrom(ContactInfo info) {
+            return Objects.equal(source.contactUri, info.contactUri) && source.photo == info.photo
+                    && Arrays.equals(source.photoBytes, info.photoBytes);
+        }
+    }
+
+    /**
+     * Decodes and frames the photos of one group of senders after the other, publishing each
+     * group as it is done.
+     */
+    private class PhotoDecodeTask extends AsyncTask<Void, Map<String, FramedPhoto>, Void> {
+        private final ImmutableMap<String, ContactInfo> mInfos;
+        private final List<Set<String>> mGroups;
+        /** Senders can be in several groups, but are only decoded for the first. */
+        private final Set<String> mDone;
+
+        PhotoDecodeTask(ImmutableMap<String, ContactInfo> infos, List<Set<String>> groups,
+                Set<String> framed) {
+            mInfos = infos;
+            mGroups = groups;
+            mDone = Sets.newHashSet(framed);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Void doInBackground(Void... params) {
+            for (Set<String> group : mGroups) {
+                final Map<String, FramedPhoto> framed = Maps.newHashMap();
+                for (String email : group) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    final ContactInfo info = mInfos.get(email);
+                    if (info != null && mDone.add(email)) {
+                        framed.put(email, new FramedPhoto(info, frame(info)));
+                    }
+                }
+                if (!framed.isEmpty()) {
+                    publishProgress(framed);
+                }
+            }
+            return null;
+        }
+
+        private ContactInfo frame(ContactInfo info) {
+            final Bitmap photo;
+            if (info.photo != null) {
+                photo = BitmapUtil.centerCrop(info.photo, mPhotoWidth, mPhotoHeight,
+                        true /* circle */, null /* pool */);
+            } else if (info.photoBytes != null) {
+                photo = BitmapUtil.decodeByteArrayWithCenterCrop(info.photoBytes, mPhotoWidth,
+                        mPhotoHeight, true /* circle */, sDecodePool);
+            } else {
+                photo = null;
+            }
+            if (photo == null) {
+                return new ContactInfo(info.contactUri);
+            }
+            return new ContactInfo(info.contactUri, photo);
+        }
+
+        @Override
+        protected void onProgressUpdate(Map<String, FramedPhoto>... values) {
+            if (isCancelled()) {
+                return;
+            }
+            mFramedPhotos.putAll(values[0]);
+            mObservable.notifyChanged();
+        }
+    }
 }
@@ -22,6 +22,7 @@ import android.content.ContentResolver;
 import com.android.bitmap.BitmapCache;
 import com.android.mail.bitmap.ContactResolver;
 import com.android.mail.browse.ConversationListFooterView;
+import com.android.mail.browse.OverlayViewPool;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Folder;
 
@@ -115,6 +116,12 @@ public interface ControllableActivity extends RestrictedActivity,
     BitmapCache getSenderImageCache();
     void resetSenderImageCache();
 
+    /**
+     * Returns the pool of conversation overlay views shared by all conversation views in this
+     * activity, or null if this activity does not show conversations.
+     */
+    OverlayViewPool getOverlayViewPool();
+
     /**
      * Shows help to user, could be in browser or another activity.
      */
@@ -603,6 +603,8 @@ public final class ConversationListFragment extends Fragment implements
         }
         mAccountObserver.unregisterAndDestroy();
         getAnimatedAdapter().cleanup();
+        // Bodies were prefetched for the neighbors of conversations in this list
+        MessageBodyPreparer.clearPrefetched();
         super.onDestroyView();
     }
 
@@ -70,6 +70,7 @@ import com.android.mail.browse.MailWebView.ContentSizeChangeListener;
 import com.android.mail.browse.MessageCursor;
 import com.android.mail.browse.MessageFooterView;
 import com.android.mail.browse.MessageHeaderView;
+import com.android.mail.browse.OverlayViewPool;
 import com.android.mail.browse.ScrollIndicatorsView;
 import com.android.mail.browse.SuperCollapsedBlock;
 import com.android.mail.browse.WebViewContextMenu;
@@ -94,6 +95,9 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -161,6 +165,8 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
     protected HtmlConversationTemplates mTemplates;
 
+    private final MessageBodyPreparer mBodyPreparer = new MessageBodyPreparer();
+
     private final MailJsBridge mJsBridge = new MailJsBridge();
 
     protected ConversationViewAdapter mAdapter;
@@ -178,6 +184,24 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
      */
     private String mTempBodiesHtml;
 
+    /**
+     * DOM ids of messages that were rendered without their body (see
+     * {@link #ENABLE_DEFERRED_BODIES}), mapped to whether the body is safe for images. Read from
+     * the JS bridge thread.
+     */
+    private final Map<String, Boolean> mDeferredBodies =
+            Collections.synchronizedMap(new HashMap<String, Boolean>());
+
+    /**
+     * DOM ids of deferred bodies not yet requested from JS, in document order. UI thread only.
+     */
+    private final List<String> mDeferredBodyQueue = Lists.newArrayList();
+
+    /**
+     * Length of the last document handed to WebView, for first paint logging.
+     */
+    private int mRenderedHtmlChars;
+
     private int  mMaxAutoLoadMessages;
 
     protected int mSideMarginPx;
@@ -219,6 +243,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         }
     };
 
+    private final Runnable mLoadDeferredBodies = new FragmentRunnable("loadDeferredBodies", this) {
+        @Override
+        public void go() {
+            loadNextDeferredBodies();
+        }
+    };
+
     private final Runnable mOnProgressDismiss = new FragmentRunnable("onProgressDismiss", this) {
         @Override
         public void go() {
@@ -231,6 +262,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
     };
 
     private static final boolean DEBUG_DUMP_CONVERSATION_HTML = false;
+    /**
+     * Render collapsed messages without their bodies, so the initial document only carries the
+     * expanded ones, and fill in the rest in small chunks after the page has loaded.
+     */
+    private static final boolean ENABLE_DEFERRED_BODIES = true;
+    private static final int DEFERRED_BODY_CHUNK_SIZE = 4;
+    private static final long DEFERRED_BODY_CHUNK_DELAY_MS = 50;
     private static final boolean DISABLE_OFFSCREEN_LOADING = false;
     private static final boolean DEBUG_DUMP_CURSOR_CONTENTS = false;
 
@@ -305,6 +343,7 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                 getLoaderManager(), this, this, getContactInfoSource(), this, this,
                 getListController(), this, mAddressCache, dateBuilder, mBidiFormatter, this);
         mConversationContainer.setOverlayAdapter(mAdapter);
+        mAdapter.getOverlayViewPool().warm();
 
         // set up snap header (the adapter usually does this with the other ones)
         mConversationContainer.getSnapHeader().initialize(
@@ -491,6 +530,7 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         mConversationContainer.setOverlayAdapter(null);
         mAdapter = null;
         resetLoadWaiting(); // be sure to unregister any active load observer
+        mBodyPreparer.clear();
         mViewsCreated = false;
     }
 
@@ -672,8 +712,14 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
     }
 
     private void renderConversation(MessageCursor messageCursor) {
+        mAdapter.getInflationStats().reset();
+        mBodyPreparer.prepare(messageCursor, getVisibleMessages(messageCursor));
         final String convHtml = renderMessageBodies(messageCursor, mEnableContentReadySignal);
         timerMark("rendered conversation");
+        loadContactInfo(messageCursor);
+        if (Utils.sConvLoadTimer.isEnabled()) {
+            timerMark(mBodyPreparer.getTimings());
+        }
 
         if (DEBUG_DUMP_CONVERSATION_HTML) {
             java.io.FileWriter fw = null;
@@ -699,10 +745,40 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         }
 
         mWebView.loadDataWithBaseURL(mBaseUri, convHtml, "text/html", "utf-8", null);
+        mRenderedHtmlChars = convHtml.length();
         mWebViewLoadedData = true;
         mWebViewLoadStartMs = SystemClock.uptimeMillis();
     }
 
+    /**
+     * Looks up the senders of all messages with a single load, before their headers are shown.
+     * Their photos are delivered for the expanded headers first, then for the collapsed ones, and
+     * last for those in super-collapsed blocks.
+     */
+    private void loadContactInfo(MessageCursor messageCursor) {
+        final Set<String> expanded = Sets.newHashSet();
+        final Set<String> collapsed = Sets.newHashSet();
+        final Set<String> superCollapsed = Sets.newHashSet();
+        int pos = -1;
+        while (messageCursor.moveToPosition(++pos)) {
+            final ConversationMessage msg = messageCursor.getMessage();
+            final Address from = getAddress(msg.getFrom());
+            if (from == null) {
+                continue;
+            }
+            final Integer state = mViewState.getExpansionState(msg);
+            if (state != null && ExpansionState.isExpanded(state)) {
+                expanded.add(from.getAddress());
+            } else if (state != null && ExpansionState.isSuperCollapsed(state)) {
+                superCollapsed.add(from.getAddress());
+            } else {
+                collapsed.add(from.getAddress());
+            }
+        }
+        getContactInfoSource().loadSenders(getLoaderManager(), CONTACT_LOADER,
+                ImmutableList.<Set<String>>of(expanded, collapsed, superCollapsed));
+    }
+
     protected String getSdCardFilePath() {
         return "/sdcard/conv" + mConversation.id + ".html";
     }
@@ -733,6 +809,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
         mAdapter.clear();
 
+        getHandler().removeCallbacks(mLoadDeferredBodies);
+        mDeferredBodies.clear();
+        mDeferredBodyQueue.clear();
+
         // re-evaluate the message parts of the view state, since the messages may have changed
         // since the previous render
         final ConversationViewState prevState = mViewState;
@@ -763,26 +843,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                     msg.alwaysShowImages || prevState.getShouldShowImages(msg);
             allowNetworkImages |= safeForImages;
 
-            final Integer savedExpanded = prevState.getExpansionState(msg);
-            final int expandedState;
-            if (savedExpanded != null) {
-                if (ExpansionState.isSuperCollapsed(savedExpanded) && messageCursor.isLast()) {
-                    // override saved state when this is now the new last message
-                    // this happens to the second-to-last message when you discard a draft
-                    expandedState = ExpansionState.EXPANDED;
-                } else {
-                    expandedState = savedExpanded;
-                }
-            } else {
-                // new messages that are not expanded default to being eligible for super-collapse
-                if (msg.starred || !msg.read || messageCursor.isLast()) {
-                    expandedState = ExpansionState.EXPANDED;
-                } else if (messageCursor.isFirst()) {
-                    expandedState = ExpansionState.COLLAPSED;
-                } else {
-                    expandedState = ExpansionState.SUPER_COLLAPSED;
-                    hasDraft |= msg.isDraft();
-                }
+            final int expandedState = getExpansionState(prevState, msg, messageCursor);
+            if (prevState.getExpansionState(msg) == null
+                    && ExpansionState.isSuperCollapsed(expandedState)) {
+                hasDraft |= msg.isDraft();
             }
             mViewState.setShouldShowImages(msg, prevState.getShouldShowImages(msg));
             mViewState.setExpansionState(msg, expandedState);
@@ -845,6 +909,52 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                 applyTransforms);
     }
 
+    /**
+     * Returns how the message at the cursor's position is shown when the conversation is
+     * rendered, given the state of the previous render.
+     */
+    private static int getExpansionState(ConversationViewState prevState,
+            ConversationMessage msg, MessageCursor messageCursor) {
+        final Integer savedExpanded = prevState.getExpansionState(msg);
+        if (savedExpanded != null) {
+            if (ExpansionState.isSuperCollapsed(savedExpanded) && messageCursor.isLast()) {
+                // override saved state when this is now the new last message
+                // this happens to the second-to-last message when you discard a draft
+                return ExpansionState.EXPANDED;
+            }
+            return savedExpanded;
+        }
+        // new messages that are not expanded default to being eligible for super-collapse
+        if (msg.starred || !msg.read || messageCursor.isLast()) {
+            return ExpansionState.EXPANDED;
+        } else if (messageCursor.isFirst()) {
+            return ExpansionState.COLLAPSED;
+        }
+        return ExpansionState.SUPER_COLLAPSED;
+    }
+
+    /**
+     * Returns the messages whose bodies go into the conversation document right away, mapped to
+     * whether they are safe for images, for {@link MessageBodyPreparer#prepare}. Bodies of the
+     * others are deferred, or not rendered at all for super-collapsed messages.
+     */
+    private Map<ConversationMessage, Boolean> getVisibleMessages(MessageCursor messageCursor) {
+        final Map<ConversationMessage, Boolean> visible =
+                new IdentityHashMap<ConversationMessage, Boolean>();
+        final boolean alwaysShowImages = shouldAlwaysShowImages();
+        int pos = -1;
+        while (messageCursor.moveToPosition(++pos)) {
+            final ConversationMessage msg = messageCursor.getMessage();
+            final int expandedState = getExpansionState(mViewState, msg, messageCursor);
+            if (ExpansionState.isExpanded(expandedState) || (!ENABLE_DEFERRED_BODIES
+                    && !ExpansionState.isSuperCollapsed(expandedState))) {
+                visible.put(msg, alwaysShowImages || msg.alwaysShowImages
+                        || mViewState.getShouldShowImages(msg));
+            }
+        }
+        return visible;
+    }
+
     private MessageHeaderItem getLastMessageHeaderItem() {
         int pos = mAdapter.getCount();
         while (--pos >= 0) {
@@ -877,8 +987,18 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int headerPx = measureOverlayHeight(headerPos);
         final int footerPx = measureOverlayHeight(footerPos);
 
+        final boolean deferBody = ENABLE_DEFERRED_BODIES && !expanded;
+        if (deferBody) {
+            final String domId = mTemplates.getMessageDomId(msg);
+            mDeferredBodies.put(domId, safeForImages);
+            mDeferredBodyQueue.add(domId);
+        }
+
+        final String body = deferBody ? "" : mBodyPreparer.getBody(msg, safeForImages);
+        timerMark("prepared message body");
+
         mTemplates.appendMessageHtml(msg, expanded, safeForImages,
-                mWebView.screenPxToWebPx(headerPx), mWebView.screenPxToWebPx(footerPx));
+                mWebView.screenPxToWebPx(headerPx), mWebView.screenPxToWebPx(footerPx), body);
         timerMark("rendered message");
     }
 
@@ -932,6 +1052,33 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         return mTemplates.emit();
     }
 
+    /**
+     * Asks JS to fetch the next chunk of deferred message bodies, and schedules the chunk after.
+     */
+    private void loadNextDeferredBodies() {
+        if (!mViewsCreated || mDeferredBodyQueue.isEmpty()) {
+            return;
+        }
+        final int count = Math.min(DEFERRED_BODY_CHUNK_SIZE, mDeferredBodyQueue.size());
+        final List<String> chunk = mDeferredBodyQueue.subList(0, count);
+        loadDeferredBodies(chunk);
+        chunk.clear();
+        if (!mDeferredBodyQueue.isEmpty()) {
+            getHandler().postDelayed(mLoadDeferredBodies, DEFERRED_BODY_CHUNK_DELAY_MS);
+        }
+    }
+
+    private void loadDeferredBodies(List<String> domIds) {
+        final StringBuilder ids = new StringBuilder();
+        for (String domId : domIds) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append('"').append(domId).append('"');
+        }
+        mWebView.loadUrl("javascript:replaceMessageBodies([" + ids + "]);");
+    }
+
     protected int measureOverlayHeight(int position) {
         return measureOverlayHeight(mAdapter.getItem(position));
     }
@@ -944,12 +1091,28 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
      * <p>
      * After measuring the height, this method also saves the height in the
      * {@link ConversationOverlayItem} for later use in overlay positioning.
+     * <p>
+     * Heights of items with a measurement key are remembered in the activity's
+     * {@link OverlayViewPool}, and not measured again for the same key and width.
      *
      * @param convItem adapter item with data to render and measure
      * @return height of the rendered view in screen px
      */
     private int measureOverlayHeight(ConversationOverlayItem convItem) {
         final int type = convItem.getType();
+        final Object key = convItem.getMeasurementKey();
+        // The width overlays are actually measured against
+        final int width = mConversationContainer.getOverlayMeasureWidth();
+        final OverlayViewPool pool = mAdapter.getOverlayViewPool();
+        if (key != null) {
+            final int cachedPx = pool.getCachedHeight(type, width, key);
+            if (cachedPx >= 0) {
+                convItem.setHeight(cachedPx);
+                convItem.markMeasurementValid();
+                mAdapter.getInflationStats().onMeasured(true /* cached */);
+                return cachedPx;
+            }
+        }
 
         final View convertView = mConversationContainer.getScrapView(type);
         final View hostView = mAdapter.getView(convItem, convertView, mConversationContainer,
@@ -961,6 +1124,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int heightPx = mConversationContainer.measureOverlay(hostView);
         convItem.setHeight(heightPx);
         convItem.markMeasurementValid();
+        if (key != null) {
+            pool.putCachedHeight(type, width, key, heightPx);
+        }
+        mAdapter.getInflationStats().onMeasured(false /* cached */);
 
         return heightPx;
     }
@@ -1006,8 +1173,13 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int h = mWebView.screenPxToWebPx(newSpacerHeightPx);
         LogUtils.i(LAYOUT_TAG, "setting HTML spacer expanded=%s h=%dwebPx (%dscreenPx)",
                 item.isExpanded(), h, newSpacerHeightPx);
+        final String domId = mTemplates.getMessageDomId(item.getMessage());
+        if (item.isExpanded() && mDeferredBodyQueue.remove(domId)) {
+            // the body has not been filled in yet, so do that before showing it
+            loadDeferredBodies(Collections.singletonList(domId));
+        }
         mWebView.loadUrl(String.format("javascript:setMessageBodyVisible('%s', %s, %s);",
-                mTemplates.getMessageDomId(item.getMessage()), item.isExpanded(), h));
+                domId, item.isExpanded(), h));
 
         mViewState.setExpansionState(item.getMessage(),
                 item.isExpanded() ? ExpansionState.EXPANDED : ExpansionState.COLLAPSED);
@@ -1317,24 +1489,19 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
             LogUtils.d(LOG_TAG, "IN CVF.onPageFinished, url=%s fragment=%s wv=%s t=%sms", url,
                     ConversationViewFragment.this, view,
                     (SystemClock.uptimeMillis() - mWebViewLoadStartMs));
+            LogUtils.i(LOG_TAG, "CVF first paint: t=%sms htmlChars=%s deferredBodies=%s"
+                    + " overlays: %s", (SystemClock.uptimeMillis() - mWebViewLoadStartMs),
+                    mRenderedHtmlChars, mDeferredBodyQueue.size(), mAdapter.getInflationStats());
 
             ensureContentSizeChangeListener();
 
+            // now that the expanded messages are showing, fill in the rest
+            getHandler().removeCallbacks(mLoadDeferredBodies);
+            getHandler().postDelayed(mLoadDeferredBodies, DEFERRED_BODY_CHUNK_DELAY_MS);
+
             if (!mEnableContentReadySignal) {
                 revealConversation();
             }
-
-            final Set<String> emailAddresses = Sets.newHashSet();
-            final List<Address> cacheCopy;
-            synchronized (mAddressCache) {
-                cacheCopy = ImmutableList.copyOf(mAddressCache.values());
-            }
-            for (Address addr : cacheCopy) {
-                emailAddresses.add(addr.getAddress());
-            }
-            final ContactLoaderCallbacks callbacks = getContactInfoSource();
-            callbacks.setSenders(emailAddresses);
-            getLoaderManager().restartLoader(CONTACT_LOADER, Bundle.EMPTY, callbacks);
         }
 
         @Override
@@ -1407,6 +1574,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
                 while (cursor.moveToPosition(++pos)) {
                     final ConversationMessage msg = cursor.getMessage();
                     if (TextUtils.equals(domId, mTemplates.getMessageDomId(msg))) {
+                        final Boolean deferredSafeForImages = mDeferredBodies.get(domId);
+                        if (deferredSafeForImages != null) {
+                            return mBodyPreparer.getBody(msg, deferredSafeForImages);
+                        }
                         return HtmlConversationTemplates.wrapMessageBody(msg.getBodyAsHtml());
                     }
                 }
@@ -324,7 +324,7 @@ public class FolderListFragment extends ListFragment implements
                 AVATAR_IMAGES_PREVIEWS_CACHE_NON_POOLED_FRACTION,
                 AVATAR_IMAGES_PREVIEWS_CACHE_NULL_CAPACITY);
         mContactResolver = new ContactResolver(getActivity().getContentResolver(),
-                mImagesCache);
+                mImagesCache, getActivity());
 
         if (mMiniDrawerEnabled) {
             setupMiniDrawerAccountsAdapter();
@@ -35,6 +35,7 @@ import android.widget.ListView;
 import com.android.bitmap.BitmapCache;
 import com.android.mail.R;
 import com.android.mail.bitmap.ContactResolver;
+import com.android.mail.browse.OverlayViewPool;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Folder;
 import com.android.mail.providers.FolderWatcher;
@@ -446,6 +447,12 @@ public class FolderSelectionActivity extends ActionBarActivity implements OnClic
         return null;
     }
 
+    @Override
+    public OverlayViewPool getOverlayViewPool() {
+        // Unsupported
+        return null;
+    }
+
     @Override
     public void resetSenderImageCache() {
         // Unsupported
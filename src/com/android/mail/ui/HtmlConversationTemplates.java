@@ -22,13 +22,13 @@ import android.support.v4.text.TextUtilsCompat;
 import android.support.v4.view.ViewCompat;
 
 import com.android.mail.R;
+import com.android.mail.utils.ImgSrcScanner;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.Locale;
-import java.util.regex.Pattern;
 
 /**
  * Renders data into very simple string-substitution HTML templates for conversation view.
@@ -43,46 +43,14 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 
     private static final String TAG = LogTag.getLogTag();
 
-    /**
-     * Pattern for HTML img tags with a "src" attribute where the value is an absolutely-specified
-     * HTTP or HTTPS URL. In other words, these are images with valid URLs that we should munge to
-     * prevent WebView from firing bad onload handlers for them. Part of the workaround for
-     * b/5522414.
-     *
-     * Pattern documentation:
-     * There are 3 top-level parts of the pattern:
-     * 1. required preceding string
-     * 2. the literal string "src"
-     * 3. required trailing string
-     *
-     * The preceding string must be an img tag "<img " with intermediate spaces allowed. The
-     * trailing whitespace is required.
-     * Non-whitespace chars are allowed before "src", but if they are present, they must be followed
-     * by another whitespace char. The idea is to allow other attributes, and avoid matching on
-     * "src" in a later attribute value as much as possible.
-     *
-     * The following string must contain "=" and "http", with intermediate whitespace and single-
-     * and double-quote allowed in between. The idea is to avoid matching Gmail-hosted relative URLs
-     * for inline attachment images of the form "?view=KEYVALUES".
-     *
-     */
-    private static final Pattern sAbsoluteImgUrlPattern = Pattern.compile(
-            "(<\\s*img\\s+(?:[^>]*\\s+)?)src(\\s*=[\\s'\"]*http)", Pattern.CASE_INSENSITIVE
-                    | Pattern.MULTILINE);
-    /**
-     * The text replacement for {@link #sAbsoluteImgUrlPattern}. The "src" attribute is set to
-     * something inert and not left unset to minimize interactions with existing JS.
-     */
-    private static final String IMG_URL_REPLACEMENT = "$1src='data:' blocked-src$2";
-
     private static final String LEFT_TO_RIGHT_TRIANGLE = "\u25B6 ";
     private static final String RIGHT_TO_LEFT_TRIANGLE = "\u25C0 ";
 
     private static boolean sLoadedTemplates;
-    private static String sSuperCollapsed;
-    private static String sMessage;
-    private static String sConversationUpper;
-    private static String sConversationLower;
+    private static Template sSuperCollapsed;
+    private static Template sMessage;
+    private static Template sConversationUpper;
+    private static Template sConversationLower;
 
     public HtmlConversationTemplates(Context context) {
         super(context);
@@ -91,10 +59,10 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         // them in memory.
         if (!sLoadedTemplates) {
             sLoadedTemplates = true;
-            sSuperCollapsed = readTemplate(R.raw.template_super_collapsed);
-            sMessage = readTemplate(R.raw.template_message);
-            sConversationUpper = readTemplate(R.raw.template_conversation_upper);
-            sConversationLower = readTemplate(R.raw.template_conversation_lower);
+            sSuperCollapsed = compileTemplate(R.raw.template_super_collapsed);
+            sMessage = compileTemplate(R.raw.template_message);
+            sConversationUpper = compileTemplate(R.raw.template_conversation_upper);
+            sConversationLower = compileTemplate(R.raw.template_conversation_lower);
         }
     }
 
@@ -103,12 +71,19 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
             throw new IllegalStateException("must call startConversation first");
         }
 
-        append(sSuperCollapsed, firstCollapsed, blockHeight);
+        render(sSuperCollapsed)
+                .slot(firstCollapsed)
+                .slot(blockHeight);
     }
 
+    /**
+     * Munges img tags with a "src" attribute where the value is an absolutely-specified HTTP or
+     * HTTPS URL, to prevent WebView from firing bad onload handlers for them. Part of the
+     * workaround for b/5522414. See {@link ImgSrcScanner#blockAbsoluteImgUrls(String)}.
+     */
     @VisibleForTesting
     static String replaceAbsoluteImgUrls(final String html) {
-        return sAbsoluteImgUrlPattern.matcher(html).replaceAll(IMG_URL_REPLACEMENT);
+        return ImgSrcScanner.blockAbsoluteImgUrls(html);
     }
 
     /**
@@ -129,41 +104,67 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 
     public void appendMessageHtml(HtmlMessage message, boolean isExpanded,
             boolean safeForImages, int headerHeight, int footerHeight) {
+        appendMessageHtml(message, isExpanded, safeForImages, headerHeight, footerHeight,
+                prepareMessageBody(message, safeForImages));
+    }
+
+    /**
+     * @param preparedBody the message body as returned by {@link #prepareMessageBody}, or an
+     * empty string to render the message without its body for now. The caller then fills it in
+     * later through JS, so that the document can be handed to WebView without first copying every
+     * body into it.
+     */
+    public void appendMessageHtml(HtmlMessage message, boolean isExpanded,
+            boolean safeForImages, int headerHeight, int footerHeight, String preparedBody) {
 
         final String bodyDisplay = isExpanded ? "block" : "none";
         final String expandedClass = isExpanded ? "expanded" : "";
         final String showImagesClass = safeForImages ? "mail-show-images" : "";
 
-        String body = message.getBodyAsHtml();
+        render(sMessage)
+                .slot(getMessageDomId(message))
+                .slot(expandedClass)
+                .slot(headerHeight)
+                .slot(showImagesClass)
+                .slot(bodyDisplay)
+                .slot(preparedBody)
+                .slot(bodyDisplay)
+                .slot(footerHeight);
+    }
+
+    /**
+     * Returns the message body as it is inserted into the conversation document.
+     */
+    public static String prepareMessageBody(HtmlMessage message, boolean safeForImages) {
+        return prepareMessageBody(message.getBodyAsHtml(),
+                safeForImages || !message.embedsExternalResources());
+    }
 
+    /**
+     * Returns the given body HTML as it is inserted into the conversation document.
+     *
+     * @param safeForImages false to keep WebView from loading absolutely-specified images
+     */
+    public static String prepareMessageBody(String body, boolean safeForImages) {
         /* Work around a WebView bug (5522414) in setBlockNetworkImage that causes img onload event
          * handlers to fire before an image is loaded.
          * WebView will report bad dimensions when revealing inline images with absolute URLs, but
          * we can prevent WebView from ever seeing those images by changing all img "src" attributes
          * into "gm-src" before loading the HTML. Parsing the potentially dirty HTML input is
-         * prohibitively expensive with TagSoup, so use a little regular expression instead.
+         * prohibitively expensive with TagSoup, so use a little linear scanner instead.
          *
          * To limit the scope of this workaround, only use it on messages that the server claims to
          * have external resources, and even then, only use it on img tags where the src is absolute
          * (i.e. url does not begin with "?"). The existing JavaScript implementation of this
          * attribute swap will continue to handle inline image attachments (they have relative
-         * URLs) and any false negatives that the regex misses. This maintains overall security
-         * level by not relying solely on the regex.
+         * URLs) and any false negatives that the scanner misses. This maintains overall security
+         * level by not relying solely on the scanner.
          */
-        if (!safeForImages && message.embedsExternalResources()) {
+        if (!safeForImages) {
             body = replaceAbsoluteImgUrls(body);
         }
 
-        append(sMessage,
-                getMessageDomId(message),
-                expandedClass,
-                headerHeight,
-                showImagesClass,
-                bodyDisplay,
-                wrapMessageBody(body),
-                bodyDisplay,
-                footerHeight
-        );
+        return wrapMessageBody(body);
     }
 
     public String getMessageDomId(HtmlMessage msg) {
@@ -183,7 +184,11 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         reset();
         final String border = Utils.isRunningKitkatOrLater() ?
                 "img[blocked-src] { border: 1px solid #CCCCCC; }" : "";
-        append(sConversationUpper, viewportWidth, border, sideMargin, conversationHeaderHeight);
+        render(sConversationUpper)
+                .slot(viewportWidth)
+                .slot(border)
+                .slot(sideMargin)
+                .slot(conversationHeaderHeight);
         mInProgress = true;
     }
 
@@ -200,12 +205,21 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
                 == ViewCompat.LAYOUT_DIRECTION_RTL;
         final String showElided = (isRtl ? RIGHT_TO_LEFT_TRIANGLE : LEFT_TO_RIGHT_TRIANGLE) +
                 mContext.getString(R.string.show_elided);
-        append(sConversationLower, convFooterPx, contentReadyClass,
-                mContext.getString(R.string.hide_elided),
-                showElided, docBaseUri, conversationBaseUri, viewportWidth, webviewWidth,
-                enableContentReadySignal, normalizeMessageWidths,
-                enableMungeTables, enableMungeImages, Utils.isRunningKitkatOrLater(),
-                mContext.getString(R.string.forms_are_disabled));
+        render(sConversationLower)
+                .slot(convFooterPx)
+                .slot(contentReadyClass)
+                .slot(mContext.getString(R.string.hide_elided))
+                .slot(showElided)
+                .slot(docBaseUri)
+                .slot(conversationBaseUri)
+                .slot(viewportWidth)
+                .slot(webviewWidth)
+                .slot(enableContentReadySignal)
+                .slot(normalizeMessageWidths)
+                .slot(enableMungeTables)
+                .slot(enableMungeImages)
+                .slot(Utils.isRunningKitkatOrLater())
+                .slot(mContext.getString(R.string.forms_are_disabled));
 
         mInProgress = false;
 
@@ -42,6 +42,7 @@ import com.android.mail.R;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.analytics.AnalyticsTimer;
 import com.android.mail.bitmap.ContactResolver;
+import com.android.mail.browse.OverlayViewPool;
 import com.android.mail.compose.ComposeActivity;
 import com.android.mail.providers.Account;
 import com.android.mail.providers.Folder;
@@ -88,6 +89,7 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
     protected static String sAccountName = null;
 
     private BitmapCache mSendersImageCache;
+    private OverlayViewPool mOverlayViewPool;
 
     private CustomViewToolbar mCustomViewToolbar;
 
@@ -332,6 +334,10 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
         super.onDestroy();
         mController.onDestroy();
 
+        if (mOverlayViewPool != null) {
+            mOverlayViewPool.clear();
+        }
+
         if (mCustomViewToolbar != null) {
             mCustomViewToolbar.onDestroy();
         }
@@ -463,7 +469,7 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
 
     @Override
     public ContactResolver getContactResolver(ContentResolver resolver, BitmapCache bitmapCache) {
-        return new ContactResolver(resolver, bitmapCache);
+        return new ContactResolver(resolver, bitmapCache, this);
     }
 
     @Override
@@ -476,6 +482,14 @@ public class MailActivity extends AbstractMailActivity implements ControllableAc
         mSendersImageCache = createNewSenderImageCache();
     }
 
+    @Override
+    public OverlayViewPool getOverlayViewPool() {
+        if (mOverlayViewPool == null) {
+            mOverlayViewPool = new OverlayViewPool(this);
+        }
+        return mOverlayViewPool;
+    }
+
     private BitmapCache createNewSenderImageCache() {
         return new UnrefedBitmapCache(Utils.isLowRamDevice(this) ?
                 0 : SENDERS_IMAGES_CACHE_TARGET_SIZE_BYTES,
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.mail.browse.ConversationMessage;
+import com.android.mail.browse.MessageCursor;
+import com.android.mail.utils.CacheRegistry;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares the conversation view HTML of the message bodies that are shown right away (the
+ * expanded messages of a {@link MessageCursor}) on a small worker pool, so that the in-order
+ * assembly of the conversation document on the UI thread only has to pick up finished bodies.
+ * Bodies of the other messages are only prepared when they are asked for, which happens off the
+ * UI thread once the conversation is on screen.
+ *
+ * Preparing a body means converting it to HTML ({@link ConversationMessage#getBodyAsHtml()}, which
+ * linkifies plain text bodies) and, for messages with external resources, rewriting absolute image
+ * URLs (see {@link HtmlConversationTemplates#prepareMessageBody}). Only the variant for the image
+ * setting at the time is kept; if the setting has changed when the body is asked for, that
+ * variant is prepared again.
+ *
+ * Bodies of conversations the user is likely to swipe to next can be prepared ahead of time with
+ * {@link #prefetch(ConversationMessage)}. These are held in a small process-wide store, capped at
+ * {@link #MAX_PREFETCHED_CHARS}, and handed over by {@link #prepare(MessageCursor, Map)} when the
+ * conversation is actually opened.
+ */
+public class MessageBodyPreparer {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(POOL_SIZE,
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "MessageBodyPreparer #" + mCount.incrementAndGet());
+                }
+            });
+
+    /**
+     * Upper bound on the total length of prefetched bodies kept around waiting to be used.
+     */
+    private static final int MAX_PREFETCHED_CHARS = 512 * 1024;
+
+    private static class PreparedBody {
+        final String mHtml;
+        /** Whether absolutely-specified images were left for WebView to load. */
+        final boolean mSafeForImages;
+
+        PreparedBody(String html, boolean safeForImages) {
+            mHtml = html;
+            mSafeForImages = safeForImages;
+        }
+
+        /**
+         * Returns whether this is the body to show with the given image setting; bodies without
+         * external resources are the same either way.
+         */
+        boolean matches(ConversationMessage msg, boolean safeForImages) {
+            return mSafeForImages == safeForImages || !msg.embedsExternalResources();
+        }
+
+        int length() {
+            return mHtml.length();
+        }
+    }
+
+    /**
+     * A body prepared ahead of time, along with enough of the message it was prepared from to
+     * tell whether the message has changed since.
+     */
+    private static class PrefetchedBody {
+        final PreparedBody mBody;
+        final int mHtmlHash;
+        final int mTextHash;
+        final boolean mEmbedsExternalResources;
+
+        PrefetchedBody(ConversationMessage msg, PreparedBody body) {
+            mBody = body;
+            mHtmlHash = hash(msg.bodyHtml);
+            mTextHash = hash(msg.bodyText);
+            mEmbedsExternalResources = msg.embedsExternalResources();
+        }
+
+        boolean matches(ConversationMessage msg) {
+            return mHtmlHash == hash(msg.bodyHtml) && mTextHash == hash(msg.bodyText)
+                    && mEmbedsExternalResources == msg.embedsExternalResources();
+        }
+
+        private static int hash(String s) {
+            return s == null ? 0 : s.hashCode() * 31 + s.length();
+        }
+    }
+
+    /**
+     * Prefetched bodies by message URI, least recently stored first. Guarded by itself.
+     */
+    private static final LinkedHashMap<String, PrefetchedBody> sPrefetched =
+            new LinkedHashMap<String, PrefetchedBody>();
+    private static int sPrefetchedChars;
+    private static int sPrefetchStored;
+    private static int sPrefetchUsed;
+    private static int sPrefetchDiscarded;
+
+    static {
+        CacheRegistry.register(new CacheRegistry.Cache() {
+            @Override
+            public void releaseMemory() {
+                clearPrefetched();
+            }
+
+            @Override
+            public void dump(String prefix, PrintWriter writer) {
+                dumpStats(prefix, writer);
+            }
+        });
+    }
+
+    /**
+     * Keyed by message instance: a new cursor brings new instances, and anything prepared for the
+     * old instances is dropped. Accessed from the UI thread and the JS bridge thread.
+     */
+    private final Map<ConversationMessage, FutureTask<PreparedBody>> mBodies =
+            new IdentityHashMap<ConversationMessage, FutureTask<PreparedBody>>();
+
+    // Per-stage timings, summed over all bodies since the last prepare() that submitted any.
+    // Updated from the workers, the UI thread and the JS bridge thread.
+    private final AtomicLong mToHtmlMs = new AtomicLong();
+    private final AtomicLong mRewriteMs = new AtomicLong();
+    private final AtomicLong mWaitMs = new AtomicLong();
+    private final AtomicInteger mInlineCount = new AtomicInteger();
+
+    /**
+     * Starts preparing the bodies of the given messages of the cursor, in cursor order, unless
+     * they are already prepared or in progress. Bodies of the cursor's other messages that were
+     * prefetched or prepared before are kept for {@link #getBody}; nothing else is started for
+     * them. Should be called on the UI thread as soon as the cursor is loaded.
+     *
+     * @param visible the messages whose bodies are rendered right away, mapped to whether they
+     * are safe for images
+     */
+    public void prepare(MessageCursor cursor, Map<ConversationMessage, Boolean> visible) {
+        final Map<ConversationMessage, FutureTask<PreparedBody>> current =
+                new IdentityHashMap<ConversationMessage, FutureTask<PreparedBody>>();
+        int submitted = 0;
+        synchronized (mBodies) {
+            int pos = -1;
+            while (cursor.moveToPosition(++pos)) {
+                final ConversationMessage msg = cursor.getMessage();
+                FutureTask<PreparedBody> body = mBodies.remove(msg);
+                if (body == null) {
+                    body = takePrefetched(msg);
+                }
+                final Boolean safeForImages = visible.get(msg);
+                if (body == null && safeForImages != null) {
+                    body = newTask(msg, safeForImages);
+                    sExecutor.execute(body);
+                    submitted++;
+                }
+                if (body != null) {
+                    current.put(msg, body);
+                }
+            }
+            // Whatever is left belongs to messages that are gone
+            for (Future<PreparedBody> stale : mBodies.values()) {
+                stale.cancel(false);
+            }
+            mBodies.clear();
+            mBodies.putAll(current);
+        }
+        if (submitted > 0) {
+            mToHtmlMs.set(0);
+            mRewriteMs.set(0);
+            mWaitMs.set(0);
+            mInlineCount.set(0);
+        }
+    }
+
+    private FutureTask<PreparedBody> newTask(final ConversationMessage msg,
+            final boolean safeForImages) {
+        return new FutureTask<PreparedBody>(new Callable<PreparedBody>() {
+            @Override
+            public PreparedBody call() {
+                final long start = SystemClock.uptimeMillis();
+                final String html = msg.getBodyAsHtml();
+                final long converted = SystemClock.uptimeMillis();
+                mToHtmlMs.addAndGet(converted - start);
+
+                final PreparedBody body = prepareBody(msg, html, safeForImages);
+                mRewriteMs.addAndGet(SystemClock.uptimeMillis() - converted);
+                return body;
+            }
+        });
+    }
+
+    private static PreparedBody prepareBody(ConversationMessage msg, String html,
+            boolean safeForImages) {
+        return new PreparedBody(HtmlConversationTemplates.prepareMessageBody(html,
+                safeForImages || !msg.embedsExternalResources()), safeForImages);
+    }
+
+    private static FutureTask<PreparedBody> done(final PreparedBody body) {
+        final FutureTask<PreparedBody> done = new FutureTask<PreparedBody>(
+                new Callable<PreparedBody>() {
+                    @Override
+                    public PreparedBody call() {
+                        return body;
+                    }
+                });
+        done.run();
+        return done;
+    }
+
+    /**
+     * Prepares the body of a message that is not being displayed yet, so that a later
+     * {@link #prepare(MessageCursor, Map)} for its conversation can pick it up instead of doing the
+     * work again. Runs on the calling thread, which should not be the UI thread.
+     *
+     * @return false if the body was too large to keep
+     */
+    public static boolean prefetch(ConversationMessage msg) {
+        if (msg.uri == null) {
+            return false;
+        }
+        final String key = msg.uri.toString();
+        synchronized (sPrefetched) {
+            final PrefetchedBody existing = sPrefetched.get(key);
+            if (existing != null && existing.matches(msg)) {
+                return true;
+            }
+        }
+
+        // Whether images are shown is only known once the conversation is opened; guess from
+        // the message, and getBody() prepares the other variant if the guess was wrong
+        final PreparedBody body = prepareBody(msg, msg.getBodyAsHtml(), msg.alwaysShowImages);
+        final int length = body.length();
+        if (length > MAX_PREFETCHED_CHARS / 4) {
+            return false;
+        }
+        synchronized (sPrefetched) {
+            final PrefetchedBody old = sPrefetched.remove(key);
+            if (old != null) {
+                sPrefetchedChars -= old.mBody.length();
+                sPrefetchDiscarded++;
+            }
+            sPrefetched.put(key, new PrefetchedBody(msg, body));
+            sPrefetchedChars += length;
+            sPrefetchStored++;
+            // Evict the oldest until back under the cap
+            final Iterator<PrefetchedBody> it = sPrefetched.values().iterator();
+            while (sPrefetchedChars > MAX_PREFETCHED_CHARS && it.hasNext()) {
+                sPrefetchedChars -= it.next().mBody.length();
+                it.remove();
+                sPrefetchDiscarded++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the prefetched body of the message as a completed future, or null if
+     * there is none or the message has changed since it was prefetched.
+     */
+    private static FutureTask<PreparedBody> takePrefetched(ConversationMessage msg) {
+        if (msg.uri == null) {
+            return null;
+        }
+        final PrefetchedBody prefetched;
+        synchronized (sPrefetched) {
+            prefetched = sPrefetched.remove(msg.uri.toString());
+            if (prefetched == null) {
+                return null;
+            }
+            sPrefetchedChars -= prefetched.mBody.length();
+            if (!prefetched.matches(msg)) {
+                sPrefetchDiscarded++;
+                return null;
+            }
+            sPrefetchUsed++;
+        }
+        return done(prefetched.mBody);
+    }
+
+    /**
+     * Drops all prefetched bodies, counting them as discarded. Called when the conversation list
+     * they were prefetched from goes away, and when memory is low.
+     */
+    public static void clearPrefetched() {
+        synchronized (sPrefetched) {
+            sPrefetchDiscarded += sPrefetched.size();
+            sPrefetched.clear();
+            sPrefetchedChars = 0;
+        }
+    }
+
+    /**
+     * Returns the prepared body. A body whose preparation has not been picked up by a worker yet
+     * is prepared on the calling thread instead of waiting behind the queue; one that a worker is
+     * in the middle of is waited for. Bodies of messages that were not passed to {@link #prepare}
+     * as visible, and bodies prepared for the other image setting, are prepared inline and kept
+     * for the next call.
+     */
+    public String getBody(ConversationMessage msg, boolean safeForImages) {
+        final FutureTask<PreparedBody> task;
+        synchronized (mBodies) {
+            task = mBodies.get(msg);
+        }
+        if (task != null) {
+            final long start = SystemClock.uptimeMillis();
+            try {
+                // No-op if a worker already ran it or is running it
+                task.run();
+                final PreparedBody body = task.get();
+                if (body.matches(msg, safeForImages)) {
+                    return body.mHtml;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LogUtils.w(LOG_TAG, e.getCause(), "Unable to prepare body of message %d",
+                        msg.id);
+            } catch (CancellationException e) {
+                // fall through and prepare it here
+            } finally {
+                mWaitMs.addAndGet(SystemClock.uptimeMillis() - start);
+            }
+        }
+        mInlineCount.incrementAndGet();
+        final PreparedBody body = prepareBody(msg, msg.getBodyAsHtml(), safeForImages);
+        synchronized (mBodies) {
+            mBodies.put(msg, done(body));
+        }
+        return body.mHtml;
+    }
+
+    /**
+     * Drops all prepared bodies and cancels work that has not started yet.
+     */
+    public void clear() {
+        synchronized (mBodies) {
+            for (Iterator<FutureTask<PreparedBody>> it = mBodies.values().iterator();
+                    it.hasNext();) {
+                it.next().cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the time spent in each stage since bodies were last submitted for preparation, as
+     * a mark for the conversation load timer.
+     */
+    public String getTimings() {
+        return "prepared bodies: toHtml=" + mToHtmlMs.get() + "ms rewrite=" + mRewriteMs.get()
+                + "ms (on " + POOL_SIZE + " workers) waited=" + mWaitMs.get()
+                + "ms preparedInline=" + mInlineCount.get();
+    }
+
+    /**
+     * Writes how many prefetched bodies were used versus thrown away.
+     */
+    private static void dumpStats(String prefix, PrintWriter writer) {
+        synchronized (sPrefetched) {
+            writer.print(prefix);
+            writer.println("MessageBodyPreparer:");
+            writer.print(prefix);
+            writer.print("  prefetched=");
+            writer.print(sPrefetchStored);
+            writer.print(" used=");
+            writer.print(sPrefetchUsed);
+            writer.print(" discarded=");
+            writer.print(sPrefetchDiscarded);
+            writer.print(" pending=");
+            writer.print(sPrefetched.size());
+            writer.print(" pendingChars=");
+            writer.println(sPrefetchedChars);
+        }
+    }
+}
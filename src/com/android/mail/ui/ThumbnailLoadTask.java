@@ -17,6 +17,7 @@
 
 package com.android.mail.ui;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
@@ -24,29 +25,103 @@ import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 
 import com.android.ex.photo.util.Exif;
 import com.android.ex.photo.util.ImageUtils;
 
 import com.android.mail.providers.Attachment;
+import com.android.mail.utils.CacheRegistry;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.Utils;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Performs the load of a thumbnail bitmap in a background
  * {@link AsyncTask}. Available for use with any view that implements
  * the {@link AttachmentBitmapHolder} interface.
+ * <p>
+ * Finished thumbnails are kept in the {@link AttachmentThumbnailCache}. Loads run on a small pool
+ * that starts the most recently requested first, and a holder's load is cancelled when it asks
+ * for another attachment or goes off screen (see {@link #cancelThumbnailLoad}).
  */
 public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    private static final int POOL_SIZE = 2;
+    private static final AtomicLong sSequence = new AtomicLong();
+    private static final ThreadPoolExecutor DECODE_POOL = new ThreadPoolExecutor(POOL_SIZE,
+            POOL_SIZE, 1, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    /**
+     * Starts the newest loads first, since those are of the tiles just laid out on screen, while
+     * the older ones may be of tiles scrolled away (and then cancelled before they start).
+     */
+    private static final Executor EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            DECODE_POOL.execute(new PrioritizedRunnable(command, sSequence.incrementAndGet()));
+        }
+    };
+
+    /** Decodes no longer needed once rotated, to be decoded into again with inBitmap. */
+    private static final int MAX_REUSABLE_BITMAPS = 2;
+    private static final List<Bitmap> sReusableBitmaps = Lists.newArrayList();
+
+    /** The load running for each holder. Only touched on the main thread. */
+    private static final Map<AttachmentBitmapHolder, ThumbnailLoadTask> sTasks =
+            Maps.newHashMap();
+
+    // Stats, only touched on the main thread but for the reuse counts
+    private static int sPending;
+    private static long sBurstStart;
+    private static int sBurstLoaded;
+    private static int sLastBurstLoaded;
+    private static long sLastBurstMillis;
+    private static int sLoaded;
+    private static int sFailed;
+    private static int sCancelled;
+    private static int sReused;
+    private static int sAllocated;
+
+    static {
+        CacheRegistry.register(new CacheRegistry.Cache() {
+            @Override
+            public void releaseMemory() {
+                synchronized (sReusableBitmaps) {
+                    sReusableBitmaps.clear();
+                }
+            }
+
+            @Override
+            public void dump(String prefix, PrintWriter writer) {
+                dumpStats(prefix, writer);
+            }
+        });
+    }
+
     private final AttachmentBitmapHolder mHolder;
     private final int mWidth;
     private final int mHeight;
+    private final AttachmentThumbnailCache mCache;
+    private final Uri mIdentifierUri;
+    private final Uri mThumbnailUri;
+    private final Uri mContentUri;
 
     public static void setupThumbnailPreview(AttachmentTile.AttachmentPreviewCache cache,
             AttachmentBitmapHolder holder, Attachment attachment, Attachment prevAttachment) {
@@ -54,6 +129,7 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
         if (cache != null) {
             final Bitmap cached = cache.get(attachment);
             if (cached != null) {
+                cancelThumbnailLoad(holder);
                 holder.setThumbnail(cached);
                 return;
             }
@@ -63,6 +139,7 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
         final int height = holder.getThumbnailHeight();
         if (attachment == null || width == 0 || height == 0
                 || !ImageUtils.isImageMimeType(attachment.getContentType())) {
+            cancelThumbnailLoad(holder);
             holder.setThumbnailToDefault();
             return;
         }
@@ -76,29 +153,102 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
         if ((thumbnailUri != null || contentUri != null)
                 && (holder.bitmapSetToDefault() ||
                 prevUri == null || !uri.equals(prevUri))) {
-            final ThumbnailLoadTask task = new ThumbnailLoadTask(
-                    holder, width, height);
-            task.execute(thumbnailUri, contentUri);
+            final ThumbnailLoadTask running = sTasks.get(holder);
+            if (running != null) {
+                if (running.isLoading(uri, thumbnailUri, contentUri, width, height)) {
+                    // Asked again, e.g. by another layout pass, before the load finished
+                    return;
+                }
+                running.cancel(false);
+            }
+            final ThumbnailLoadTask task = new ThumbnailLoadTask(holder, width, height,
+                    AttachmentThumbnailCache.getInstance(holder.getContext()), uri, thumbnailUri,
+                    contentUri);
+            task.start();
         } else if (thumbnailUri == null && contentUri == null) {
             // not an image, or no thumbnail exists. fall back to default.
             // async image load must separately ensure the default appears upon load failure.
+            cancelThumbnailLoad(holder);
             holder.setThumbnailToDefault();
         }
     }
 
-    public ThumbnailLoadTask(AttachmentBitmapHolder holder, int width, int height) {
+    /**
+     * Cancels the load running for this holder, if any, e.g. because it is no longer shown. A
+     * load that already finished decoding still stores its thumbnail on disk.
+     */
+    public static void cancelThumbnailLoad(AttachmentBitmapHolder holder) {
+        final ThumbnailLoadTask running = sTasks.remove(holder);
+        if (running != null) {
+            running.cancel(false);
+        }
+    }
+
+    private ThumbnailLoadTask(AttachmentBitmapHolder holder, int width, int height,
+            AttachmentThumbnailCache cache, Uri identifierUri, Uri thumbnailUri, Uri contentUri) {
         mHolder = holder;
         mWidth = width;
         mHeight = height;
+        mCache = cache;
+        mIdentifierUri = identifierUri;
+        mThumbnailUri = thumbnailUri;
+        mContentUri = contentUri;
+    }
+
+    private boolean isLoading(Uri identifierUri, Uri thumbnailUri, Uri contentUri, int width,
+            int height) {
+        return !isCancelled() && width == mWidth && height == mHeight
+                && Objects.equal(identifierUri, mIdentifierUri)
+                && Objects.equal(thumbnailUri, mThumbnailUri)
+                && Objects.equal(contentUri, mContentUri);
+    }
+
+    private void start() {
+        sTasks.put(mHolder, this);
+        if (sPending++ == 0) {
+            sBurstStart = SystemClock.elapsedRealtime();
+            sBurstLoaded = 0;
+        }
+        executeOnExecutor(EXECUTOR, mThumbnailUri, mContentUri);
+    }
+
+    /**
+     * Updates the bookkeeping once this load is done or cancelled, logging how long it took to
+     * load all of the thumbnails asked for since none were loading.
+     */
+    private void finish(boolean loaded) {
+        if (sTasks.get(mHolder) == this) {
+            sTasks.remove(mHolder);
+        }
+        if (loaded) {
+            sBurstLoaded++;
+        }
+        if (--sPending == 0) {
+            sLastBurstLoaded = sBurstLoaded;
+            sLastBurstMillis = SystemClock.elapsedRealtime() - sBurstStart;
+            LogUtils.d(LOG_TAG, "loaded %d thumbnails in %d ms", sLastBurstLoaded,
+                    sLastBurstMillis);
+        }
     }
 
     @Override
     protected Bitmap doInBackground(Uri... params) {
-        Bitmap result = loadBitmap(params[0]);
-        if (result == null) {
+        if (isCancelled()) {
+            return null;
+        }
+        Bitmap result = mCache.get(mIdentifierUri, mWidth, mHeight);
+        if (result != null) {
+            return result;
+        }
+
+        result = loadBitmap(params[0]);
+        if (result == null && !isCancelled()) {
             result = loadBitmap(params[1]);
         }
 
+        if (result != null) {
+            mCache.put(mIdentifierUri, mWidth, mHeight, result);
+        }
         return result;
     }
 
@@ -137,13 +287,34 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
             LogUtils.d(LOG_TAG, "in background, src w/h=%d/%d dst w/h=%d/%d, divider=%d",
                     opts.outWidth, opts.outHeight, mWidth, mHeight, opts.inSampleSize);
 
-            final Bitmap originalBitmap = BitmapFactory.decodeFileDescriptor(
-                    fd.getFileDescriptor(), null, opts);
+            // Only a decode that is rotated afterwards can be given back for reuse; otherwise it
+            // is the thumbnail itself
+            final boolean reuse = orientation != 0 && Utils.isRunningKitkatOrLater();
+            if (reuse) {
+                setReusableBitmap(opts);
+            }
+            Bitmap originalBitmap;
+            try {
+                originalBitmap = BitmapFactory.decodeFileDescriptor(
+                        fd.getFileDescriptor(), null, opts);
+            } catch (IllegalArgumentException e) {
+                if (opts.inBitmap == null) {
+                    throw e;
+                }
+                // Not decodable into that bitmap after all
+                opts.inBitmap = null;
+                originalBitmap = BitmapFactory.decodeFileDescriptor(
+                        fd.getFileDescriptor(), null, opts);
+            }
             if (originalBitmap != null && orientation != 0) {
                 final Matrix matrix = new Matrix();
                 matrix.postRotate(orientation);
-                return Bitmap.createBitmap(originalBitmap, 0, 0, originalBitmap.getWidth(),
-                        originalBitmap.getHeight(), matrix, true);
+                final Bitmap rotated = Bitmap.createBitmap(originalBitmap, 0, 0,
+                        originalBitmap.getWidth(), originalBitmap.getHeight(), matrix, true);
+                if (reuse && rotated != originalBitmap) {
+                    recycleReusableBitmap(originalBitmap);
+                }
+                return rotated;
             }
             return originalBitmap;
         } catch (Throwable t) {
@@ -162,6 +333,42 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
         return null;
     }
 
+    /**
+     * Sets a decode given back by an earlier load as the inBitmap of this one, if one is large
+     * enough for the subsampled size in the options. From KitKat on, any such bitmap will do.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void setReusableBitmap(BitmapFactory.Options opts) {
+        final int sample = opts.inSampleSize;
+        final int byteCount = ((opts.outWidth + sample - 1) / sample)
+                * ((opts.outHeight + sample - 1) / sample) * 4;
+        opts.inMutable = true;
+        synchronized (sReusableBitmaps) {
+            for (int i = 0; i < sReusableBitmaps.size(); i++) {
+                final Bitmap bitmap = sReusableBitmaps.get(i);
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    opts.inBitmap = sReusableBitmaps.remove(i);
+                    sReused++;
+                    return;
+                }
+            }
+            sAllocated++;
+        }
+    }
+
+    private static void recycleReusableBitmap(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        synchronized (sReusableBitmaps) {
+            if (sReusableBitmaps.size() >= MAX_REUSABLE_BITMAPS) {
+                // Drop the oldest
+                sReusableBitmaps.remove(0);
+            }
+            sReusableBitmaps.add(bitmap);
+        }
+    }
+
     private int getOrientation(final Uri thumbnailUri) {
         if (thumbnailUri == null) {
             return 0;
@@ -190,15 +397,77 @@ public class ThumbnailLoadTask extends AsyncTask<Uri, Void, Bitmap> {
 
     @Override
     protected void onPostExecute(Bitmap result) {
+        finish(result != null);
         if (result == null) {
             LogUtils.d(LOG_TAG, "back in UI thread, decode failed or file does not exist");
+            sFailed++;
             mHolder.thumbnailLoadFailed();
             return;
         }
 
         LogUtils.d(LOG_TAG, "back in UI thread, decode success, w/h=%d/%d", result.getWidth(),
                 result.getHeight());
+        sLoaded++;
         mHolder.setThumbnail(result);
     }
 
+    @Override
+    protected void onCancelled(Bitmap result) {
+        finish(false);
+        sCancelled++;
+    }
+
+    /**
+     * Writes how the loads went so far, including how long the last ones took to all finish.
+     * Must be called on the main thread.
+     */
+    private static void dumpStats(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("ThumbnailLoadTask:");
+        writer.print(prefix);
+        writer.print("  loaded=");
+        writer.print(sLoaded);
+        writer.print(" failed=");
+        writer.print(sFailed);
+        writer.print(" cancelled=");
+        writer.print(sCancelled);
+        writer.print(" pending=");
+        writer.println(sPending);
+        writer.print(prefix);
+        writer.print("  lastBurst=");
+        writer.print(sLastBurstLoaded);
+        writer.print(" in ");
+        writer.print(sLastBurstMillis);
+        writer.print("ms");
+        synchronized (sReusableBitmaps) {
+            writer.print(" reusedBitmaps=");
+            writer.print(sReused);
+            writer.print(" allocatedBitmaps=");
+            writer.println(sAllocated);
+        }
+    }
+
+    /**
+     * Orders the runnables of a {@link PriorityBlockingQueue} newest first.
+     */
+    private static final class PrioritizedRunnable implements Runnable,
+            Comparable<PrioritizedRunnable> {
+        private final Runnable mRunnable;
+        private final long mSequence;
+
+        PrioritizedRunnable(Runnable runnable, long sequence) {
+            mRunnable = runnable;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedRunnable other) {
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+import com.google.common.collect.Lists;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * A bounded pool of mutable ARGB_8888 bitmaps that are no longer drawn, to be drawn or decoded
+ * into again by {@link BitmapUtil} instead of allocating new ones. Once a bitmap is given to
+ * {@link #put(Bitmap)} the caller must not use it any more.
+ * <p>
+ * Thread-safe.
+ */
+public class BitmapPool {
+    private final int mMaxBytes;
+    /** Oldest first. */
+    private final List<Bitmap> mBitmaps = Lists.newArrayList();
+    private int mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mDecodeHits;
+    private int mDecodeMisses;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a transparent bitmap of exactly this size, from the pool if it has one.
+     */
+    public Bitmap get(int width, int height) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            for (int i = 0; i < mBitmaps.size(); i++) {
+                final Bitmap candidate = mBitmaps.get(i);
+                if (candidate.getWidth() == width && candidate.getHeight() == height) {
+                    bitmap = remove(i);
+                    break;
+                }
+            }
+            if (bitmap != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Returns a pooled bitmap that an image decoded at this size can be decoded into with
+     * {@link android.graphics.BitmapFactory.Options#inBitmap}, or null if there is none. Before
+     * KitKat, the decode must also not be subsampled.
+     */
+    public synchronized Bitmap getForDecode(int width, int height) {
+        final boolean anySize = Utils.isRunningKitkatOrLater();
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            final Bitmap candidate = mBitmaps.get(i);
+            if (anySize ? fits(candidate, width, height)
+                    : candidate.getWidth() == width && candidate.getHeight() == height) {
+                mDecodeHits++;
+                return remove(i);
+            }
+        }
+        mDecodeMisses++;
+        return null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean fits(Bitmap bitmap, int width, int height) {
+        return bitmap.getAllocationByteCount() >= width * height * 4;
+    }
+
+    /**
+     * Gives back a bitmap that is no longer used, dropping the oldest ones above the size of the
+     * pool. Immutable bitmaps and those of other configurations are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        final int bytes = bitmap.getRowBytes() * bitmap.getHeight();
+        if (bytes > mMaxBytes || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+        while (mBytes > mMaxBytes) {
+            remove(0);
+        }
+    }
+
+    /**
+     * Drops all pooled bitmaps, e.g. when memory is low.
+     */
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    private Bitmap remove(int index) {
+        final Bitmap bitmap = mBitmaps.remove(index);
+        mBytes -= bitmap.getRowBytes() * bitmap.getHeight();
+        return bitmap;
+    }
+
+    /**
+     * Returns how many bitmaps had to be allocated because the pool had none to give.
+     */
+    public synchronized int getMissCount() {
+        return mMisses + mDecodeMisses;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits + mDecodeHits;
+    }
+
+    public synchronized void dump(String prefix, String name, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(name);
+        writer.println(":");
+        writer.print(prefix);
+        writer.print("  hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" decodeHits=");
+        writer.print(mDecodeHits);
+        writer.print(" decodeMisses=");
+        writer.print(mDecodeMisses);
+        writer.print(" bytes=");
+        writer.println(mBytes);
+    }
+}
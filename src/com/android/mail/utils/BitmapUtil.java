@@ -17,12 +17,16 @@
 package com.android.mail.utils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
 
 /**
  * Provides static functions to decode bitmaps at the optimal size
@@ -32,6 +36,14 @@ public class BitmapUtil {
     private static final String TAG = LogTag.getLogTag();
     private static final boolean DEBUG = false;
 
+    /** Reused by each thread for its draws, to allocate nothing but the shader per bitmap. */
+    private static final ThreadLocal<DrawState> sDrawState = new ThreadLocal<DrawState>() {
+        @Override
+        protected DrawState initialValue() {
+            return new DrawState();
+        }
+    };
+
     private BitmapUtil() {
     }
 
@@ -82,6 +94,82 @@ public class BitmapUtil {
         }
     }
 
+    /**
+     * Like {@link #decodeByteArray(byte[], int, int)}, but decodes into a bitmap of the pool when
+     * it has one that fits.
+     *
+     * @param pool where to take the bitmap to decode into from, or null to allocate it
+     * @return a decoded, mutable Bitmap that is not exactly sized to the hinted dimensions.
+     */
+    public static Bitmap decodeByteArray(byte[] src, int w, int h, BitmapPool pool) {
+        if (pool == null) {
+            return decodeByteArray(src, w, h);
+        }
+        try {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(src, 0, src.length, opts);
+            if (opts.mCancel || opts.outWidth == -1 || opts.outHeight == -1) {
+                return null;
+            }
+            opts.inSampleSize = Math.min(opts.outWidth / w, opts.outHeight / h);
+            opts.inJustDecodeBounds = false;
+            opts.inMutable = true;
+            // The decoder rounds the sample size down to a power of two
+            final int sample = Integer.highestOneBit(Math.max(opts.inSampleSize, 1));
+            if (sample == 1 || Utils.isRunningKitkatOrLater()) {
+                opts.inBitmap = pool.getForDecode((opts.outWidth + sample - 1) / sample,
+                        (opts.outHeight + sample - 1) / sample);
+            }
+            try {
+                return BitmapFactory.decodeByteArray(src, 0, src.length, opts);
+            } catch (IllegalArgumentException e) {
+                if (opts.inBitmap == null) {
+                    throw e;
+                }
+                // Not decodable into that bitmap after all
+                pool.put(opts.inBitmap);
+                opts.inBitmap = null;
+                return BitmapFactory.decodeByteArray(src, 0, src.length, opts);
+            }
+        } catch (Throwable t) {
+            LogUtils.w(TAG, t, "BitmapUtils unable to decode image");
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image and center-crop it to the desired dimensions, optionally framing it in a
+     * circle, with a single draw into a bitmap of the pool. The decoded image is given back to the
+     * pool.
+     *
+     * @param src an encoded image
+     * @param w desired width in px
+     * @param h desired height in px
+     * @param circle whether to frame the result in a circle, as with
+     *               {@link #frameBitmapInCircle(Bitmap)}
+     * @param pool where to take bitmaps from and give the decoded image back to, or null to
+     *             allocate them
+     * @return an exactly-sized Bitmap that is center-cropped, owned by the caller.
+     */
+    public static Bitmap decodeByteArrayWithCenterCrop(byte[] src, int w, int h, boolean circle,
+            BitmapPool pool) {
+        try {
+            final Bitmap decoded = decodeByteArray(src, w, h, pool);
+            if (decoded == null) {
+                return null;
+            }
+            final Bitmap result = draw(decoded, w, h, 0.5f, 0.5f, circle, pool);
+            if (pool != null) {
+                pool.put(decoded);
+            }
+            return result;
+        } catch (Throwable t) {
+            LogUtils.w(TAG, t, "BitmapUtils unable to crop image");
+            return null;
+        }
+    }
+
     /**
      * Returns a new Bitmap copy with a center-crop effect a la
      * {@link android.widget.ImageView.ScaleType#CENTER_CROP}. May return the input bitmap if no
@@ -97,6 +185,21 @@ public class BitmapUtil {
         return crop(src, w, h, 0.5f, 0.5f);
     }
 
+    /**
+     * Center-crops src into a bitmap of the pool, optionally framing it in a circle, with a
+     * single draw. Unlike {@link #centerCrop(Bitmap, int, int)}, never returns src, which is left
+     * to the caller.
+     *
+     * @param circle whether to frame the result in a circle, as with
+     *               {@link #frameBitmapInCircle(Bitmap)}
+     * @param pool where to take the result from, or null to allocate it
+     * @return an exactly-sized Bitmap that is center-cropped, owned by the caller.
+     */
+    public static Bitmap centerCrop(final Bitmap src, final int w, final int h,
+            final boolean circle, final BitmapPool pool) {
+        return draw(src, w, h, 0.5f, 0.5f, circle, pool);
+    }
+
     /**
      * Returns a new Bitmap copy with a crop effect depending on the crop anchor given. 0.5f is like
      * {@link android.widget.ImageView.ScaleType#CENTER_CROP}. The crop anchor will be be nudged
@@ -216,4 +319,68 @@ public class BitmapUtil {
 
         return output;
     }
+
+    /**
+     * Like {@link #frameBitmapInCircle(Bitmap)}, but draws into a bitmap of the pool. The input is
+     * left to the caller, who may give it back to the pool.
+     *
+     * @param pool where to take the framed bitmap from, or null to allocate it
+     */
+    public static Bitmap frameBitmapInCircle(Bitmap input, BitmapPool pool) {
+        if (input == null) {
+            return null;
+        }
+        final int targetSize = Math.min(input.getWidth(), input.getHeight());
+        return draw(input, targetSize, targetSize, 0.5f, 0.5f, true /* circle */, pool);
+    }
+
+    /**
+     * Draws the part of src that {@link #crop} would keep into a w by h bitmap, framed in a
+     * circle if asked, with a single draw.
+     */
+    private static Bitmap draw(Bitmap src, int w, int h, float horizontalCenterPercent,
+            float verticalCenterPercent, boolean circle, BitmapPool pool) {
+        final int srcWidth = src.getWidth();
+        final int srcHeight = src.getHeight();
+        final float scale = Math.max((float) w / srcWidth, (float) h / srcHeight);
+        final int srcCroppedW = Math.min(Math.round(w / scale), srcWidth);
+        final int srcCroppedH = Math.min(Math.round(h / scale), srcHeight);
+        int srcX = (int) (srcWidth * horizontalCenterPercent - srcCroppedW / 2);
+        int srcY = (int) (srcHeight * verticalCenterPercent - srcCroppedH / 2);
+        // Nudge srcX and srcY to be within the bounds of src
+        srcX = Math.max(Math.min(srcX, srcWidth - srcCroppedW), 0);
+        srcY = Math.max(Math.min(srcY, srcHeight - srcCroppedH), 0);
+
+        final Bitmap output = pool != null ? pool.get(w, h)
+                : Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        final DrawState state = sDrawState.get();
+        state.mSrcRect.set(srcX, srcY, srcX + srcCroppedW, srcY + srcCroppedH);
+        state.mDstRect.set(0, 0, w, h);
+        state.mCanvas.setBitmap(output);
+        if (circle) {
+            // The shader maps the cropped part of src onto the output, and the circle masks it
+            final BitmapShader shader = new BitmapShader(src, Shader.TileMode.CLAMP,
+                    Shader.TileMode.CLAMP);
+            state.mSrcRectF.set(state.mSrcRect);
+            state.mMatrix.setRectToRect(state.mSrcRectF, state.mDstRect,
+                    Matrix.ScaleToFit.FILL);
+            shader.setLocalMatrix(state.mMatrix);
+            state.mPaint.setShader(shader);
+            state.mCanvas.drawCircle(w / 2f, h / 2f, Math.min(w, h) / 2f, state.mPaint);
+            state.mPaint.setShader(null);
+        } else {
+            state.mCanvas.drawBitmap(src, state.mSrcRect, state.mDstRect, state.mPaint);
+        }
+        state.mCanvas.setBitmap(null);
+        return output;
+    }
+
+    private static final class DrawState {
+        final Canvas mCanvas = new Canvas();
+        final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final Matrix mMatrix = new Matrix();
+        final Rect mSrcRect = new Rect();
+        final RectF mSrcRectF = new RectF();
+        final RectF mDstRect = new RectF();
+    }
 }
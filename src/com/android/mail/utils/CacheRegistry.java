@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The process-wide caches, so that their stats can be dumped from one place and they all give
+ * back their memory when the system runs low on it. Caches register themselves when they are
+ * first used; memory pressure is listened for once any context has been handed to
+ * {@link #listen(Context)}.
+ */
+public final class CacheRegistry {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    public interface Cache {
+        /**
+         * Drops whatever the cache holds in memory. Entries on disk are kept. May be called on
+         * the main thread.
+         */
+        void releaseMemory();
+
+        /**
+         * Writes the stats of the cache. Called on the main thread.
+         */
+        void dump(String prefix, PrintWriter writer);
+    }
+
+    private static final List<Cache> sCaches = new CopyOnWriteArrayList<Cache>();
+    private static ComponentCallbacks2 sCallbacks;
+
+    private CacheRegistry() {}
+
+    public static void register(Cache cache) {
+        sCaches.add(cache);
+    }
+
+    /**
+     * Registers the cache and starts listening for memory pressure, if not already listening.
+     */
+    public static void register(Context context, Cache cache) {
+        listen(context);
+        register(cache);
+    }
+
+    /**
+     * Starts listening for memory pressure on the application, if not already listening.
+     */
+    public static synchronized void listen(Context context) {
+        if (sCallbacks != null) {
+            return;
+        }
+        sCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // UI_HIDDEN only means the UI went away, and RUNNING_MODERATE is not pressing yet
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                        && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    releaseMemory();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                releaseMemory();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        };
+        context.getApplicationContext().registerComponentCallbacks(sCallbacks);
+    }
+
+    /**
+     * Drops what all caches hold in memory.
+     */
+    public static void releaseMemory() {
+        LogUtils.d(LOG_TAG, "Releasing memory of %d caches", sCaches.size());
+        for (Cache cache : sCaches) {
+            cache.releaseMemory();
+        }
+    }
+
+    /**
+     * Writes the stats of all caches used so far.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        for (Cache cache : sCaches) {
+            cache.dump(prefix, writer);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The one observer of the contacts provider for the whole process. Caches of contact data listen
+ * to it instead of each registering their own observer, so that a change to the contacts is
+ * delivered once and then passed on to every cache.
+ */
+public final class ContactsObserver {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    public interface Listener {
+        /**
+         * Called on a binder thread whenever the contacts provider reports a change.
+         */
+        void onContactsChanged();
+    }
+
+    private static final List<Listener> sListeners = new CopyOnWriteArrayList<Listener>();
+    private static ContentObserver sObserver;
+
+    private ContactsObserver() {}
+
+    /**
+     * Adds a listener, and starts observing the contacts provider if not already observing.
+     */
+    public static void register(Context context, Listener listener) {
+        sListeners.add(listener);
+        observe(context);
+    }
+
+    private static synchronized void observe(Context context) {
+        if (sObserver != null) {
+            return;
+        }
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                for (Listener listener : sListeners) {
+                    listener.onContactsChanged();
+                }
+            }
+        };
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true /* notifyForDescendents */,
+                    observer);
+            sObserver = observer;
+        } catch (SecurityException e) {
+            // Without contacts access there is nothing to go stale; tried again on next register
+            LogUtils.w(LOG_TAG, e, "Unable to observe contacts");
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import com.google.common.io.Closeables;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A directory of cache entries, one file each, capped at a number of bytes. Above the cap the
+ * entries with the oldest modification time are deleted first, so callers decide whether an
+ * entry's age counts from when it was written or, with {@link #touch(File)}, last read.
+ * <p>
+ * Entries are written to a temporary file and renamed into place, so readers never see a
+ * partial entry. Only the bookkeeping is synchronized; callers read and write entry contents
+ * without holding any lock. An entry can be deleted while it is being read, which the reader
+ * sees as an I/O error and should treat as a miss.
+ * <p>
+ * Does disk I/O, so must not be used from the main thread.
+ */
+public final class DiskFileCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the contents of one entry.
+     */
+    public interface EntryWriter {
+        /**
+         * @return false if there was nothing to write, in which case no entry is stored
+         */
+        boolean writeTo(OutputStream out) throws IOException;
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+    /** Bytes on disk, or -1 until the directory has been listed. */
+    private long mBytes = -1;
+
+    public DiskFileCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the name of the entry for this key: a hex SHA-1 of its parts, each separated by a
+     * zero byte, or null if that can't be computed. Null parts are hashed as empty.
+     */
+    public static String hashKey(String... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    digest.update((byte) 0);
+                }
+                if (parts[i] != null) {
+                    digest.update(parts[i].getBytes("UTF-8"));
+                }
+            }
+            final byte[] hash = digest.digest();
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file of the named entry, or null if there is none.
+     */
+    public File get(String name) {
+        final File file = new File(mDir, name);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Marks an entry as recently used, so that it is evicted after the older ones.
+     */
+    public void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the named entry, replacing any earlier one, and then evicts the oldest entries
+     * above the cap.
+     *
+     * @return true if the entry was stored
+     */
+    public boolean put(String name, EntryWriter writer) {
+        final File file = new File(mDir, name);
+        // Unique per call, so that two threads writing the same entry don't share a file
+        File tmp = null;
+        OutputStream out = null;
+        try {
+            mDir.mkdirs();
+            tmp = File.createTempFile(name, TMP_SUFFIX, mDir);
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            final boolean written = writer.writeTo(out);
+            out.close();
+            out = null;
+            if (!written) {
+                tmp.delete();
+                return false;
+            }
+            synchronized (this) {
+                checkBytes();
+                final long oldLength = file.length();
+                final long length = tmp.length();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    return false;
+                }
+                mBytes += length - oldLength;
+                trimToSize();
+            }
+            return true;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to write cache entry %s", file);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return false;
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Deletes an entry, e.g. one that turned out to be unreadable or expired.
+     */
+    public synchronized void remove(File file) {
+        final long length = file.length();
+        if (file.delete() && mBytes >= 0) {
+            mBytes -= length;
+        }
+    }
+
+    /**
+     * Deletes every entry. If any could not be deleted, the bytes on disk are counted again by
+     * the next {@link #put}.
+     */
+    public synchronized void clear() {
+        final File[] files = mDir.listFiles();
+        boolean deletedAll = files != null;
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    deletedAll = false;
+                }
+            }
+        }
+        mBytes = deletedAll ? 0 : -1;
+    }
+
+    /**
+     * Deletes every entry and the directory itself.
+     */
+    public synchronized void delete() {
+        clear();
+        mDir.delete();
+    }
+
+    /**
+     * Returns the bytes on disk, or -1 if they are not known yet. They are counted by listing the
+     * directory on the first {@link #put}, and again on the next one after a {@link #clear} that
+     * could not delete every entry. {@link #remove} leaves -1 in place; a {@link #clear} that
+     * deleted every entry sets 0.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    private void checkBytes() {
+        if (mBytes >= 0) {
+            return;
+        }
+        mBytes = 0;
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                // Entries still being written are counted once renamed
+                if (!file.getName().endsWith(TMP_SUFFIX)) {
+                    mBytes += file.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest entries until the cache is within its cap.
+     */
+    private void trimToSize() {
+        if (mBytes <= mMaxBytes) {
+            return;
+        }
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && mBytes > mMaxBytes; i++) {
+            if (files[i].getName().endsWith(TMP_SUFFIX)) {
+                // Still being written by another thread
+                continue;
+            }
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                mBytes -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Finds the <code>src</code> attributes of <code>&lt;img&gt;</code> tags in message HTML, without
+ * regular expressions and in time linear in the length of the HTML.
+ * <p>
+ * Two operations are supported, each a single pass over the input:
+ * <ul>
+ * <li>{@link #blockAbsoluteImgUrls(String)} renames the <code>src</code> attribute of images
+ * with an absolute http(s) URL to <code>blocked-src</code>, and sets <code>src</code> to something
+ * inert, so the WebView does not load the image until the user asks for it.
+ * <li>{@link #hasInlineImage(String)} tells whether the HTML has any image with a
+ * <code>src</code> at all.
+ * </ul>
+ * Both match exactly what the regular expressions they replace matched:
+ * <code>(&lt;\s*img\s+(?:[^&gt;]*\s+)?)src(\s*=[\s'"]*http)</code> and
+ * <code>&lt;img\s+[^&gt;]*src=</code>, case-insensitively. Like those, they are heuristics that
+ * treat everything up to the next <code>&gt;</code> as the tag, quotes included, and are not a
+ * substitute for server-side detection of external images.
+ */
+public final class ImgSrcScanner {
+
+    /**
+     * Replaces the matching "src". The "src" attribute is set to something inert and not left
+     * unset to minimize interactions with existing JS.
+     */
+    private static final String BLOCKED_SRC = "src='data:' blocked-src";
+
+    private final String mHtml;
+    private final int mLength;
+
+    /**
+     * Bounds of the last tag examined: the index of its first '&gt;' (or the end of the input),
+     * and the rightmost candidate attribute found before it, or -1. Tags sharing the same '&gt;'
+     * (e.g. "&lt;img &lt;img src=...") share these, which keeps the whole scan linear.
+     */
+    private int mTagEnd = -1;
+    private int mTagCandidate = -1;
+
+    /** Characters examined so far, see {@link #countSteps(String)}. */
+    private int mSteps;
+
+    private ImgSrcScanner(String html) {
+        mHtml = html;
+        mLength = html.length();
+    }
+
+    /**
+     * Renames the <code>src</code> attribute of every image with an absolute http(s) URL to
+     * <code>blocked-src</code>, and adds an inert <code>src</code> in front of it.
+     *
+     * @return the rewritten HTML, or <code>html</code> itself if there was nothing to rewrite
+     */
+    public static String blockAbsoluteImgUrls(String html) {
+        if (html == null) {
+            return null;
+        }
+        return new ImgSrcScanner(html).blockAbsoluteUrls();
+    }
+
+    /**
+     * Returns true if the HTML has an <code>&lt;img&gt;</code> tag with a <code>src</code>, be it
+     * an external image, a relative URL or an inline attachment.
+     */
+    public static boolean hasInlineImage(String html) {
+        if (html == null) {
+            return false;
+        }
+        return new ImgSrcScanner(html).findInlineImage();
+    }
+
+    /**
+     * Returns how many characters {@link #blockAbsoluteImgUrls(String)} and
+     * {@link #hasInlineImage(String)} examine in total for this HTML, counting a character each
+     * time it is looked at.
+     */
+    @VisibleForTesting
+    static int countSteps(String html) {
+        final ImgSrcScanner blocker = new ImgSrcScanner(html);
+        blocker.blockAbsoluteUrls();
+        final ImgSrcScanner finder = new ImgSrcScanner(html);
+        finder.findInlineImage();
+        return blocker.mSteps + finder.mSteps;
+    }
+
+    private String blockAbsoluteUrls() {
+        StringBuilder sb = null;
+        int copied = 0;
+        int pos = indexOf('<', 0);
+        while (pos >= 0) {
+            // "<", optional whitespace, "img", then at least one whitespace
+            int i = skipWhitespace(pos + 1);
+            final int imgEnd = i + 3;
+            if (!regionMatchesLower(i, "img") || imgEnd >= mLength
+                    || !isWhitespace(charAt(imgEnd))) {
+                pos = indexOf('<', pos + 1);
+                continue;
+            }
+            final int src = findAbsoluteSrc(imgEnd);
+            if (src <= imgEnd) {
+                // the attribute has to follow whitespace after "img"
+                pos = indexOf('<', pos + 1);
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(mLength + 64);
+            }
+            sb.append(mHtml, copied, src).append(BLOCKED_SRC);
+            copied = src + 3;
+            // resume after the match, which ends with "http"
+            pos = indexOf('<', absoluteUrlEnd(src));
+        }
+        if (sb == null) {
+            return mHtml;
+        }
+        sb.append(mHtml, copied, mLength);
+        return sb.toString();
+    }
+
+    private boolean findInlineImage() {
+        int pos = indexOf('<', 0);
+        while (pos >= 0) {
+            // "<img" immediately, then at least one whitespace
+            final int imgEnd = pos + 4;
+            if (regionMatchesLower(pos + 1, "img") && imgEnd < mLength
+                    && isWhitespace(charAt(imgEnd)) && findSrcEquals(imgEnd) > imgEnd) {
+                return true;
+            }
+            pos = indexOf('<', pos + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the rightmost "src" in the tag containing <code>from</code> that is
+     * preceded by whitespace and followed by <code>\s*=[\s'"]*http</code>, or -1.
+     */
+    private int findAbsoluteSrc(int from) {
+        if (!advanceTag(from)) {
+            return mTagCandidate;
+        }
+        for (int i = mTagEnd - 3; i > from; i--) {
+            if (isWhitespace(charAt(i - 1)) && regionMatchesLower(i, "src")
+                    && absoluteUrlEnd(i) >= 0) {
+                mTagCandidate = i;
+                break;
+            }
+        }
+        return mTagCandidate;
+    }
+
+    /**
+     * Returns the index of the rightmost "src=" in the tag containing <code>from</code>, or -1.
+     */
+    private int findSrcEquals(int from) {
+        if (!advanceTag(from)) {
+            return mTagCandidate;
+        }
+        for (int i = mTagEnd - 4; i > from; i--) {
+            if (regionMatchesLower(i, "src=")) {
+                mTagCandidate = i;
+                break;
+            }
+        }
+        return mTagCandidate;
+    }
+
+    /**
+     * Moves on to the tag containing <code>from</code>, if it is not the one examined last.
+     *
+     * @return true if the candidate for the new tag still has to be found
+     */
+    private boolean advanceTag(int from) {
+        if (from < mTagEnd) {
+            // Same '>' as before, and the candidate found then is the rightmost in the tag
+            return false;
+        }
+        final int gt = indexOf('>', from);
+        mTagEnd = gt >= 0 ? gt : mLength;
+        mTagCandidate = -1;
+        return true;
+    }
+
+    /**
+     * If "src" at <code>src</code> is followed by <code>\s*=[\s'"]*http</code>, returns the index
+     * just past "http", otherwise -1.
+     */
+    private int absoluteUrlEnd(int src) {
+        int i = skipWhitespace(src + 3);
+        if (i >= mLength || charAt(i) != '=') {
+            return -1;
+        }
+        i++;
+        while (i < mLength) {
+            final char c = charAt(i);
+            if (c != '\'' && c != '"' && !isWhitespace(c)) {
+                break;
+            }
+            i++;
+        }
+        return regionMatchesLower(i, "http") ? i + 4 : -1;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < mLength && isWhitespace(charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private char charAt(int i) {
+        mSteps++;
+        return mHtml.charAt(i);
+    }
+
+    private int indexOf(char c, int from) {
+        final int found = mHtml.indexOf(c, from);
+        mSteps += Math.max((found >= 0 ? found + 1 : mLength) - from, 0);
+        return found;
+    }
+
+    /**
+     * ASCII case-insensitive comparison against a lowercase literal.
+     */
+    private boolean regionMatchesLower(int start, String lower) {
+        final int n = lower.length();
+        if (start < 0 || start + n > mLength) {
+            return false;
+        }
+        for (int k = 0; k < n; k++) {
+            final char c = charAt(start + k);
+            final char l = lower.charAt(k);
+            if (c != l && !(l >= 'a' && l <= 'z' && c == l - ('a' - 'A'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same set as <code>\s</code> in {@link java.util.regex.Pattern}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -61,7 +61,8 @@ public class NotificationActionUtils {
 
     /**
      * If an {@link NotificationAction} exists here for a given notification key, then we should
-     * display this undo notification rather than an email notification.
+     * display this undo notification rather than an email notification. Also read from the
+     * thread that rebuilds notifications, so synchronize on it.
      */
     public static final ObservableSparseArrayCompat<NotificationAction> sUndoNotifications =
             new ObservableSparseArrayCompat<NotificationAction>();
@@ -76,10 +77,53 @@ public class NotificationActionUtils {
     /**
      * If an undo notification is displayed, its timestamp
      * ({@link android.app.Notification.Builder#setWhen(long)}) is stored here so we can use it for
-     * the original notification if the action is undone.
+     * the original notification if the action is undone. Also used from the thread that rebuilds
+     * notifications, so synchronize on it.
      */
     public static final SparseLongArray sNotificationTimestamps = new SparseLongArray();
 
+    /**
+     * Returns the action of the undo notification showing under this id, or null.
+     */
+    static NotificationAction getUndoNotification(final int notificationId) {
+        synchronized (sUndoNotifications) {
+            return sUndoNotifications.get(notificationId);
+        }
+    }
+
+    /**
+     * Returns the timestamp kept for this id by an undo notification, or 0.
+     */
+    static long getNotificationTimestamp(final int notificationId) {
+        synchronized (sNotificationTimestamps) {
+            return sNotificationTimestamps.get(notificationId);
+        }
+    }
+
+    /**
+     * Returns the timestamp kept for this id by an undo notification, or 0, and forgets it.
+     */
+    static long takeNotificationTimestamp(final int notificationId) {
+        synchronized (sNotificationTimestamps) {
+            final long when = sNotificationTimestamps.get(notificationId);
+            sNotificationTimestamps.delete(notificationId);
+            return when;
+        }
+    }
+
+    /**
+     * Forgets the undo notification and the timestamp kept for this id, once the notification is
+     * cancelled.
+     */
+    static void forgetNotification(final int notificationId) {
+        synchronized (sUndoNotifications) {
+            sUndoNotifications.remove(notificationId);
+        }
+        synchronized (sNotificationTimestamps) {
+            sNotificationTimestamps.delete(notificationId);
+        }
+    }
+
     public enum NotificationActionType {
         ARCHIVE_REMOVE_LABEL("archive", true, R.drawable.ic_archive_wht_24dp,
                 R.drawable.ic_remove_label_wht_24dp, R.string.notification_action_archive,
@@ -798,9 +842,14 @@ public class NotificationActionUtils {
         final NotificationManager notificationManager =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         notificationManager.notify(notificationId, notification);
+        NotificationUtils.forgetPostedNotification(context, notificationId);
 
-        sUndoNotifications.put(notificationId, notificationAction);
-        sNotificationTimestamps.put(notificationId, notificationAction.getWhen());
+        synchronized (sUndoNotifications) {
+            sUndoNotifications.put(notificationId, notificationAction);
+        }
+        synchronized (sNotificationTimestamps) {
+            sNotificationTimestamps.put(notificationId, notificationAction.getWhen());
+        }
     }
 
     /**
@@ -839,7 +888,9 @@ public class NotificationActionUtils {
         final int notificationId = NotificationUtils.getNotificationId(
                 account.getAccountManagerAccount(), folder);
         removeUndoNotification(context, notificationId, true);
-        sNotificationTimestamps.delete(notificationId);
+        synchronized (sNotificationTimestamps) {
+            sNotificationTimestamps.delete(notificationId);
+        }
         processDestructiveAction(context, notificationAction);
     }
 
@@ -851,7 +902,9 @@ public class NotificationActionUtils {
      */
     private static void removeUndoNotification(
             final Context context, final int notificationId, final boolean removeNow) {
-        sUndoNotifications.delete(notificationId);
+        synchronized (sUndoNotifications) {
+            sUndoNotifications.delete(notificationId);
+        }
 
         if (removeNow) {
             final NotificationManager notificationManager =
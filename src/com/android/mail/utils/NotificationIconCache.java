@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.android.mail.utils.NotificationUtils.ContactIconInfo;
+import com.google.common.base.Objects;
+
+import java.io.PrintWriter;
+
+/**
+ * Finished notification icons and wearable backgrounds of message senders, shared by all
+ * notifications in the process, so that each sync does not look up, decode, scale and frame the
+ * photos (or draw the letter tiles) of the same senders again.
+ * <p>
+ * Entries are keyed by account, sender, and the sizes and shape of the icons, and weighted by the
+ * bytes of their bitmaps. They expire after {@link #TTL_MS}, are all dropped whenever
+ * {@link ContactsObserver} reports a change, and are released under memory pressure.
+ */
+public final class NotificationIconCache
+        implements CacheRegistry.Cache, ContactsObserver.Listener {
+    /** Enough for the senders of a few notifications, wearable backgrounds included. */
+    private static final int MAX_BYTES = 2 * 1024 * 1024;
+    /**
+     * Catches photo changes the contacts observer misses, e.g. those of a
+     * {@link com.android.mail.photo.ContactFetcher}.
+     */
+    private static final long TTL_MS = 30 * 60 * 1000;
+
+    private static NotificationIconCache sInstance;
+
+    private final LruCache<Key, Entry> mCache = new LruCache<Key, Entry>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry entry) {
+            return entry.mBytes;
+        }
+    };
+
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+    private long mBuildMillis;
+
+    public static synchronized NotificationIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotificationIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NotificationIconCache(Context context) {
+        CacheRegistry.register(context, this);
+        ContactsObserver.register(context, this);
+    }
+
+    /**
+     * Returns a copy of the icons cached for this key, or null if there are none or they have
+     * expired.
+     */
+    public ContactIconInfo get(Key key) {
+        final Entry entry = mCache.get(key);
+        synchronized (this) {
+            if (entry != null && SystemClock.elapsedRealtime() - entry.mCreated < TTL_MS) {
+                mHits++;
+                final ContactIconInfo info = new ContactIconInfo();
+                info.icon = entry.mIcon;
+                info.wearableBg = entry.mWearableBg;
+                return info;
+            }
+            mMisses++;
+        }
+        if (entry != null) {
+            mCache.remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * Caches the icons built for this key.
+     *
+     * @param buildMillis how long they took to build, for the stats
+     */
+    public void put(Key key, ContactIconInfo info, long buildMillis) {
+        synchronized (this) {
+            mBuildMillis += buildMillis;
+        }
+        if (info.icon != null) {
+            mCache.put(key, new Entry(info.icon, info.wearableBg));
+        }
+    }
+
+    @Override
+    public void onContactsChanged() {
+        invalidate();
+    }
+
+    public void invalidate() {
+        mCache.evictAll();
+        synchronized (this) {
+            mInvalidations++;
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getBuildMillis() {
+        return mBuildMillis;
+    }
+
+    @Override
+    public void releaseMemory() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Writes hit ratios and the time spent building icons so far.
+     */
+    @Override
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("NotificationIconCache:");
+        writer.print(prefix);
+        writer.print("  hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" buildMs=");
+        writer.print(mBuildMillis);
+        writer.print(" invalidations=");
+        writer.print(mInvalidations);
+        writer.print(" bytes=");
+        writer.println(mCache.size());
+    }
+
+    /**
+     * Identifies the icons of one sender, as built for one account and at given sizes.
+     */
+    public static final class Key {
+        private final String mAccountName;
+        private final String mSenderAddress;
+        /** Letter tiles are drawn from the display name. */
+        private final String mDisplayName;
+        private final int mIconWidth;
+        private final int mIconHeight;
+        private final int mWearableBgWidth;
+        private final int mWearableBgHeight;
+        private final boolean mCircle;
+        private final int mHashCode;
+
+        public Key(String accountName, String senderAddress, String displayName, int iconWidth,
+                int iconHeight, int wearableBgWidth, int wearableBgHeight, boolean circle) {
+            mAccountName = accountName;
+            mSenderAddress = senderAddress;
+            mDisplayName = displayName;
+            mIconWidth = iconWidth;
+            mIconHeight = iconHeight;
+            mWearableBgWidth = wearableBgWidth;
+            mWearableBgHeight = wearableBgHeight;
+            mCircle = circle;
+            mHashCode = Objects.hashCode(accountName, senderAddress, displayName, iconWidth,
+                    iconHeight, wearableBgWidth, wearableBgHeight, circle);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && Objects.equal(mAccountName, other.mAccountName)
+                    && Objects.equal(mSenderAddress, other.mSenderAddress)
+                    && Objects.equal(mDisplayName, other.mDisplayName)
+                    && mIconWidth == other.mIconWidth && mIconHeight == other.mIconHeight
+                    && mWearableBgWidth == other.mWearableBgWidth
+                    && mWearableBgHeight == other.mWearableBgHeight
+                    && mCircle == other.mCircle;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class Entry {
+        private final Bitmap mIcon;
+        /** Null when the sender has no photo. */
+        private final Bitmap mWearableBg;
+        private final int mBytes;
+        private final long mCreated = SystemClock.elapsedRealtime();
+
+        Entry(Bitmap icon, Bitmap wearableBg) {
+            mIcon = icon;
+            mWearableBg = wearableBg;
+            mBytes = icon.getByteCount() + (wearableBg != null ? wearableBg.getByteCount() : 0);
+        }
+    }
+}
@@ -28,7 +28,12 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.MailTo;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.support.v4.app.NotificationCompat;
@@ -40,10 +45,13 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.CharacterStyle;
 import android.text.style.TextAppearanceSpan;
+import android.util.Base64;
 import android.util.Pair;
 import android.util.SparseArray;
 
 import com.android.emailcommon.mail.Address;
+import com.android.mail.ContactInfo;
+import com.android.mail.ContactInfoRepository;
 import com.android.mail.EmailAddress;
 import com.android.mail.MailIntentService;
 import com.android.mail.R;
@@ -70,11 +78,17 @@ import com.google.android.mail.common.html.parser.HtmlDocument;
 import com.google.android.mail.common.html.parser.HtmlTree;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -84,7 +98,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class NotificationUtils {
     public static final String LOG_TAG = "NotifUtils";
@@ -113,9 +132,24 @@ public class NotificationUtils {
 
     private static BidiFormatter sBidiFormatter = BidiFormatter.getInstance();
 
-    // Maps summary notification to conversation notification ids.
+    // Maps summary notification to conversation notification ids.  Only used on the scheduler
+    // thread.
     private static Map<NotificationKey, Set<Integer>> sConversationNotificationMap =
-            new HashMap<NotificationKey, Set<Integer>>();
+            new ConcurrentHashMap<NotificationKey, Set<Integer>>();
+
+    private static NotificationScheduler sScheduler = null;
+    /** Bounds how long a service waits for the scheduled notification updates. */
+    private static final long FLUSH_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * The contact photos decoded for notification icons, which are thrown away once scaled.
+     * Photos are decoded at about the size of a wearable background, so this holds one or two.
+     * Emptied under memory pressure.
+     */
+    private static final BitmapPool sPhotoPool = new BitmapPool(1024 * 1024);
+
+    /** Draws tiles for senders without a photo; not thread safe, so synchronize on it. */
+    private static LetterTileProvider sLetterTileProvider = null;
 
     /**
      * Clears all notifications in response to the user tapping "Clear" in the status bar.
@@ -125,6 +159,7 @@ public class NotificationUtils {
         final NotificationMap notificationMap = getNotificationMap(context);
         notificationMap.clear();
         notificationMap.saveNotificationMap(context);
+        getScheduler(context).cancelAll();
     }
 
     /**
@@ -140,6 +175,72 @@ public class NotificationUtils {
         return sActiveNotificationMap;
     }
 
+    /**
+     * Returns the scheduler of notification updates, creating it if necessary.
+     */
+    private static synchronized NotificationScheduler getScheduler(Context context) {
+        if (sScheduler == null) {
+            sScheduler = new NotificationScheduler(context);
+            // Notifications are also built when no activity is running
+            CacheRegistry.listen(context);
+        }
+        return sScheduler;
+    }
+
+    private static synchronized LetterTileProvider getLetterTileProvider(Context context) {
+        if (sLetterTileProvider == null) {
+            sLetterTileProvider = new LetterTileProvider(
+                    context.getApplicationContext().getResources());
+        }
+        return sLetterTileProvider;
+    }
+
+    static {
+        CacheRegistry.register(new CacheRegistry.Cache() {
+            @Override
+            public void releaseMemory() {
+                sPhotoPool.clear();
+            }
+
+            // Writes how many notification updates were requested, coalesced and posted so far,
+            // if any were requested
+            @Override
+            public void dump(String prefix, PrintWriter writer) {
+                final NotificationScheduler scheduler;
+                synchronized (NotificationUtils.class) {
+                    scheduler = sScheduler;
+                }
+                if (scheduler != null) {
+                    scheduler.dump(prefix, writer);
+                }
+                sPhotoPool.dump(prefix, "NotificationUtils photo pool", writer);
+            }
+        });
+    }
+
+    /**
+     * Waits until the notification updates and cancels requested so far are done, for at most
+     * {@link #FLUSH_TIMEOUT_MS}. Services that request them call this before they stop, so that
+     * the process is not let go while updates are still waiting to be coalesced.
+     */
+    public static void awaitScheduledNotifications() {
+        final NotificationScheduler scheduler;
+        synchronized (NotificationUtils.class) {
+            scheduler = sScheduler;
+        }
+        if (scheduler != null) {
+            scheduler.awaitIdle(FLUSH_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Called when something other than a folder notification was posted under its id, so that the
+     * next update of the folder notification is posted even if its content did not change.
+     */
+    static void forgetPostedNotification(Context context, int notificationId) {
+        getScheduler(context).forget(notificationId);
+    }
+
     /**
      * Class representing the existing notifications, and the number of unread and
      * unseen conversations that triggered each.
@@ -148,21 +249,24 @@ public class NotificationUtils {
 
         private static final String NOTIFICATION_PART_SEPARATOR = " ";
         private static final int NUM_NOTIFICATION_PARTS= 4;
-        private final ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>> mMap =
-            new ConcurrentHashMap<NotificationKey, Pair<Integer, Integer>>();
+        /** Bumped whenever the layout of the snapshot changes. */
+        private static final int SNAPSHOT_VERSION = 1;
+        private static final int MAX_LOAD_THREADS = 4;
+        /** Guarded by this, so that a key is replaced in one step (see {@link #put}). */
+        private final Map<NotificationKey, Pair<Integer, Integer>> mMap = Maps.newHashMap();
 
         /**
          * Returns the number of key values pairs in the inner map.
          */
-        public int size() {
+        public synchronized int size() {
             return mMap.size();
         }
 
         /**
-         * Returns a set of key values.
+         * Returns a copy of the set of key values.
          */
-        public Set<NotificationKey> keySet() {
-            return mMap.keySet();
+        public synchronized Set<NotificationKey> keySet() {
+            return ImmutableSet.copyOf(mMap.keySet());
         }
 
         /**
@@ -171,14 +275,14 @@ public class NotificationUtils {
          * @param key The key {@link NotificationKey} to be removed.
          * @return The value associated with this key.
          */
-        public Pair<Integer, Integer> remove(NotificationKey key) {
+        public synchronized Pair<Integer, Integer> remove(NotificationKey key) {
             return mMap.remove(key);
         }
 
         /**
          * Clear all key-value pairs in the map.
          */
-        public void clear() {
+        public synchronized void clear() {
             mMap.clear();
         }
 
@@ -188,14 +292,14 @@ public class NotificationUtils {
          * @param key The key {@link NotificationKey} to be checked.
          * @return If a key-value pair with this key exists in the map.
          */
-        public boolean containsKey(NotificationKey key) {
+        public synchronized boolean containsKey(NotificationKey key) {
             return mMap.containsKey(key);
         }
 
         /**
          * Returns the unread count for the given NotificationKey.
          */
-        public Integer getUnread(NotificationKey key) {
+        public synchronized Integer getUnread(NotificationKey key) {
             final Pair<Integer, Integer> value = mMap.get(key);
             return value != null ? value.first : null;
         }
@@ -203,79 +307,247 @@ public class NotificationUtils {
         /**
          * Returns the unread unseen count for the given NotificationKey.
          */
-        public Integer getUnseen(NotificationKey key) {
+        public synchronized Integer getUnseen(NotificationKey key) {
             final Pair<Integer, Integer> value = mMap.get(key);
             return value != null ? value.second : null;
         }
 
         /**
-         * Store the unread and unseen value for the given NotificationKey
+         * Store the unread and unseen value for the given NotificationKey. The key replaces any
+         * equal one already in the map, so that the map holds the latest {@link Account} and
+         * {@link Folder} of each notification.
          */
-        public void put(NotificationKey key, int unread, int unseen) {
+        public synchronized void put(NotificationKey key, int unread, int unseen) {
             final Pair<Integer, Integer> value =
                     new Pair<Integer, Integer>(Integer.valueOf(unread), Integer.valueOf(unseen));
+            // A plain put would keep the key it is equal to
+            mMap.remove(key);
             mMap.put(key, value);
         }
 
         /**
          * Populates the notification map with previously cached data.
+         * <p>
+         * Entries whose account and folder are in the snapshot saved with the data need no
+         * provider queries. For the others, each account and folder is queried once, with the
+         * queries of different accounts running in parallel.
          */
         public synchronized void loadNotificationMap(final Context context) {
             final MailPrefs mailPrefs = MailPrefs.get(context);
             final Set<String> notificationSet = mailPrefs.getActiveNotificationSet();
-            if (notificationSet != null) {
-                for (String notificationEntry : notificationSet) {
-                    // Get the parts of the string that make the notification entry
-                    final String[] notificationParts =
-                            TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
-                    if (notificationParts.length == NUM_NOTIFICATION_PARTS) {
-                        final Uri accountUri = Uri.parse(notificationParts[0]);
-                        final Cursor accountCursor = context.getContentResolver().query(
-                                accountUri, UIProvider.ACCOUNTS_PROJECTION, null, null, null);
-
-                        if (accountCursor == null) {
-                            throw new IllegalStateException("Unable to locate account for uri: " +
-                                    LogUtils.contentUriToString(accountUri));
-                        }
+            if (notificationSet == null || notificationSet.isEmpty()) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final Set<String> remaining = new HashSet<String>(notificationSet);
+            final int fromSnapshot = loadSnapshot(context,
+                    mailPrefs.getActiveNotificationSnapshot(), remaining);
+
+            final Map<String, List<String[]>> entriesByAccount = Maps.newHashMap();
+            for (String notificationEntry : remaining) {
+                // Get the parts of the string that make the notification entry
+                final String[] notificationParts =
+                        TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
+                if (notificationParts.length == NUM_NOTIFICATION_PARTS) {
+                    List<String[]> entries = entriesByAccount.get(notificationParts[0]);
+                    if (entries == null) {
+                        entries = Lists.newArrayList();
+                        entriesByAccount.put(notificationParts[0], entries);
+                    }
+                    entries.add(notificationParts);
+                }
+            }
+            boolean complete = true;
+            if (entriesByAccount.size() == 1) {
+                final Map.Entry<String, List<String[]>> entry =
+                        entriesByAccount.entrySet().iterator().next();
+                putAll(loadAccountEntries(context, entry.getKey(), entry.getValue()));
+            } else if (entriesByAccount.size() > 1) {
+                complete = loadAccountEntriesInParallel(context, entriesByAccount);
+            }
+            LogUtils.d(LOG_TAG, "Restored %d notifications (%d from snapshot, %d accounts queried)"
+                    + " in %dms", size(), fromSnapshot, entriesByAccount.size(),
+                    SystemClock.elapsedRealtime() - start);
 
-                        final Account account;
-                        try {
-                            if (accountCursor.moveToFirst()) {
-                                account = Account.builder().buildFrom(accountCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            accountCursor.close();
-                        }
+            if (complete && !entriesByAccount.isEmpty()) {
+                // So the next cold start doesn't need to query these either
+                saveNotificationMap(context);
+            }
+        }
 
-                        final Uri folderUri = Uri.parse(notificationParts[1]);
-                        final Cursor folderCursor = context.getContentResolver().query(
-                                folderUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+        private void putAll(Map<NotificationKey, Pair<Integer, Integer>> entries) {
+            for (Map.Entry<NotificationKey, Pair<Integer, Integer>> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue().first, entry.getValue().second);
+            }
+        }
 
-                        if (folderCursor == null) {
-                            throw new IllegalStateException("Unable to locate folder for uri: " +
-                                    LogUtils.contentUriToString(folderUri));
+        /**
+         * Loads the entries of each account on its own thread, and adds them once all are
+         * loaded. If interrupted, the loads still running are cancelled and nothing is added.
+         *
+         * @return false if interrupted
+         */
+        private boolean loadAccountEntriesInParallel(final Context context,
+                Map<String, List<String[]>> entriesByAccount) {
+            final ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(entriesByAccount.size(), MAX_LOAD_THREADS));
+            final List<Future<Map<NotificationKey, Pair<Integer, Integer>>>> futures =
+                    Lists.newArrayList();
+            try {
+                for (final Map.Entry<String, List<String[]>> entry :
+                        entriesByAccount.entrySet()) {
+                    futures.add(executor.submit(
+                            new Callable<Map<NotificationKey, Pair<Integer, Integer>>>() {
+                        @Override
+                        public Map<NotificationKey, Pair<Integer, Integer>> call() {
+                            return loadAccountEntries(context, entry.getKey(), entry.getValue());
                         }
-
-                        final Folder folder;
-                        try {
-                            if (folderCursor.moveToFirst()) {
-                                folder = new Folder(folderCursor);
-                            } else {
-                                continue;
-                            }
-                        } finally {
-                            folderCursor.close();
+                    }));
+                }
+                final Map<NotificationKey, Pair<Integer, Integer>> loaded = Maps.newHashMap();
+                for (Future<Map<NotificationKey, Pair<Integer, Integer>>> future : futures) {
+                    try {
+                        loaded.putAll(future.get());
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
                         }
+                        throw new IllegalStateException(cause);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                putAll(loaded);
+                return true;
+            } finally {
+                // Nothing if all are done; otherwise their results are dropped with the futures
+                for (Future<?> future : futures) {
+                    future.cancel(true /* mayInterruptIfRunning */);
+                }
+                executor.shutdown();
+            }
+        }
 
-                        final NotificationKey key = new NotificationKey(account, folder);
-                        final Integer unreadValue = Integer.valueOf(notificationParts[2]);
-                        final Integer unseenValue = Integer.valueOf(notificationParts[3]);
-                        put(key, unreadValue, unseenValue);
+        /**
+         * Queries the account and the folders of these entries, each once, and returns the
+         * entries whose account and folder still exist.
+         */
+        private static Map<NotificationKey, Pair<Integer, Integer>> loadAccountEntries(
+                Context context, String accountUriString, List<String[]> entries) {
+            final ContentResolver resolver = context.getContentResolver();
+            final Uri accountUri = Uri.parse(accountUriString);
+            final Cursor accountCursor = resolver.query(
+                    accountUri, UIProvider.ACCOUNTS_PROJECTION, null, null, null);
+
+            if (accountCursor == null) {
+                throw new IllegalStateException("Unable to locate account for uri: " +
+                        LogUtils.contentUriToString(accountUri));
+            }
+
+            final Map<NotificationKey, Pair<Integer, Integer>> loaded = Maps.newHashMap();
+            final Account account;
+            try {
+                if (accountCursor.moveToFirst()) {
+                    account = Account.builder().buildFrom(accountCursor);
+                } else {
+                    return loaded;
+                }
+            } finally {
+                accountCursor.close();
+            }
+
+            final Map<String, Folder> folders = Maps.newHashMap();
+            for (String[] notificationParts : entries) {
+                final Folder folder;
+                if (folders.containsKey(notificationParts[1])) {
+                    folder = folders.get(notificationParts[1]);
+                } else {
+                    folder = queryFolder(resolver, Uri.parse(notificationParts[1]));
+                    folders.put(notificationParts[1], folder);
+                }
+                if (folder == null) {
+                    continue;
+                }
+
+                final NotificationKey key = new NotificationKey(account, folder);
+                final Integer unreadValue = Integer.valueOf(notificationParts[2]);
+                final Integer unseenValue = Integer.valueOf(notificationParts[3]);
+                loaded.put(key, new Pair<Integer, Integer>(unreadValue, unseenValue));
+            }
+            return loaded;
+        }
+
+        /**
+         * Returns the folder at this uri, or null if it no longer exists.
+         */
+        private static Folder queryFolder(ContentResolver resolver, Uri folderUri) {
+            final Cursor folderCursor = resolver.query(
+                    folderUri, UIProvider.FOLDERS_PROJECTION, null, null, null);
+
+            if (folderCursor == null) {
+                throw new IllegalStateException("Unable to locate folder for uri: " +
+                        LogUtils.contentUriToString(folderUri));
+            }
+
+            try {
+                return folderCursor.moveToFirst() ? new Folder(folderCursor) : null;
+            } finally {
+                folderCursor.close();
+            }
+        }
+
+        /**
+         * Adds the entries of the notification set that are in the snapshot, and removes them
+         * from the set.
+         *
+         * @return the number of entries added
+         */
+        private int loadSnapshot(Context context, String snapshot, Set<String> notificationSet) {
+            if (snapshot == null) {
+                return 0;
+            }
+            int loaded = 0;
+            final Parcel p = Parcel.obtain();
+            try {
+                final byte[] blob = Base64.decode(snapshot, Base64.DEFAULT);
+                p.unmarshall(blob, 0, blob.length);
+                p.setDataPosition(0);
+                // Folders are parceled, so only trust snapshots written by this very version
+                if (p.readInt() != SNAPSHOT_VERSION
+                        || !TextUtils.equals(p.readString(), Utils.getVersionCode(context))) {
+                    return 0;
+                }
+                final int count = p.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String notificationEntry = p.readString();
+                    final Account account = Account.newInstance(p.readString());
+                    final Folder folder = Folder.CREATOR.createFromParcel(p,
+                            Folder.class.getClassLoader());
+                    if (account == null || !notificationSet.contains(notificationEntry)) {
+                        continue;
                     }
+                    final String[] notificationParts =
+                            TextUtils.split(notificationEntry, NOTIFICATION_PART_SEPARATOR);
+                    if (notificationParts.length != NUM_NOTIFICATION_PARTS
+                            || !notificationParts[0].equals(account.uri.toString())
+                            || !notificationParts[1].equals(folder.folderUri.fullUri.toString())) {
+                        continue;
+                    }
+                    put(new NotificationKey(account, folder),
+                            Integer.valueOf(notificationParts[2]),
+                            Integer.valueOf(notificationParts[3]));
+                    notificationSet.remove(notificationEntry);
+                    loaded++;
                 }
+            } catch (RuntimeException e) {
+                // Entries not restored yet are still in the set, and will be queried
+                LogUtils.w(LOG_TAG, e, "Unable to read notification snapshot");
+            } finally {
+                p.recycle();
             }
+            return loaded;
         }
 
         /**
@@ -283,6 +555,12 @@ public class NotificationUtils {
          */
         public synchronized void saveNotificationMap(Context context) {
             final Set<String> notificationSet = Sets.newHashSet();
+            final Parcel p = Parcel.obtain();
+            p.writeInt(SNAPSHOT_VERSION);
+            p.writeString(Utils.getVersionCode(context));
+            final int countPosition = p.dataPosition();
+            p.writeInt(0);
+            int count = 0;
             final Set<NotificationKey> keys = keySet();
             for (NotificationKey key : keys) {
                 final Integer unreadCount = getUnread(key);
@@ -291,11 +569,24 @@ public class NotificationUtils {
                     final String[] partValues = new String[] {
                             key.account.uri.toString(), key.folder.folderUri.fullUri.toString(),
                             unreadCount.toString(), unseenCount.toString()};
-                    notificationSet.add(TextUtils.join(NOTIFICATION_PART_SEPARATOR, partValues));
+                    final String notificationEntry =
+                            TextUtils.join(NOTIFICATION_PART_SEPARATOR, partValues);
+                    notificationSet.add(notificationEntry);
+                    p.writeString(notificationEntry);
+                    p.writeString(key.account.serialize());
+                    key.folder.writeToParcel(p, 0);
+                    count++;
                 }
             }
+            final int end = p.dataPosition();
+            p.setDataPosition(countPosition);
+            p.writeInt(count);
+            p.setDataPosition(end);
+            final String snapshot = Base64.encodeToString(p.marshall(), Base64.NO_WRAP);
+            p.recycle();
+
             final MailPrefs mailPrefs = MailPrefs.get(context);
-            mailPrefs.cacheActiveNotificationSet(notificationSet);
+            mailPrefs.cacheActiveNotificationSet(notificationSet, snapshot);
         }
     }
 
@@ -331,8 +622,7 @@ public class NotificationUtils {
      **/
     public static void cancelAllNotifications(Context context) {
         LogUtils.d(LOG_TAG, "cancelAllNotifications - cancelling all");
-        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
-        nm.cancelAll();
+        getScheduler(context).cancelAllPosted();
         clearAllNotfications(context);
     }
 
@@ -353,6 +643,8 @@ public class NotificationUtils {
      * account-folder pair, pass in the account and folder that should be resent.
      * All other account-folder pairs will not have their notifications resent.
      * All notifications will be resent if account or folder is null.
+     * Notifications are rebuilt asynchronously, and only reposted if their content changed
+     * (or cancelExisting is set).
      *
      * @param context Current context.
      * @param cancelExisting True, if all notifications should be canceled before resending.
@@ -372,8 +664,7 @@ public class NotificationUtils {
 
         if (cancelExisting) {
             LogUtils.d(LOG_TAG, "resendNotifications - cancelling all");
-            NotificationManagerCompat nm = NotificationManagerCompat.from(context);
-            nm.cancelAll();
+            getScheduler(context).cancelAllPosted();
         }
         // Re-validate the notifications.
         final NotificationMap notificationMap = getNotificationMap(context);
@@ -397,10 +688,10 @@ public class NotificationUtils {
                     notification.account.uri, folder.folderUri);
 
             final NotificationAction undoableAction =
-                    NotificationActionUtils.sUndoNotifications.get(notificationId);
+                    NotificationActionUtils.getUndoNotification(notificationId);
             if (undoableAction == null) {
-                validateNotifications(context, folder, notification.account, true,
-                        false, notification, contactFetcher);
+                getScheduler(context).schedule(folder, notification.account, true, false,
+                        notification, contactFetcher);
             } else {
                 // Create an undo notification
                 NotificationActionUtils.createUndoNotification(context, undoableAction);
@@ -452,19 +743,15 @@ public class NotificationUtils {
 
         // Cancel & remove the invalid notifications.
         if (notificationsToCancel.size() > 0) {
-            NotificationManagerCompat nm = NotificationManagerCompat.from(context);
             for (NotificationKey notification : notificationsToCancel) {
                 final Folder folder = notification.folder;
                 final int notificationId =
                         getNotificationId(notification.account.getAccountManagerAccount(), folder);
                 LogUtils.d(LOG_TAG, "validateAccountNotifications - cancelling %s / %s",
                         notification.account.getEmailAddress(), folder.persistentId);
-                nm.cancel(notificationId);
+                getScheduler(context).cancel(notification, notificationId);
                 notificationMap.remove(notification);
-                NotificationActionUtils.sUndoNotifications.remove(notificationId);
-                NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
-
-                cancelConversationNotifications(notification, nm);
+                NotificationActionUtils.forgetNotification(notificationId);
             }
             notificationMap.saveNotificationMap(context);
         }
@@ -491,6 +778,9 @@ public class NotificationUtils {
      * Display only one notification. Should only be called from
      * {@link com.android.mail.MailIntentService}. Use {@link #sendSetNewEmailIndicatorIntent}
      * if you need to perform this action anywhere else.
+     * <p>
+     * The counts are recorded right away, but the notification is rebuilt on a background thread
+     * shortly after, together with the other updates of the folder requested in the meantime.
      */
     public static void setNewEmailIndicator(Context context, final int unreadCount,
             final int unseenCount, final Account account, final Folder folder,
@@ -510,10 +800,7 @@ public class NotificationUtils {
             LogUtils.d(LOG_TAG, "setNewEmailIndicator - cancelling %s / %s",
                     account.getEmailAddress(), folder.persistentId);
             notificationMap.remove(key);
-
-            NotificationManagerCompat nm = NotificationManagerCompat.from(context);
-            nm.cancel(notificationId);
-            cancelConversationNotifications(key, nm);
+            getScheduler(context).cancel(key, notificationId);
         } else {
             LogUtils.d(LOG_TAG, "setNewEmailIndicator - update count for: %s / %s " +
                     "to: unread: %d unseen %d", account.getEmailAddress(), folder.persistentId,
@@ -535,9 +822,9 @@ public class NotificationUtils {
                     getAttention);
         }
 
-        if (NotificationActionUtils.sUndoNotifications.get(notificationId) == null) {
-            validateNotifications(context, folder, account, getAttention, ignoreUnobtrusiveSetting,
-                    key, contactFetcher);
+        if (NotificationActionUtils.getUndoNotification(notificationId) == null) {
+            getScheduler(context).schedule(folder, account, getAttention,
+                    ignoreUnobtrusiveSetting, key, contactFetcher);
         }
     }
 
@@ -636,11 +923,28 @@ public class NotificationUtils {
                         LogUtils.sanitizeName(LOG_TAG, account.getEmailAddress()),
                         LogUtils.sanitizeName(LOG_TAG, folder.persistentId));
                 nm.cancel(notificationId);
+                // Already on the scheduler thread
+                getScheduler(context).forgetNow(notificationId);
                 cancelConversationNotifications(notificationKey, nm);
 
                 return;
             }
 
+            // Each sync asks for the notification again; only rebuild and repost it if what it
+            // shows has changed.  Undo notifications replace it, so it is always restored after
+            // one.
+            final long fingerprint = computeFingerprint(cursor, unreadCount, unseenCount,
+                    res.getInteger(R.integer.max_num_notification_digest_items) + 1);
+            final NotificationScheduler scheduler = getScheduler(context);
+            if (NotificationActionUtils.getNotificationTimestamp(notificationId) == 0
+                    && scheduler.isPosted(notificationId, fingerprint)) {
+                LogUtils.i(LOG_TAG, "validateNotifications - unchanged account %s / folder %s",
+                        LogUtils.sanitizeName(LOG_TAG, account.getEmailAddress()),
+                        LogUtils.sanitizeName(LOG_TAG, folder.persistentId));
+                scheduler.onUnchanged();
+                return;
+            }
+
             // We now have all we need to create the notification and the pending intent
             PendingIntent clickIntent = null;
 
@@ -665,8 +969,8 @@ public class NotificationUtils {
 
             final long when;
 
-            final long oldWhen =
-                    NotificationActionUtils.sNotificationTimestamps.get(notificationId);
+            // The timestamp is now stored in the notification, so it is removed from the array
+            final long oldWhen = NotificationActionUtils.takeNotificationTimestamp(notificationId);
             if (oldWhen != 0) {
                 when = oldWhen;
             } else {
@@ -675,9 +979,6 @@ public class NotificationUtils {
 
             notification.setWhen(when);
 
-            // The timestamp is now stored in the notification, so we can remove it from here
-            NotificationActionUtils.sNotificationTimestamps.delete(notificationId);
-
             // Dispatch a CLEAR_NEW_MAIL_NOTIFICATIONS intent if the user taps the "X" next to a
             // notification.  Also this intent gets fired when the user taps on a notification as
             // the AutoCancel flag has been set
@@ -813,6 +1114,7 @@ public class NotificationUtils {
                 notification.setPublicVersion(publicNotification);
 
                 nm.notify(notificationId, notification.build());
+                scheduler.onPosted(notificationId, fingerprint);
 
                 if (prevConversationNotifications != null) {
                     Set<Integer> currentNotificationIds = msgNotifications.keySet();
@@ -845,6 +1147,24 @@ public class NotificationUtils {
         }
     }
 
+    /**
+     * Returns a hash of what a folder notification shows: its counts, and the ids, dates, senders
+     * and snippets of the unseen conversations it lists.  Leaves the cursor before its first row.
+     */
+    private static long computeFingerprint(Cursor cursor, int unreadCount, int unseenCount,
+            int maxConversations) {
+        long fingerprint = 31L * unreadCount + unseenCount;
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < maxConversations && cursor.moveToNext(); i++) {
+            final Conversation conversation = new Conversation(cursor);
+            fingerprint = 31L * fingerprint + conversation.id;
+            fingerprint = 31L * fingerprint + conversation.dateMs;
+            fingerprint = 31L * fingerprint + Objects.hashCode(conversation.conversationInfo);
+        }
+        cursor.moveToPosition(-1);
+        return fingerprint;
+    }
+
     /**
      * Build and return a redacted form of a notification using the given information. This redacted
      * form is shown above the lock screen and is devoid of sensitive information.
@@ -987,6 +1307,11 @@ public class NotificationUtils {
         LogUtils.i(LOG_TAG, "Showing notification with unreadCount of %d and unseenCount of %d",
                 unreadCount, unseenCount);
 
+        final NotificationIconCache iconCache = NotificationIconCache.getInstance(context);
+        final int iconHitsBefore = iconCache.getHitCount();
+        final int iconMissesBefore = iconCache.getMissCount();
+        final long iconBuildMillisBefore = iconCache.getBuildMillis();
+
         String notificationTicker = null;
 
         // Boolean indicating that this notification is for a non-inbox label.
@@ -1026,118 +1351,83 @@ public class NotificationUtils {
 
                 ConfigResult firstResult = null;
                 int numDigestItems = 0;
+                final long digestStart = SystemClock.elapsedRealtime();
                 do {
                     final Conversation conversation = new Conversation(conversationCursor);
 
                     if (!conversation.read) {
-                        boolean multipleUnreadThread = false;
-                        // TODO(cwren) extract this pattern into a helper
-
-                        Cursor cursor = null;
-                        MessageCursor messageCursor = null;
-                        try {
-                            final Uri.Builder uriBuilder = conversation.messageListUri.buildUpon();
-                            uriBuilder.appendQueryParameter(
-                                    UIProvider.LABEL_QUERY_PARAMETER, notificationLabelName);
-                            cursor = context.getContentResolver().query(uriBuilder.build(),
-                                    UIProvider.MESSAGE_PROJECTION, null, null, null);
-                            messageCursor = new MessageCursor(cursor);
-
-                            String from = "";
-                            String fromAddress = "";
-                            if (messageCursor.moveToPosition(messageCursor.getCount() - 1)) {
-                                final Message message = messageCursor.getMessage();
-                                fromAddress = message.getFrom();
-                                if (fromAddress == null) {
-                                    fromAddress = "";
-                                }
-                                from = getDisplayableSender(fromAddress);
-                                addEmailAddressToSet(fromAddress, senderAddressesSet);
-                            }
-                            while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
-                                final Message message = messageCursor.getMessage();
-                                if (!message.read &&
-                                        !fromAddress.contentEquals(message.getFrom())) {
-                                    multipleUnreadThread = true;
-                                    addEmailAddressToSet(message.getFrom(), senderAddressesSet);
-                                }
-                            }
-                            final SpannableStringBuilder sendersBuilder;
-                            if (multipleUnreadThread) {
-                                final int sendersLength =
-                                        res.getInteger(R.integer.swipe_senders_length);
-
-                                sendersBuilder = getStyledSenders(context, conversationCursor,
-                                        sendersLength, account);
-                            } else {
-                                sendersBuilder =
-                                        new SpannableStringBuilder(getWrappedFromString(from));
-                            }
-                            final CharSequence digestLine = getSingleMessageInboxLine(context,
-                                    sendersBuilder.toString(),
-                                    ConversationItemView.filterTag(context, conversation.subject),
-                                    conversation.getSnippet());
-                            digest.addLine(digestLine);
-                            numDigestItems++;
-
-                            // Adding conversation notification for Wear.
-                            NotificationCompat.Builder conversationNotif =
-                                    new NotificationCompat.Builder(context);
-                            conversationNotif.setCategory(NotificationCompat.CATEGORY_EMAIL);
-
-                            conversationNotif.setSmallIcon(
-                                    R.drawable.ic_notification_multiple_mail_24dp);
-
-                            if (com.android.mail.utils.Utils.isRunningLOrLater()) {
-                                conversationNotif.setColor(
-                                        context.getResources()
-                                                .getColor(R.color.notification_icon_color));
-                            }
-                            conversationNotif.setContentText(digestLine);
-                            Intent conversationNotificationIntent = createViewConversationIntent(
-                                    context, account, folder, conversationCursor);
-                            PendingIntent conversationClickIntent = createClickPendingIntent(
-                                    context, conversationNotificationIntent);
-                            conversationNotif.setContentIntent(conversationClickIntent);
-                            conversationNotif.setAutoCancel(true);
-
-                            // Conversations are sorted in descending order, but notification sort
-                            // key is in ascending order.  Invert the order key to get the right
-                            // order.  Left pad 19 zeros because it's a long.
-                            String groupSortKey = String.format("%019d",
-                                    (Long.MAX_VALUE - conversation.orderKey));
-                            conversationNotif.setGroup(notificationGroupKey);
-                            conversationNotif.setSortKey(groupSortKey);
-                            conversationNotif.setWhen(conversation.dateMs);
-
-                            int conversationNotificationId = getNotificationId(
-                                    summaryNotificationId, conversation.hashCode());
-
-                            final NotificationCompat.WearableExtender conversationWearExtender =
-                                    new NotificationCompat.WearableExtender();
-                            final ConfigResult result =
-                                    configureNotifForOneConversation(context, account,
-                                    folderPreferences, conversationNotif, conversationWearExtender,
-                                    conversationCursor, notificationIntent, folder, when, res,
-                                    isInbox, notificationLabelName, conversationNotificationId,
-                                    contactFetcher);
-                            msgNotifications.put(conversationNotificationId,
-                                    NotificationBuilders.of(conversationNotif,
-                                            conversationWearExtender));
-
-                            if (firstResult == null) {
-                                firstResult = result;
-                            }
-                        } finally {
-                            if (messageCursor != null) {
-                                messageCursor.close();
-                            }
-                            if (cursor != null) {
-                                cursor.close();
-                            }
+                        // Adding conversation notification for Wear.
+                        NotificationCompat.Builder conversationNotif =
+                                new NotificationCompat.Builder(context);
+                        conversationNotif.setCategory(NotificationCompat.CATEGORY_EMAIL);
+
+                        conversationNotif.setSmallIcon(
+                                R.drawable.ic_notification_multiple_mail_24dp);
+
+                        if (com.android.mail.utils.Utils.isRunningLOrLater()) {
+                            conversationNotif.setColor(
+                                    context.getResources()
+                                            .getColor(R.color.notification_icon_color));
                         }
+                        Intent conversationNotificationIntent = createViewConversationIntent(
+                                context, account, folder, conversationCursor);
+                        PendingIntent conversationClickIntent = createClickPendingIntent(
+                                context, conversationNotificationIntent);
+                        conversationNotif.setContentIntent(conversationClickIntent);
+                        conversationNotif.setAutoCancel(true);
+
+                        // Conversations are sorted in descending order, but notification sort
+                        // key is in ascending order.  Invert the order key to get the right
+                        // order.  Left pad 19 zeros because it's a long.
+                        String groupSortKey = String.format("%019d",
+                                (Long.MAX_VALUE - conversation.orderKey));
+                        conversationNotif.setGroup(notificationGroupKey);
+                        conversationNotif.setSortKey(groupSortKey);
+                        conversationNotif.setWhen(conversation.dateMs);
+
+                        int conversationNotificationId = getNotificationId(
+                                summaryNotificationId, conversation.hashCode());
+
+                        // This loads the conversation's messages, and also collects the senders
+                        // for the digest line so they don't need a query of their own.
+                        final NotificationCompat.WearableExtender conversationWearExtender =
+                                new NotificationCompat.WearableExtender();
+                        final ConfigResult result =
+                                configureNotifForOneConversation(context, account,
+                                folderPreferences, conversationNotif, conversationWearExtender,
+                                conversationCursor, notificationIntent, folder, when, res,
+                                isInbox, notificationLabelName, conversationNotificationId,
+                                contactFetcher);
+                        msgNotifications.put(conversationNotificationId,
+                                NotificationBuilders.of(conversationNotif,
+                                        conversationWearExtender));
+
+                        if (firstResult == null) {
+                            firstResult = result;
+                        }
+
+                        final SpannableStringBuilder sendersBuilder;
+                        if (result.multipleUnreadThread) {
+                            final int sendersLength =
+                                    res.getInteger(R.integer.swipe_senders_length);
+
+                            sendersBuilder = getStyledSenders(context, conversationCursor,
+                                    sendersLength, account);
+                        } else {
+                            sendersBuilder = new SpannableStringBuilder(
+                                    getWrappedFromString(result.lastSender));
+                        }
+                        final CharSequence digestLine = getSingleMessageInboxLine(context,
+                                sendersBuilder.toString(),
+                                ConversationItemView.filterTag(context, conversation.subject),
+                                conversation.getSnippet());
+                        digest.addLine(digestLine);
+                        numDigestItems++;
+                        senderAddressesSet.addAll(result.unreadSenderAddresses);
                     }
                 } while (numDigestItems <= maxNumDigestItems && conversationCursor.moveToNext());
+                LogUtils.d(LOG_TAG, "Built notification digest of %d conversations in %dms",
+                        numDigestItems, SystemClock.elapsedRealtime() - digestStart);
 
                 // Tag main digest notification with the senders
                 tagNotificationsWithPeople(notificationBuilder, senderAddressesSet);
@@ -1191,6 +1481,11 @@ public class NotificationUtils {
         }
 
         notificationBuilder.setContentIntent(clickIntent);
+
+        LogUtils.d(LOG_TAG, "Contact icons: %d cached, %d built in %dms",
+                iconCache.getHitCount() - iconHitsBefore,
+                iconCache.getMissCount() - iconMissesBefore,
+                iconCache.getBuildMillis() - iconBuildMillisBefore);
     }
 
     /**
@@ -1234,6 +1529,8 @@ public class NotificationUtils {
                     fromAddress = "";
                 }
                 from = getDisplayableSender(fromAddress);
+                result.lastSender = from;
+                addEmailAddressToSet(fromAddress, result.unreadSenderAddresses);
                 result.contactIconInfo = getContactIcon(
                         context, account.getAccountManagerAccount().name, from,
                         getSenderAddress(fromAddress), folder, contactFetcher);
@@ -1244,16 +1541,24 @@ public class NotificationUtils {
             // Assume that the last message in this conversation is unread
             int firstUnseenMessagePos = messageCursor.getPosition();
             while (messageCursor.moveToPosition(messageCursor.getPosition() - 1)) {
-                final Message message = messageCursor.getMessage();
-                final boolean unseen = !message.seen;
+                // Only the sender and flags are needed here, so read them straight off the row
+                // instead of creating a Message for every message in the conversation.
+                final String messageFrom = messageCursor.getString(UIProvider.MESSAGE_FROM_COLUMN);
+                final boolean otherSender = !TextUtils.equals(fromAddress, messageFrom);
+                final boolean unseen = messageCursor.getInt(UIProvider.MESSAGE_SEEN_COLUMN) == 0;
                 if (unseen) {
                     firstUnseenMessagePos = messageCursor.getPosition();
-                    addEmailAddressToSet(message.getFrom(), senderAddressesSet);
-                    if (!multipleUnseenThread
-                            && !fromAddress.contentEquals(message.getFrom())) {
+                    addEmailAddressToSet(messageFrom, senderAddressesSet);
+                    if (otherSender) {
                         multipleUnseenThread = true;
                     }
                 }
+                final boolean unread = messageCursor.getInt(UIProvider.MESSAGE_READ_COLUMN) == 0;
+                if (unread && otherSender) {
+                    // For the line of this conversation in a digest
+                    result.multipleUnreadThread = true;
+                    addEmailAddressToSet(messageFrom, result.unreadSenderAddresses);
+                }
             }
 
             final String subject = ConversationItemView.filterTag(context, conversation.subject);
@@ -1620,11 +1925,8 @@ public class NotificationUtils {
         notificationMap.remove(key);
         notificationMap.saveNotificationMap(context);
 
-        final NotificationManagerCompat notificationManager =
-                NotificationManagerCompat.from(context);
-        notificationManager.cancel(getNotificationId(account.getAccountManagerAccount(), folder));
-
-        cancelConversationNotifications(key, notificationManager);
+        final int notificationId = getNotificationId(account.getAccountManagerAccount(), folder);
+        getScheduler(context).cancel(key, notificationId);
 
         if (markSeen) {
             markSeen(context, folder);
@@ -1662,15 +1964,11 @@ public class NotificationUtils {
 
         final List<NotificationKey> notificationKeys = keyBuilder.build();
 
-        final NotificationManagerCompat notificationManager =
-                NotificationManagerCompat.from(context);
-
         for (final NotificationKey notificationKey : notificationKeys) {
             final Folder folder = notificationKey.folder;
-            notificationManager.cancel(getNotificationId(account, folder));
+            final int notificationId = getNotificationId(account, folder);
+            getScheduler(context).cancel(notificationKey, notificationId);
             notificationMap.remove(notificationKey);
-
-            cancelConversationNotifications(notificationKey, notificationManager);
         }
 
         notificationMap.saveNotificationMap(context);
@@ -1710,27 +2008,22 @@ public class NotificationUtils {
             final int idealWearableBgHeight =
                     res.getDimensionPixelSize(R.dimen.wearable_background_height);
 
-            if (contactFetcher != null) {
-                contactIconInfo = contactFetcher.getContactPhoto(context, accountName,
-                        senderAddress, idealIconWidth, idealIconHeight, idealWearableBgWidth,
-                        idealWearableBgHeight);
-            } else {
-                contactIconInfo = getContactInfo(context, senderAddress, idealIconWidth,
-                        idealIconHeight, idealWearableBgWidth, idealWearableBgHeight);
-            }
-
-            if (contactIconInfo.icon == null) {
-                // Make a colorful tile!
-                final Dimensions dimensions = new Dimensions(idealIconWidth, idealIconHeight,
-                        Dimensions.SCALE_ONE);
-
-                contactIconInfo.icon = new LetterTileProvider(context.getResources())
-                        .getLetterTile(dimensions, displayName, senderAddress);
-            }
-
             // Only turn the square photo/letter tile into a circle for L and later
-            if (Utils.isRunningLOrLater()) {
-                contactIconInfo.icon = BitmapUtil.frameBitmapInCircle(contactIconInfo.icon);
+            final boolean circle = Utils.isRunningLOrLater();
+
+            final NotificationIconCache iconCache = NotificationIconCache.getInstance(context);
+            final NotificationIconCache.Key key = new NotificationIconCache.Key(accountName,
+                    senderAddress, displayName, idealIconWidth, idealIconHeight,
+                    idealWearableBgWidth, idealWearableBgHeight, circle);
+            final ContactIconInfo cached = iconCache.get(key);
+            if (cached != null) {
+                contactIconInfo = cached;
+            } else {
+                final long start = SystemClock.elapsedRealtime();
+                contactIconInfo = buildContactIcon(context, accountName, displayName,
+                        senderAddress, contactFetcher, idealIconWidth, idealIconHeight,
+                        idealWearableBgWidth, idealWearableBgHeight, circle);
+                iconCache.put(key, contactIconInfo, SystemClock.elapsedRealtime() - start);
             }
         }
 
@@ -1747,6 +2040,41 @@ public class NotificationUtils {
         return contactIconInfo;
     }
 
+    /**
+     * Builds the icon of a sender from their contact photo, or a letter tile if they have none.
+     */
+    private static ContactIconInfo buildContactIcon(final Context context, String accountName,
+            final String displayName, final String senderAddress,
+            final ContactFetcher contactFetcher, int idealIconWidth, int idealIconHeight,
+            int idealWearableBgWidth, int idealWearableBgHeight, boolean circle) {
+        final ContactIconInfo contactIconInfo;
+        if (contactFetcher != null) {
+            contactIconInfo = contactFetcher.getContactPhoto(context, accountName,
+                    senderAddress, idealIconWidth, idealIconHeight, idealWearableBgWidth,
+                    idealWearableBgHeight);
+        } else {
+            contactIconInfo = getContactInfo(context, senderAddress, idealIconWidth,
+                    idealIconHeight, idealWearableBgWidth, idealWearableBgHeight, circle);
+        }
+
+        if (contactIconInfo.icon == null) {
+            // Make a colorful tile!  It comes framed already.
+            final Dimensions dimensions = new Dimensions(idealIconWidth, idealIconHeight,
+                    Dimensions.SCALE_ONE);
+
+            final LetterTileProvider letterTileProvider = getLetterTileProvider(context);
+            synchronized (letterTileProvider) {
+                contactIconInfo.icon = letterTileProvider.getLetterTile(dimensions, displayName,
+                        senderAddress, circle);
+            }
+        } else if (circle && contactFetcher != null) {
+            // Our own lookup frames the icon as it scales it
+            contactIconInfo.icon = BitmapUtil.frameBitmapInCircle(contactIconInfo.icon,
+                    sPhotoPool);
+        }
+        return contactIconInfo;
+    }
+
     private static ArrayList<Long> findContacts(Context context, Collection<String> addresses) {
         ArrayList<String> whereArgs = new ArrayList<String>();
         StringBuilder whereBuilder = new StringBuilder();
@@ -1781,7 +2109,32 @@ public class NotificationUtils {
             final Context context, final String senderAddress,
             final int idealIconWidth, final int idealIconHeight,
             final int idealWearableBgWidth, final int idealWearableBgHeight) {
+        return getContactInfo(context, senderAddress, idealIconWidth, idealIconHeight,
+                idealWearableBgWidth, idealWearableBgHeight, false /* circle */);
+    }
+
+    /**
+     * @param circle whether to frame the icon in a circle, as with
+     *               {@link BitmapUtil#frameBitmapInCircle(Bitmap)}
+     */
+    private static ContactIconInfo getContactInfo(
+            final Context context, final String senderAddress,
+            final int idealIconWidth, final int idealIconHeight,
+            final int idealWearableBgWidth, final int idealWearableBgHeight,
+            final boolean circle) {
         final ContactIconInfo contactIconInfo = new ContactIconInfo();
+        // Shares the lookup with the rest of the app, which remembers the many senders that are
+        // not contacts, so that no query is made for them.
+        final ImmutableMap<String, ContactInfo> contactInfos =
+                ContactInfoRepository.getInstance(context).getContactInfos(
+                        context.getContentResolver(), ImmutableSet.of(senderAddress),
+                        false /* decodeBitmaps */);
+        final ContactInfo contactInfo =
+                contactInfos != null ? contactInfos.get(senderAddress) : null;
+        if (contactInfo != null && contactInfo.contactUri == null) {
+            return contactIconInfo;
+        }
+
         final List<Long> contactIds = findContacts(context, Arrays.asList(
                 new String[]{senderAddress}));
 
@@ -1795,19 +2148,27 @@ public class NotificationUtils {
 
                 if (inputStream != null) {
                     try {
-                        final Bitmap source = BitmapFactory.decodeStream(inputStream);
+                        // Decoded just large enough for both sizes, then drawn into each,
+                        // framing the icon in the same draw. Both are center-cropped rather
+                        // than stretched, so photos that aren't square keep their proportions.
+                        final byte[] photo = ByteStreams.toByteArray(inputStream);
+                        final Bitmap source = BitmapUtil.decodeByteArray(photo,
+                                Math.max(idealIconWidth, idealWearableBgWidth),
+                                Math.max(idealIconHeight, idealWearableBgHeight), sPhotoPool);
                         if (source != null) {
-                            // We should scale this image to fit the intended size
-                            contactIconInfo.icon = Bitmap.createScaledBitmap(source, idealIconWidth,
-                                    idealIconHeight, true);
-
-                            contactIconInfo.wearableBg = Bitmap.createScaledBitmap(source,
-                                    idealWearableBgWidth, idealWearableBgHeight, true);
+                            contactIconInfo.icon = BitmapUtil.centerCrop(source, idealIconWidth,
+                                    idealIconHeight, circle, sPhotoPool);
+                            contactIconInfo.wearableBg = BitmapUtil.centerCrop(source,
+                                    idealWearableBgWidth, idealWearableBgHeight,
+                                    false /* circle */, sPhotoPool);
+                            sPhotoPool.put(source);
                         }
 
                         if (contactIconInfo.icon != null) {
                             break;
                         }
+                    } catch (IOException e) {
+                        LogUtils.w(LOG_TAG, e, "Unable to read contact photo");
                     } finally {
                         Closeables.closeQuietly(inputStream);
                     }
@@ -1946,6 +2307,253 @@ public class NotificationUtils {
         }
     }
 
+    /**
+     * Rebuilds folder notifications off the caller's thread.  The requests made for one account
+     * and folder within {@link #DEBOUNCE_MS} of each other, such as those of the several intents
+     * of one sync, are coalesced into one rebuild.  The fingerprint of each posted notification is
+     * kept until it is cancelled, so that a rebuild that would show the same thing is not posted.
+     * <p>
+     * Notifications are cancelled on the same thread, so that a rebuild already running when a
+     * cancel is requested can't post the notification again after it.
+     */
+    private static final class NotificationScheduler {
+        private static final long DEBOUNCE_MS = 250;
+
+        private final Context mContext;
+        private final Handler mHandler;
+        /** Requests waiting for their window to close. */
+        private final Map<NotificationKey, PendingValidation> mPending = Maps.newHashMap();
+        /** Fingerprints of the posted notifications, by notification id. */
+        private final Map<Integer, Long> mFingerprints = Maps.newHashMap();
+
+        /** Runnables posted and not finished yet, so that callers can wait for them. */
+        private int mQueued;
+
+        private int mRequested;
+        private int mCoalesced;
+        private int mPosted;
+        private int mUnchanged;
+
+        public NotificationScheduler(Context context) {
+            mContext = context.getApplicationContext();
+            final HandlerThread thread = new HandlerThread("NotificationScheduler",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+
+        /**
+         * Rebuilds the notification of this account and folder once the window closes. Attention
+         * is requested if any of the coalesced requests asked for it.
+         */
+        public void schedule(Folder folder, Account account, boolean getAttention,
+                boolean ignoreUnobtrusiveSetting, final NotificationKey key,
+                ContactFetcher contactFetcher) {
+            synchronized (this) {
+                mRequested++;
+                final PendingValidation pending = mPending.get(key);
+                if (pending != null) {
+                    mCoalesced++;
+                    pending.folder = folder;
+                    pending.account = account;
+                    pending.getAttention |= getAttention;
+                    pending.ignoreUnobtrusiveSetting |= ignoreUnobtrusiveSetting;
+                    pending.contactFetcher = contactFetcher;
+                    return;
+                }
+                mPending.put(key, new PendingValidation(folder, account, getAttention,
+                        ignoreUnobtrusiveSetting, contactFetcher));
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    validate(key);
+                }
+            }, DEBOUNCE_MS);
+        }
+
+        private void post(final Runnable runnable, long delayMillis) {
+            synchronized (this) {
+                mQueued++;
+            }
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        synchronized (NotificationScheduler.this) {
+                            mQueued--;
+                            NotificationScheduler.this.notifyAll();
+                        }
+                    }
+                }
+            }, delayMillis);
+        }
+
+        /**
+         * Waits until the requested rebuilds and cancels are done, or for at most this long.
+         */
+        public synchronized void awaitIdle(long timeoutMillis) {
+            final long end = SystemClock.elapsedRealtime() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (mQueued > 0 && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = end - SystemClock.elapsedRealtime();
+            }
+        }
+
+        private void validate(NotificationKey key) {
+            final PendingValidation pending;
+            synchronized (this) {
+                pending = mPending.remove(key);
+            }
+            if (pending == null) {
+                // Cancelled while waiting
+                return;
+            }
+            final int notificationId =
+                    getNotificationId(pending.account.getAccountManagerAccount(), pending.folder);
+            if (NotificationActionUtils.getUndoNotification(notificationId) != null) {
+                LogUtils.d(LOG_TAG, "NotificationScheduler - undo notification showing for %s",
+                        key);
+                return;
+            }
+            validateNotifications(mContext, pending.folder, pending.account,
+                    pending.getAttention, pending.ignoreUnobtrusiveSetting, key,
+                    pending.contactFetcher);
+        }
+
+        /**
+         * Cancels the notification of this account and folder, and those of its conversations.
+         * The pending request is dropped right away, and the notifications are cancelled on the
+         * scheduler thread, after any rebuild that is already running.
+         */
+        public void cancel(final NotificationKey key, final int notificationId) {
+            synchronized (this) {
+                mPending.remove(key);
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    final NotificationManagerCompat nm = NotificationManagerCompat.from(mContext);
+                    nm.cancel(notificationId);
+                    forgetNow(notificationId);
+                    cancelConversationNotifications(key, nm);
+                }
+            }, 0);
+        }
+
+        /**
+         * Drops all pending requests, and forgets the posted notifications once the running
+         * rebuild, if any, is done.
+         */
+        public void cancelAll() {
+            synchronized (this) {
+                mPending.clear();
+            }
+            forgetAll();
+        }
+
+        /**
+         * Cancels all notifications of the app on the scheduler thread, after any rebuild that is
+         * already running. Pending requests are kept.
+         */
+        public void cancelAllPosted() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    NotificationManagerCompat.from(mContext).cancelAll();
+                    forgetAllNow();
+                }
+            }, 0);
+        }
+
+        public void forget(final int notificationId) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    forgetNow(notificationId);
+                }
+            }, 0);
+        }
+
+        public void forgetAll() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    forgetAllNow();
+                }
+            }, 0);
+        }
+
+        /**
+         * Forgets the fingerprint of this notification. Must be called on the scheduler thread.
+         */
+        public synchronized void forgetNow(int notificationId) {
+            mFingerprints.remove(notificationId);
+        }
+
+        private synchronized void forgetAllNow() {
+            mFingerprints.clear();
+        }
+
+        /**
+         * Returns true if the notification with this id is showing and has this fingerprint.
+         */
+        public synchronized boolean isPosted(int notificationId, long fingerprint) {
+            final Long posted = mFingerprints.get(notificationId);
+            return posted != null && posted.longValue() == fingerprint;
+        }
+
+        public synchronized void onPosted(int notificationId, long fingerprint) {
+            mFingerprints.put(notificationId, fingerprint);
+            mPosted++;
+        }
+
+        public synchronized void onUnchanged() {
+            mUnchanged++;
+        }
+
+        public synchronized void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println("NotificationScheduler:");
+            writer.print(prefix);
+            writer.print("  requested=");
+            writer.print(mRequested);
+            writer.print(" coalesced=");
+            writer.print(mCoalesced);
+            writer.print(" posted=");
+            writer.print(mPosted);
+            writer.print(" unchanged=");
+            writer.print(mUnchanged);
+            writer.print(" pending=");
+            writer.println(mPending.size());
+        }
+
+        private static final class PendingValidation {
+            Folder folder;
+            Account account;
+            boolean getAttention;
+            boolean ignoreUnobtrusiveSetting;
+            ContactFetcher contactFetcher;
+
+            PendingValidation(Folder folder, Account account, boolean getAttention,
+                    boolean ignoreUnobtrusiveSetting, ContactFetcher contactFetcher) {
+                this.folder = folder;
+                this.account = account;
+                this.getAttention = getAttention;
+                this.ignoreUnobtrusiveSetting = ignoreUnobtrusiveSetting;
+                this.contactFetcher = contactFetcher;
+            }
+        }
+    }
+
     /**
      * Contains the logic for converting the contents of one HtmlTree into
      * plaintext.
@@ -2042,6 +2650,12 @@ public class NotificationUtils {
     private static class ConfigResult {
         public String notificationTicker;
         public ContactIconInfo contactIconInfo;
+        /** Displayable sender of the last message, for digest lines. */
+        public String lastSender = "";
+        /** Whether earlier unread messages are from other senders than the last one. */
+        public boolean multipleUnreadThread;
+        /** Addresses of the last sender and of those other unread senders. */
+        public final HashSet<String> unreadSenderAddresses = new HashSet<String>();
     }
 
     public static class ContactIconInfo {
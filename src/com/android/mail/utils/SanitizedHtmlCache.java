@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.mail.preferences.MailPrefs;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Set;
+
+/**
+ * Caches the output of {@link HtmlSanitizer#sanitizeHtml(String)} so that opening the same
+ * message again does not re-run the sanitizer policy over the whole body.
+ *
+ * Entries are keyed by the message URI and a hash of the raw HTML, and stored in a directory named
+ * after both {@link HtmlSanitizer#VERSION} and
+ * {@link MailPrefs#getRequiredSanitizerVersionNumber()}; when either changes, the old directory
+ * is deleted and every message is sanitized afresh. The disk tier is capped at
+ * {@link #MAX_DISK_BYTES} and evicts least recently used entries; a few recent entries are also
+ * kept in memory.
+ *
+ * Like the sanitizer itself, this must not be used from the main thread. Only the bookkeeping is
+ * done under the cache's lock, so different bodies are read, sanitized and written in parallel;
+ * a thread asking for a body that another thread is already producing waits for that result.
+ */
+public final class SanitizedHtmlCache implements CacheRegistry.Cache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final String DIR_PREFIX = "sanitized_html_";
+    private static final int MAX_MEMORY_ENTRIES = 8;
+    private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+
+    private static SanitizedHtmlCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, String> mMemoryCache =
+            new LruCache<String, String>(MAX_MEMORY_ENTRIES);
+
+    /** Directory for the current sanitizer versions, or null until first use. */
+    private DiskFileCache mDiskCache;
+    private int mRequiredVersion = -1;
+    /** Keys being read from disk or sanitized by some thread. */
+    private final Set<String> mInFlight = Sets.newHashSet();
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private long mSanitizeMillis;
+    private long mSavedMillis;
+
+    public static synchronized SanitizedHtmlCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SanitizedHtmlCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SanitizedHtmlCache(Context context) {
+        mContext = context;
+        CacheRegistry.register(context, this);
+    }
+
+    /**
+     * Returns the sanitized form of <code>rawHtml</code>, from the cache if this message body has
+     * been sanitized by the current sanitizer before.
+     *
+     * @param messageUri identifies the message the HTML belongs to
+     * @param rawHtml the unsanitized, suspicious html
+     * @return the sanitized html; <code>null</code> if <code>rawHtml</code> was <code>null</code>
+     */
+    public String getSanitizedHtml(Uri messageUri, String rawHtml) {
+        if (rawHtml == null) {
+            return null;
+        }
+        final String key = DiskFileCache.hashKey(
+                messageUri != null ? messageUri.toString() : null, rawHtml);
+        if (key == null) {
+            return HtmlSanitizer.sanitizeHtml(rawHtml);
+        }
+
+        final DiskFileCache diskCache;
+        synchronized (this) {
+            checkVersion();
+            // Another thread is already reading or sanitizing this body; its result will be in
+            // the memory cache once it is done, so wait for it instead of doing the work twice
+            while (mInFlight.contains(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return HtmlSanitizer.sanitizeHtml(rawHtml);
+                }
+            }
+            final String html = mMemoryCache.getElement(key);
+            if (html != null) {
+                mMemoryHits++;
+                return html;
+            }
+            mInFlight.add(key);
+            diskCache = mDiskCache;
+        }
+
+        try {
+            String html = readEntry(diskCache, key);
+            if (html != null) {
+                synchronized (this) {
+                    mDiskHits++;
+                    mMemoryCache.putElement(key, html);
+                }
+                return html;
+            }
+
+            final long start = SystemClock.uptimeMillis();
+            html = HtmlSanitizer.sanitizeHtml(rawHtml);
+            final long elapsed = SystemClock.uptimeMillis() - start;
+            synchronized (this) {
+                mMisses++;
+                mSanitizeMillis += elapsed;
+                mMemoryCache.putElement(key, html);
+            }
+            writeEntry(diskCache, key, html, elapsed);
+            return html;
+        } finally {
+            synchronized (this) {
+                mInFlight.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Switches to the directory for the current sanitizer versions, deleting any directories left
+     * behind by other versions.
+     */
+    private void checkVersion() {
+        final int required = MailPrefs.get(mContext).getRequiredSanitizerVersionNumber();
+        if (mDiskCache != null && required == mRequiredVersion) {
+            return;
+        }
+        mRequiredVersion = required;
+        mMemoryCache.clear();
+        final String dirName = DIR_PREFIX + HtmlSanitizer.VERSION + "_" + required;
+        final File cacheDir = mContext.getCacheDir();
+        final File[] dirs = cacheDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.getName().startsWith(DIR_PREFIX) && !dir.getName().equals(dirName)) {
+                    new DiskFileCache(dir, 0).delete();
+                }
+            }
+        }
+        mDiskCache = new DiskFileCache(new File(cacheDir, dirName), MAX_DISK_BYTES);
+    }
+
+    private String readEntry(DiskFileCache diskCache, String key) {
+        final File file = diskCache.get(key);
+        if (file == null) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final long sanitizeMillis = in.readLong();
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            synchronized (this) {
+                mSavedMillis += sanitizeMillis;
+            }
+            diskCache.touch(file);
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Unable to read sanitized html %s", file);
+            diskCache.remove(file);
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private static void writeEntry(DiskFileCache diskCache, String key, String html,
+            final long sanitizeMillis) {
+        final byte[] bytes;
+        try {
+            bytes = html.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+        if (bytes.length > MAX_DISK_BYTES / 4) {
+            // Not worth pushing most of the cache out for one huge message
+            return;
+        }
+        diskCache.put(key, new DiskFileCache.EntryWriter() {
+            @Override
+            public boolean writeTo(OutputStream out) throws IOException {
+                final DataOutputStream dataOut = new DataOutputStream(out);
+                dataOut.writeLong(sanitizeMillis);
+                dataOut.writeInt(bytes.length);
+                dataOut.write(bytes);
+                dataOut.flush();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void releaseMemory() {
+        mMemoryCache.clear();
+    }
+
+    /**
+     * Writes hit ratios and the sanitizer time saved so far.
+     */
+    @Override
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        final int lookups = mMemoryHits + mDiskHits + mMisses;
+        writer.print(prefix);
+        writer.println("SanitizedHtmlCache:");
+        writer.print(prefix);
+        writer.print("  lookups=");
+        writer.print(lookups);
+        writer.print(" memoryHits=");
+        writer.print(mMemoryHits);
+        writer.print(" diskHits=");
+        writer.print(mDiskHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        if (lookups > 0) {
+            writer.print(" hitRatio=");
+            writer.print((mMemoryHits + mDiskHits) * 100 / lookups);
+            writer.print('%');
+        }
+        writer.println();
+        writer.print(prefix);
+        writer.print("  sanitizeMs=");
+        writer.print(mSanitizeMillis);
+        writer.print(" savedDiskHitMs=");
+        writer.print(mSavedMillis);
+        writer.print(" diskBytes=");
+        writer.println(mDiskCache != null ? mDiskCache.getBytes() : -1);
+    }
+}
@@ -49,14 +49,32 @@ public abstract class CharEscaper extends Escaper {
    */
   @Override public String escape(String string) {
     checkNotNull(string);
-    // Inlineable fast-path loop which hands off to escapeSlow() only if needed
+    // Fast-path scan which hands off to escapeSlow() only if needed
     int length = string.length();
-    for (int index = 0; index < length; index++) {
-      if (escape(string.charAt(index)) != null) {
-        return escapeSlow(string, index);
-      }
+    int index = nextEscapeIndex(string, 0, length);
+    return index == length ? string : escapeSlow(string, index);
+  }
+
+  /**
+   * Scans a sub-sequence of characters from a given {@link CharSequence}, returning the index of
+   * the next character that requires escaping, or {@code end} if there is none. Both {@link
+   * #escape(String)} and {@link #escapeSlow} use it to skip over runs of characters which are
+   * then copied as a whole.
+   *
+   * <p>The default implementation calls {@link #escape(char)} for each character. Escapers with a
+   * cheaper test, such as a lookup in a replacement table, should override this method. It may
+   * return false positives, but never false negatives.
+   *
+   * @param csq a sequence of characters
+   * @param start the index of the first character to be scanned
+   * @param end the index immediately after the last character to be scanned
+   */
+  protected int nextEscapeIndex(CharSequence csq, int start, int end) {
+    int index = start;
+    while (index < end && escape(csq.charAt(index)) == null) {
+      index++;
     }
-    return string;
+    return index;
   }
 
   /**
@@ -120,20 +138,25 @@ public abstract class CharEscaper extends Escaper {
   protected String escapeSlow(String s, int index) {
     int slen = s.length();
 
-    // Get a destination buffer and setup some loop variables.
+    // Get a destination buffer and setup some loop variables. Strings too long for the
+    // thread-local buffer get one presized for the whole string plus some escaping.
     char[] dest = Platform.charBufferFromThreadLocal();
+    if (dest.length < slen + DEST_PAD) {
+      dest = new char[slen + (slen >> 3) + DEST_PAD];
+    }
     int destSize = dest.length;
     int destIndex = 0;
     int lastEscape = 0;
 
     // Loop through the rest of the string, replacing when needed into the
-    // destination buffer, which gets grown as needed as well.
-    for (; index < slen; index++) {
+    // destination buffer, which gets grown as needed as well. Characters between
+    // replacements are found by nextEscapeIndex() and copied in one go.
+    for (; index < slen; index = nextEscapeIndex(s, index + 1, slen)) {
 
       // Get a replacement for the current character.
       char[] r = escape(s.charAt(index));
 
-      // If no replacement is needed, just continue.
+      // nextEscapeIndex() may give false positives, if so just continue.
       if (r == null) continue;
 
       int rlen = r.length;
@@ -42,18 +42,18 @@ public class CharEscaperBuilder {
     }
 
     /*
-     * Overriding escape method to be slightly faster for this decorator. We test the replacements
-     * array directly, saving a method call.
+     * Overriding the scan to be faster for this decorator. We test the replacements array
+     * directly, saving a method call per character.
      */
-    @Override public String escape(String s) {
-      int slen = s.length();
-      for (int index = 0; index < slen; index++) {
-        char c = s.charAt(index);
-        if (c < replacements.length && replacements[c] != null) {
-          return escapeSlow(s, index);
+    @Override protected int nextEscapeIndex(CharSequence csq, int start, int end) {
+      int index = start;
+      for (; index < end; index++) {
+        char c = csq.charAt(index);
+        if (c < replaceLength && replacements[c] != null) {
+          break;
         }
       }
-      return s;
+      return index;
     }
 
     @Override protected char[] escape(char c) {
@@ -885,7 +885,7 @@ public final class CharEscapers {
 
   /**
    * A fast {@link CharEscaper} that uses an array of replacement characters and
-   * a range of safe characters. It overrides {@link #escape(String)} to improve
+   * a range of safe characters. It overrides {@link #nextEscapeIndex} to improve
    * performance. Rough benchmarking shows that this almost doubles the speed
    * when processing strings that do not require escaping (providing the escape
    * test itself is efficient).
@@ -905,16 +905,17 @@ public final class CharEscapers {
     }
 
     /** Overridden for performance (see {@link FastCharEscaper}). */
-    @Override public String escape(String s) {
-      int slen = s.length();
-      for (int index = 0; index < slen; index++) {
-        char c = s.charAt(index);
+    @Override protected int nextEscapeIndex(CharSequence csq, int start,
+        int end) {
+      int index = start;
+      for (; index < end; index++) {
+        char c = csq.charAt(index);
         if ((c < replacementLength && replacements[c] != null)
             || c < safeMin || c > safeMax) {
-          return escapeSlow(s, index);
+          break;
         }
       }
-      return s;
+      return index;
     }
   }
 
@@ -649,8 +649,9 @@ public abstract class CharMatcher implements Predicate<Character> {
    * behavior in GWT.
    *
    * <p>The default precomputation is to cache the configuration of the original
-   * matcher in an eight-kilobyte bit array. In some situations this produces a
-   * matcher which is faster to query than the original.
+   * matcher in an eight-kilobyte bit array, or in a 128-bit one when only ASCII
+   * characters can differ. In some situations this produces a matcher which is
+   * faster to query than the original.
    *
    * <p>The default implementation creates a new bit array and passes it to
    * {@link #setBits(LookupTable)}.
@@ -658,18 +659,236 @@ public abstract class CharMatcher implements Predicate<Character> {
   CharMatcher precomputedInternal() {
     final LookupTable table = new LookupTable();
     setBits(table);
+    return Precomputed.of(table);
+  }
 
-    return new CharMatcher() {
-      @Override public boolean matches(char c) {
-        return table.get(c);
+  /**
+   * The matcher returned by {@link #precomputedInternal}. Matchers that match
+   * no character above {@code '\u007f'} (or every one) keep only a 128-bit
+   * table; others keep the whole eight-kilobyte table. The text processing
+   * routines are overridden with loops that test the table directly instead of
+   * calling {@link #matches} for each character.
+   */
+  private static final class Precomputed extends CharMatcher {
+    private static final int ASCII_LIMIT = 0x80;
+    private static final int FULL_LIMIT = 0x10000;
+
+    /** Bit {@code c} is set if {@code c} matches, for {@code c < limit}. */
+    private final int[] bits;
+    private final int limit;
+    /** Whether the characters from {@code limit} on match. */
+    private final boolean matchesAbove;
+
+    private Precomputed(int[] bits, int limit, boolean matchesAbove) {
+      this.bits = bits;
+      this.limit = limit;
+      this.matchesAbove = matchesAbove;
+    }
+
+    static Precomputed of(LookupTable table) {
+      int[] data = table.data;
+      int asciiWords = ASCII_LIMIT >> 5;
+      int above = data[asciiWords];
+      if (above == 0 || above == -1) {
+        boolean uniform = true;
+        for (int i = asciiWords + 1; i < data.length; i++) {
+          if (data[i] != above) {
+            uniform = false;
+            break;
+          }
+        }
+        if (uniform) {
+          return new Precomputed(Arrays.copyOf(data, asciiWords), ASCII_LIMIT, above == -1);
+        }
       }
+      return new Precomputed(data, FULL_LIMIT, false);
+    }
+
+    private boolean has(char c) {
+      return c < limit ? (bits[c >> 5] & (1 << c)) != 0 : matchesAbove;
+    }
 
-      // TODO: make methods like negate() smart
+    @Override public boolean matches(char c) {
+      return has(c);
+    }
 
-      @Override public CharMatcher precomputed() {
-        return this;
+    @Override public boolean matchesAllOf(CharSequence sequence) {
+      for (int i = sequence.length() - 1; i >= 0; i--) {
+        if (!has(sequence.charAt(i))) {
+          return false;
+        }
       }
-    };
+      return true;
+    }
+
+    @Override public int indexIn(CharSequence sequence) {
+      return indexIn(sequence, 0);
+    }
+
+    @Override public int indexIn(CharSequence sequence, int start) {
+      int length = sequence.length();
+      Preconditions.checkPositionIndex(start, length);
+      for (int i = start; i < length; i++) {
+        if (has(sequence.charAt(i))) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override public int lastIndexIn(CharSequence sequence) {
+      for (int i = sequence.length() - 1; i >= 0; i--) {
+        if (has(sequence.charAt(i))) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override public int countIn(CharSequence sequence) {
+      int count = 0;
+      int length = sequence.length();
+      for (int i = 0; i < length; i++) {
+        if (has(sequence.charAt(i))) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override public String removeFrom(CharSequence sequence) {
+      String string = sequence.toString();
+      int pos = indexIn(string);
+      if (pos == -1) {
+        return string;
+      }
+      char[] chars = string.toCharArray();
+      int out = pos;
+      for (int i = pos + 1; i < chars.length; i++) {
+        char c = chars[i];
+        if (!has(c)) {
+          chars[out++] = c;
+        }
+      }
+      return new String(chars, 0, out);
+    }
+
+    @Override public String replaceFrom(CharSequence sequence, char replacement) {
+      String string = sequence.toString();
+      int pos = indexIn(string);
+      if (pos == -1) {
+        return string;
+      }
+      char[] chars = string.toCharArray();
+      for (int i = pos; i < chars.length; i++) {
+        if (has(chars[i])) {
+          chars[i] = replacement;
+        }
+      }
+      return new String(chars);
+    }
+
+    @Override public String trimFrom(CharSequence sequence) {
+      int len = sequence.length();
+      int first = 0;
+      while (first < len && has(sequence.charAt(first))) {
+        first++;
+      }
+      int last = len - 1;
+      while (last > first && has(sequence.charAt(last))) {
+        last--;
+      }
+      return sequence.subSequence(first, last + 1).toString();
+    }
+
+    @Override public String trimLeadingFrom(CharSequence sequence) {
+      int len = sequence.length();
+      int first = 0;
+      while (first < len && has(sequence.charAt(first))) {
+        first++;
+      }
+      return sequence.subSequence(first, len).toString();
+    }
+
+    @Override public String trimTrailingFrom(CharSequence sequence) {
+      int last = sequence.length() - 1;
+      while (last >= 0 && has(sequence.charAt(last))) {
+        last--;
+      }
+      return sequence.subSequence(0, last + 1).toString();
+    }
+
+    @Override public String collapseFrom(CharSequence sequence, char replacement) {
+      int first = indexIn(sequence);
+      if (first == -1) {
+        return sequence.toString();
+      }
+      int len = sequence.length();
+      StringBuilder builder = new StringBuilder(len)
+          .append(sequence, 0, first)
+          .append(replacement);
+      boolean in = true;
+      for (int i = first + 1; i < len; i++) {
+        char c = sequence.charAt(i);
+        if (has(c)) {
+          if (!in) {
+            builder.append(replacement);
+            in = true;
+          }
+        } else {
+          builder.append(c);
+          in = false;
+        }
+      }
+      return builder.toString();
+    }
+
+    @Override public String trimAndCollapseFrom(CharSequence sequence, char replacement) {
+      int len = sequence.length();
+      int first = 0;
+      while (first < len && has(sequence.charAt(first))) {
+        first++;
+      }
+      if (first == len) {
+        return ""; // everything matches. nothing's left.
+      }
+      StringBuilder builder = new StringBuilder(len - first);
+      boolean inMatchingGroup = false;
+      for (int i = first; i < len; i++) {
+        char c = sequence.charAt(i);
+        if (has(c)) {
+          inMatchingGroup = true;
+        } else {
+          if (inMatchingGroup) {
+            builder.append(replacement);
+            inMatchingGroup = false;
+          }
+          builder.append(c);
+        }
+      }
+      return builder.toString();
+    }
+
+    @Override public CharMatcher negate() {
+      int[] negated = new int[bits.length];
+      for (int i = 0; i < bits.length; i++) {
+        negated[i] = ~bits[i];
+      }
+      return new Precomputed(negated, limit, !matchesAbove);
+    }
+
+    @Override protected void setBits(LookupTable table) {
+      for (int i = 0; i < bits.length; i++) {
+        table.data[i] |= bits[i];
+      }
+      if (matchesAbove) {
+        Arrays.fill(table.data, bits.length, table.data.length, -1);
+      }
+    }
+
+    @Override public CharMatcher precomputed() {
+      return this;
+    }
   }
 
   /**
@@ -719,9 +719,9 @@ public final class StringUtil {
 
   // See http://www.microsoft.com/typography/unicode/1252.htm
   private static final CharMatcher FANCY_SINGLE_QUOTE
-      = CharMatcher.anyOf("\u0091\u0092\u2018\u2019");
+      = CharMatcher.anyOf("\u0091\u0092\u2018\u2019").precomputed();
   private static final CharMatcher FANCY_DOUBLE_QUOTE
-      = CharMatcher.anyOf("\u0093\u0094\u201c\u201d");
+      = CharMatcher.anyOf("\u0093\u0094\u201c\u201d").precomputed();
 
   /**
    * Replaces microsoft "smart quotes" (curly " and ') with their
@@ -1758,7 +1758,7 @@ public final class StringUtil {
       "\u0008\u000B\u000C\u000E\u000F" +
       "\u0010\u0011\u0012\u0013\u0014\u0015\u0016\u0017" +
       "\u0018\u0019\u001A\u001B\u001C\u001D\u001E\u001F" +
-      "\uFFFE\uFFFF");
+      "\uFFFE\uFFFF").precomputed();
 
   /**
    * Escape a string that is meant to be embedded in a CDATA section.
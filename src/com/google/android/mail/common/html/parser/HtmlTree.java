@@ -50,7 +50,8 @@ import java.util.logging.Logger;
  */
 public class HtmlTree {
   // http://www.w3.org/TR/html4/struct/text.html#h-9.1
-  private static final CharMatcher HTML_WHITESPACE = CharMatcher.anyOf(" \t\f\u200b\r\n");
+  private static final CharMatcher HTML_WHITESPACE = CharMatcher.anyOf(" \t\f\u200b\r\n")
+      .precomputed();
 
   /**
    * An interface that allows clients to provide their own implementation
@@ -653,6 +654,8 @@ public class HtmlTree {
     // Note that characters such as the non-breaking whitespace
     // and full-width spaces are not equivalent to the normal spaces.
     private static final String HTML_SPACE_EQUIVALENTS = " \n\r\t\f";
+    private static final CharMatcher HTML_SPACE_MATCHER =
+        CharMatcher.anyOf(HTML_SPACE_EQUIVALENTS).precomputed();
 
     /**
      * Determines if the given character is considered an HTML space character.
@@ -660,7 +663,7 @@ public class HtmlTree {
      * not within a PRE element.
      */
     private static boolean isHtmlWhiteSpace(char ch) {
-      return HTML_SPACE_EQUIVALENTS.indexOf(ch) >= 0;
+      return HTML_SPACE_MATCHER.matches(ch);
     }
 
     // The buffer in which we accumulate the converted plain text
@@ -740,10 +743,10 @@ public class HtmlTree {
       boolean endsWithSpace = isHtmlWhiteSpace(text.charAt(text.length() - 1));
 
       // Strip beginning and ending whitespace.
-      text = CharMatcher.anyOf(HTML_SPACE_EQUIVALENTS).trimFrom(text);
+      text = HTML_SPACE_MATCHER.trimFrom(text);
 
       // Collapse whitespace within the text.
-      text = CharMatcher.anyOf(HTML_SPACE_EQUIVALENTS).collapseFrom(text, ' ');
+      text = HTML_SPACE_MATCHER.collapseFrom(text, ' ');
 
       if (startsWithSpace) {
         setSeparator(Separator.Space);
@@ -52,11 +52,18 @@ public class MimeStreamParser {
 
     private static BitSet fieldChars = null;
 
+    /**
+     * Header buffers grown beyond this size (by unusually large headers) are
+     * not kept around for the next entity.
+     */
+    private static final int MAX_RETAINED_HEADER_BUFFER = 64 * 1024;
+
     private RootInputStream rootStream = null;
     private LinkedList<BodyDescriptor> bodyDescriptors = new LinkedList<BodyDescriptor>();
     private ContentHandler handler = null;
     private boolean raw = false;
     private boolean prematureEof = false;
+    private byte[] headerBuffer = new byte[4096];
 
     static {
         fieldChars = new BitSet();
@@ -231,7 +238,11 @@ public class MimeStreamParser {
 
         int lineNumber = rootStream.getLineNumber();
 
-        StringBuffer sb = new StringBuffer();
+        /*
+         * Read the raw header block into the reusable byte buffer.
+         */
+        byte[] buf = headerBuffer;
+        int length = 0;
         int curr = 0;
         int prev = 0;
         while ((curr = is.read()) != -1) {
@@ -239,12 +250,22 @@ public class MimeStreamParser {
                 /*
                  * [\r]\n[\r]\n or an immediate \r\n have been seen.
                  */
-                sb.deleteCharAt(sb.length() - 1);
+                if (length > 0) {
+                    length--;
+                }
                 break;
             }
-            sb.append((char) curr);
+            if (length == buf.length) {
+                byte[] grown = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, grown, 0, length);
+                buf = grown;
+            }
+            buf[length++] = (byte) curr;
             prev = curr == '\r' ? prev : curr;
         }
+        if (buf.length <= MAX_RETAINED_HEADER_BUFFER) {
+            headerBuffer = buf;
+        }
 
 //        if (curr == -1 && log.isWarnEnabled()) {
 //            log.warn("Line " + rootStream.getLineNumber()
@@ -252,51 +273,67 @@ public class MimeStreamParser {
 //                    + "Boundary detected in header or EOF reached.");
 //        }
 
+        /*
+         * Find field boundaries (CRLF not followed by whitespace) directly
+         * in the bytes. Strings are only created for valid fields.
+         */
         int start = 0;
         int pos = 0;
         int startLineNumber = lineNumber;
-        while (pos < sb.length()) {
-            while (pos < sb.length() && sb.charAt(pos) != '\r') {
+        while (pos < length) {
+            while (pos < length && buf[pos] != '\r') {
                 pos++;
             }
-            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
+            if (pos < length - 1 && buf[pos + 1] != '\n') {
                 pos++;
                 continue;
             }
 
-            if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
+            if (pos >= length - 2 || fieldChars.get(buf[pos + 2] & 0xff)) {
 
                 /*
-                 * field should be the complete field data excluding the
-                 * trailing \r\n.
+                 * The field is the complete field data in [start, pos)
+                 * excluding the trailing \r\n.
                  */
-                String field = sb.substring(start, pos);
+                int fieldStart = start;
+                int fieldEnd = Math.min(pos, length);
                 start = pos + 2;
 
                 /*
                  * Check for a valid field.
                  */
-                int index = field.indexOf(':');
+                int index = fieldStart;
+                while (index < fieldEnd && buf[index] != ':') {
+                    index++;
+                }
                 boolean valid = false;
-                if (index != -1 && fieldChars.get(field.charAt(0))) {
+                if (index < fieldEnd && fieldChars.get(buf[fieldStart] & 0xff)) {
                     valid = true;
-                    String fieldName = field.substring(0, index).trim();
-                    for (int i = 0; i < fieldName.length(); i++) {
-                        if (!fieldChars.get(fieldName.charAt(i))) {
+                    // The first byte is a field char, so only trailing
+                    // whitespace needs to be trimmed from the name.
+                    int nameEnd = index;
+                    while (nameEnd > fieldStart && (buf[nameEnd - 1] & 0xff) <= ' ') {
+                        nameEnd--;
+                    }
+                    for (int i = fieldStart; i < nameEnd; i++) {
+                        if (!fieldChars.get(buf[i] & 0xff)) {
                             valid = false;
                             break;
                         }
                     }
 
                     if (valid) {
+                        String field = toString(buf, fieldStart, fieldEnd);
                         handler.field(field);
-                        bd.addField(fieldName, field.substring(index + 1));
+                        bd.addField(field.substring(0, nameEnd - fieldStart),
+                                field.substring(index - fieldStart + 1));
                     }
                 }
 
                 if (!valid && log.isWarnEnabled()) {
                     log.warn("Line " + startLineNumber
-                            + ": Ignoring invalid field: '" + field.trim() + "'");
+                            + ": Ignoring invalid field: '"
+                            + toString(buf, fieldStart, fieldEnd).trim() + "'");
                 }
 
                 startLineNumber = lineNumber;
@@ -311,6 +348,18 @@ public class MimeStreamParser {
         return bd;
     }
 
+    /**
+     * Maps each byte to the char with the same value (ISO-8859-1), as the
+     * header has always been read.
+     */
+    private static String toString(byte[] buf, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buf[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
     /**
      * Sets the <code>ContentHandler</code> to use when reporting
      * parsing events.
@@ -25,6 +25,7 @@ import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 //BEGIN android-changed: Stubbing out logging
 import org.apache.james.mime4j.Log;
@@ -1017,6 +1018,35 @@ public class CharsetUtil {
      */
     private static HashMap<String, Charset> charsetMap = null;
 
+    /**
+     * Upper bound on the number of distinct names remembered by the lookup
+     * caches below. Charset names come straight from message headers, so
+     * the caches must not grow without limit on hostile input.
+     */
+    private static final int MAX_CACHED_NAMES = 256;
+
+    /**
+     * Marks a name that is known not to be in {@link #charsetMap}.
+     */
+    private static final Charset UNKNOWN_CHARSET = new Charset("", null, null);
+
+    /**
+     * Maps names exactly as they were passed in (i.e. not lower-cased) to
+     * their entry in {@link #charsetMap}, or to {@link #UNKNOWN_CHARSET}.
+     * Saves the lower-casing and hashing of a fresh string on every call.
+     */
+    private static final ConcurrentHashMap<String, Charset> aliasCache =
+            new ConcurrentHashMap<String, Charset>();
+
+    /**
+     * Maps names exactly as they were passed to {@link #getCharset(String)}
+     * to the resolved Java charset. Names which are illegal or unsupported
+     * are mapped to the fallback charset so that the failing
+     * {@link java.nio.charset.Charset#forName(String)} is only paid once.
+     */
+    private static final ConcurrentHashMap<String, java.nio.charset.Charset> resolvedCache =
+            new ConcurrentHashMap<String, java.nio.charset.Charset>();
+
     static {
         decodingSupported = new TreeSet<String>();
         encodingSupported = new TreeSet<String>();
@@ -1163,7 +1193,7 @@ public class CharsetUtil {
      * @return the MIME preferred name or <code>null</code> if not known.
      */
     public static String toMimeCharset(String charsetName) {
-        Charset c = charsetMap.get(charsetName.toLowerCase(Locale.US));
+        Charset c = lookup(charsetName);
         if (c != null) {
             return c.mime;
         }
@@ -1182,18 +1212,50 @@ public class CharsetUtil {
      * @return the canonical Java name or <code>null</code> if not known.
      */
     public static String toJavaCharset(String charsetName) {
-        Charset c = charsetMap.get(charsetName.toLowerCase(Locale.US));
+        Charset c = lookup(charsetName);
         if (c != null) {
             return c.canonical;
         }
         return null;
     }
 
-    public static java.nio.charset.Charset getCharset(String charsetName) {
-        String defaultCharset = "ISO-8859-1";
+    /**
+     * Gets the {@link #charsetMap} entry for the given name, ignoring case,
+     * or <code>null</code> if not known. Results (including misses) are
+     * remembered per exact spelling of the name.
+     */
+    private static Charset lookup(String charsetName) {
+        Charset c = aliasCache.get(charsetName);
+        if (c == null) {
+            c = charsetMap.get(charsetName.toLowerCase(Locale.US));
+            if (c == null) {
+                c = UNKNOWN_CHARSET;
+            }
+            if (aliasCache.size() < MAX_CACHED_NAMES) {
+                aliasCache.put(charsetName, c);
+            }
+        }
+        return c == UNKNOWN_CHARSET ? null : c;
+    }
 
+    public static java.nio.charset.Charset getCharset(String charsetName) {
         // Use the default chareset if given charset is null
-        if(charsetName == null) charsetName = defaultCharset;
+        if (charsetName == null) {
+            return ISO_8859_1;
+        }
+
+        java.nio.charset.Charset charset = resolvedCache.get(charsetName);
+        if (charset == null) {
+            charset = resolveCharset(charsetName);
+            if (resolvedCache.size() < MAX_CACHED_NAMES) {
+                resolvedCache.put(charsetName, charset);
+            }
+        }
+        return charset;
+    }
+
+    private static java.nio.charset.Charset resolveCharset(String charsetName) {
+        String defaultCharset = "ISO-8859-1";
 
         try {
             return java.nio.charset.Charset.forName(charsetName);
@@ -1201,14 +1263,13 @@ public class CharsetUtil {
             log.info("Illegal charset " + charsetName + ", fallback to " +
                     defaultCharset + ": " + e);
             // Use default charset on exception
-            return java.nio.charset.Charset.forName(defaultCharset);
+            return ISO_8859_1;
         } catch (UnsupportedCharsetException ex) {
             log.info("Unsupported charset " + charsetName + ", fallback to " +
                     defaultCharset + ": " + ex);
             // Use default charset on exception
-            return java.nio.charset.Charset.forName(defaultCharset);
+            return ISO_8859_1;
         }
-
     }
     /*
      * Uncomment the code below and run the main method to regenerate the
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.MessagingException;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips of headers and bodies written through {@link MimeOutputStream}.
+ */
+@SmallTest
+public class MimeOutputStreamTests extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static byte[] write(MimeHeader header) throws IOException, MessagingException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        header.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public void testAsciiHeaders() throws Exception {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "Hello");
+        header.addHeader("To", "a@example.com");
+
+        assertEquals("Subject: Hello\r\nTo: a@example.com\r\n",
+                new String(write(header), "US-ASCII"));
+    }
+
+    public void testNonAsciiHeadersAreUtf8() throws Exception {
+        // Two, three and four byte sequences
+        final String value = "caf\u00e9 \u20ac \ud83d\ude00";
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("X-Test", value);
+
+        assertTrue(Arrays.equals(("X-Test: " + value + "\r\n").getBytes("UTF-8"), write(header)));
+    }
+
+    public void testUnpairedSurrogate() throws Exception {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("X-Test", "a\ud83db");
+
+        assertEquals("X-Test: a?b\r\n", new String(write(header), "US-ASCII"));
+    }
+
+    public void testNullHeaderValue() throws Exception {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("X-Null", null);
+
+        assertEquals("X-Null: null\r\n", new String(write(header), "US-ASCII"));
+    }
+
+    public void testHeadersLongerThanBuffer() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("\u00e9x");
+        }
+        final String value = sb.toString();
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("X-Long", value);
+
+        assertTrue(Arrays.equals(("X-Long: " + value + "\r\n").getBytes("UTF-8"), write(header)));
+    }
+
+    private static BinaryTempFileBody makeBody(byte[] data) throws IOException {
+        final BinaryTempFileBody body = new BinaryTempFileBody();
+        final OutputStream out = body.getOutputStream();
+        out.write(data);
+        out.close();
+        return body;
+    }
+
+    private static byte[] makeData(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Encoding block by block must give exactly the lines of encoding the whole body at once.
+     */
+    public void testBase64BodyMatchesWholeEncoding() throws Exception {
+        // Lengths around the 57K block size and the 57 byte line size
+        for (int length : new int[] { 0, 1, 57, 58, 57 * 1024 - 1, 57 * 1024, 57 * 1024 + 1,
+                3 * 57 * 1024 + 100 }) {
+            final byte[] data = makeData(length);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            makeBody(data).writeTo(out);
+
+            assertTrue("length " + length,
+                    Arrays.equals(Base64.encode(data, Base64.CRLF), out.toByteArray()));
+        }
+    }
+
+    public void testMessageRoundTrip() throws Exception {
+        final byte[] data = makeData(200 * 1024);
+        final MimeMessage message = new MimeMessage();
+        message.setSubject("Round \u00e9 trip");
+        message.setMessageId("<round.trip@example.com>");
+        final MimeMultipart multipart = new MimeMultipart();
+        final MimeBodyPart text = new MimeBodyPart(new TextBody("Hello"), "text/plain");
+        text.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        multipart.addBodyPart(text);
+        final MimeBodyPart attachment = new MimeBodyPart(makeBody(data),
+                "application/octet-stream");
+        attachment.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        multipart.addBodyPart(attachment);
+        message.setBody(multipart);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        final MimeMessage parsed = new MimeMessage(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("Round \u00e9 trip", parsed.getSubject());
+        assertEquals("<round.trip@example.com>", parsed.getMessageId());
+        final MimeMultipart parsedMultipart = (MimeMultipart) parsed.getBody();
+        assertEquals(2, parsedMultipart.getCount());
+        final InputStream in = parsedMultipart.getBodyPart(1).getBody().getInputStream();
+        try {
+            assertTrue(Arrays.equals(data, ByteStreams.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+}
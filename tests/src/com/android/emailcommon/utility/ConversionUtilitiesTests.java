@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.internet.BinaryTempFileBody;
+import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.TextBody;
+import com.android.emailcommon.mail.Part;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+@SmallTest
+public class ConversionUtilitiesTests extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static Part makePart(String text, String mimeType) throws Exception {
+        return new MimeBodyPart(new TextBody(text), mimeType);
+    }
+
+    public void testUnlimitedBodies() throws Exception {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(makePart("first", "text/plain"));
+        viewables.add(makePart("<b>html</b>", "text/html"));
+        viewables.add(makePart("second", "text/plain"));
+
+        final ConversionUtilities.BodyFieldData data =
+                ConversionUtilities.parseBodyFields(viewables);
+        assertEquals("first\nsecond", data.textContent);
+        assertEquals("<b>html</b>", data.htmlContent);
+        assertFalse(data.isTruncated);
+    }
+
+    public void testBodiesWithinLimitAreNotTruncated() throws Exception {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(makePart("0123456789", "text/plain"));
+
+        final ConversionUtilities.BodyFieldData data =
+                ConversionUtilities.parseBodyFields(viewables, true, 10);
+        assertEquals("0123456789", data.textContent);
+        assertFalse(data.isTruncated);
+    }
+
+    public void testTruncatedBodiesEndWithMarker() throws Exception {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(makePart("0123456789abc", "text/plain"));
+        viewables.add(makePart("not read", "text/plain"));
+        viewables.add(makePart("<p>0123456789abc</p>", "text/html"));
+
+        final ConversionUtilities.BodyFieldData data =
+                ConversionUtilities.parseBodyFields(viewables, true, 10);
+        assertEquals("0123456789\n[...]", data.textContent);
+        assertEquals("<p>0123456<br>[...]", data.htmlContent);
+        assertTrue(data.isTruncated);
+    }
+
+    public void testTruncatedHtmlIsNotCutInsideTagOrEntity() throws Exception {
+        final ArrayList<Part> tag = new ArrayList<Part>();
+        tag.add(makePart("<p>0123<a href=\"x\">a</a>", "text/html"));
+        assertEquals("<p>0123<br>[...]",
+                ConversionUtilities.parseBodyFields(tag, true, 10).htmlContent);
+
+        final ArrayList<Part> entity = new ArrayList<Part>();
+        entity.add(makePart("<p>0123&amp;456", "text/html"));
+        assertEquals("<p>0123<br>[...]",
+                ConversionUtilities.parseBodyFields(entity, true, 10).htmlContent);
+    }
+
+    public void testTruncatedBodiesAreNotCutInsideSurrogatePair() throws Exception {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(makePart("012345678\ud83d\ude00", "text/plain"));
+        viewables.add(makePart("<p>012345\ud83d\ude00x", "text/html"));
+
+        final ConversionUtilities.BodyFieldData data =
+                ConversionUtilities.parseBodyFields(viewables, true, 10);
+        assertEquals("012345678\n[...]", data.textContent);
+        assertEquals("<p>012345<br>[...]", data.htmlContent);
+    }
+
+    public void testSkippedPartsAreClosed() throws Exception {
+        final File file = File.createTempFile("skipped", null, TempDirectory.getTempDirectory());
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write("not read".getBytes("US-ASCII"));
+        out.close();
+        final BinaryTempFileBody skippedBody = new BinaryTempFileBody();
+        skippedBody.setFile(file.getPath());
+
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(makePart("0123456789abc", "text/plain"));
+        viewables.add(new MimeBodyPart(skippedBody, "text/plain"));
+
+        ConversionUtilities.parseBodyFields(viewables, true, 10);
+        // Closing a temporary file body deletes its file
+        assertFalse(file.exists());
+    }
+}
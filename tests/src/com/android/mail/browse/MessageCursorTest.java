@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.UIProvider;
+
+public class MessageCursorTest extends AndroidTestCase {
+
+    /**
+     * Builds a cursor of messages with the given ids; message URIs are derived from the ids, so
+     * a repeated id is a repeated message.
+     */
+    private static MessageCursor makeCursor(long... ids) {
+        final MatrixCursor inner = new MatrixCursor(UIProvider.MESSAGE_PROJECTION);
+        for (long id : ids) {
+            final Object[] row = new Object[UIProvider.MESSAGE_PROJECTION.length];
+            row[UIProvider.MESSAGE_ID_COLUMN] = id;
+            row[UIProvider.MESSAGE_URI_COLUMN] = "content://test/message/" + id;
+            inner.addRow(row);
+        }
+        return new MessageCursor(inner);
+    }
+
+    /**
+     * The state hash as {@link MessageCursor#getStateHashCode(int)} computed it by walking the
+     * cursor, before the hashes were precomputed.
+     */
+    private static int referenceStateHashCode(MessageCursor cursor, int exceptLast) {
+        int hashCode = 17;
+        int pos = -1;
+        final int stopAt = cursor.getCount() - exceptLast;
+        while (cursor.moveToPosition(++pos) && pos < stopAt) {
+            hashCode = 31 * hashCode + cursor.getMessage().getStateHashCode();
+        }
+        return hashCode;
+    }
+
+    private static ConversationMessage referenceMessageForId(MessageCursor cursor, long id) {
+        int pos = -1;
+        while (cursor.moveToPosition(++pos)) {
+            final ConversationMessage m = cursor.getMessage();
+            if (id == m.id) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static void assertEquivalent(MessageCursor cursor) {
+        final int count = cursor.getCount();
+        for (int exceptLast = -2; exceptLast <= count + 2; exceptLast++) {
+            assertEquals("exceptLast=" + exceptLast, referenceStateHashCode(cursor, exceptLast),
+                    cursor.getStateHashCode(exceptLast));
+        }
+        assertEquals(referenceStateHashCode(cursor, 0), cursor.getStateHashCode());
+        for (long id = -1; id <= count + 1; id++) {
+            assertSame("id=" + id, referenceMessageForId(cursor, id),
+                    cursor.getMessageForId(id));
+        }
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        assertEquivalent(makeCursor());
+    }
+
+    @SmallTest
+    public void testComputedOnFirstUse() {
+        assertEquivalent(makeCursor(1, 2, 3, 4, 5));
+    }
+
+    @SmallTest
+    public void testComputedWhenCacheFilled() {
+        final MessageCursor cursor = makeCursor(1, 2, 3, 4, 5);
+        // what ObjectCursor.fillCache() does once it has created every message
+        cursor.onCacheFilled();
+        assertEquivalent(cursor);
+    }
+
+    @SmallTest
+    public void testDuplicateIds() {
+        assertEquivalent(makeCursor(3, 1, 3, 2, 1));
+    }
+
+    @SmallTest
+    public void testSameExceptNewLast() {
+        final MessageCursor oldCursor = makeCursor(1, 2, 3);
+        final MessageCursor newCursor = makeCursor(1, 2, 3, 4);
+        assertEquals(oldCursor.getStateHashCode(), newCursor.getStateHashCode(1));
+        assertFalse(oldCursor.getStateHashCode() == newCursor.getStateHashCode());
+    }
+
+    @SmallTest
+    public void testManyMessages() {
+        final long[] ids = new long[200];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i * 7;
+        }
+        assertEquivalent(makeCursor(ids));
+    }
+}
@@ -21,6 +21,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.mail.ui.HtmlConversationTemplates;
+import com.android.mail.utils.ImgSrcReferencePatterns;
 
 import junit.framework.ComparisonFailure;
 
@@ -142,4 +143,52 @@ public class ImgSrcReplacementTest extends AndroidTestCase {
         }
     }
 
+    @SmallTest
+    public void testUppercase() {
+        replace(
+            "<IMG SRC=\"HTTP://google.com/favicon.ico\">",
+            "<IMG src='data:' blocked-src=\"HTTP://google.com/favicon.ico\">"
+        );
+    }
+
+    @SmallTest
+    public void testMultipleImages() {
+        replace(
+            "<p><img src='http://a'><img src='?view=att'><img alt=x src=\"https://b\"></p>",
+            "<p><img src='data:' blocked-src='http://a'><img src='?view=att'>"
+                    + "<img alt=x src='data:' blocked-src=\"https://b\"></p>"
+        );
+    }
+
+    @SmallTest
+    public void testNoMatchReturnsSameInstance() {
+        final String html = "<div><img src=\"?view=att\"> no absolute images here</div>";
+        assertSame(html, HtmlConversationTemplates.replaceAbsoluteImgUrls(html));
+    }
+
+    @SmallTest
+    public void testParityWithRegex() {
+        final String[] inputs = {
+            "<img src=\"http://google.com/favicon.ico\">",
+            "<  img    src   =   \"http://google.com/favicon.ico\"    >",
+            "<img id='src' src=\"http://google.com/foo?src=http%3A%2F%2Fgoogle.com\">",
+            "<img src=\"http://google.com/foo? src=http%3A%2F%2Fgoogle.com\">",
+            "<img\nsrc\n=\n'\nhttp://x'>",
+            "<img\tsrc=http://x <img src=http://y>",
+            "<imgsrc=http://x>",
+            "<img src=http://x",
+            "<img data-src=http://x src=http://y>",
+            "<img title='>' src=http://x>",
+            "text <b>bold</b> <img alt='' width=1 src=\"\"http://x\">",
+            "<<<img img src src=http>>>",
+            "",
+        };
+        for (String input : inputs) {
+            // The regular expression replaceAbsoluteImgUrls used to be implemented with
+            assertEquals(input, ImgSrcReferencePatterns.ABSOLUTE_IMG_URL_PATTERN.matcher(input)
+                    .replaceAll(ImgSrcReferencePatterns.IMG_URL_REPLACEMENT),
+                    HtmlConversationTemplates.replaceAbsoluteImgUrls(input));
+        }
+    }
+
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+public class BitmapUtilTest extends AndroidTestCase {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final int AVATARS = 100;
+    private static final int AVATAR_SIZE = 96;
+
+    /**
+     * Returns a JPEG of a photo larger than an avatar, red on the left half and blue on the right.
+     */
+    private static byte[] makePhoto(int width, int height) {
+        final Bitmap photo = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                photo.setPixel(x, y, x < width / 2 ? Color.RED : Color.BLUE);
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        photo.compress(Bitmap.CompressFormat.JPEG, 100, out);
+        photo.recycle();
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testDecodeWithCenterCropIsExactlySized() {
+        final byte[] photo = makePhoto(300, 200);
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+
+        final Bitmap square = BitmapUtil.decodeByteArrayWithCenterCrop(photo, AVATAR_SIZE,
+                AVATAR_SIZE, false /* circle */, pool);
+        assertEquals(AVATAR_SIZE, square.getWidth());
+        assertEquals(AVATAR_SIZE, square.getHeight());
+        // Cropped from the middle, so both halves are still there
+        final int left = square.getPixel(AVATAR_SIZE / 8, AVATAR_SIZE / 2);
+        final int right = square.getPixel(AVATAR_SIZE * 7 / 8, AVATAR_SIZE / 2);
+        assertTrue(Color.red(left) > Color.blue(left));
+        assertTrue(Color.blue(right) > Color.red(right));
+    }
+
+    @SmallTest
+    public void testCircleLeavesCornersTransparent() {
+        final byte[] photo = makePhoto(200, 200);
+
+        final Bitmap circle = BitmapUtil.decodeByteArrayWithCenterCrop(photo, AVATAR_SIZE,
+                AVATAR_SIZE, true /* circle */, null /* pool */);
+        assertEquals(AVATAR_SIZE, circle.getWidth());
+        assertEquals(0, Color.alpha(circle.getPixel(0, 0)));
+        assertEquals(0, Color.alpha(circle.getPixel(AVATAR_SIZE - 1, AVATAR_SIZE - 1)));
+        assertEquals(0xff, Color.alpha(circle.getPixel(AVATAR_SIZE / 2, AVATAR_SIZE / 2)));
+    }
+
+    @SmallTest
+    public void testFrameInCircleMatchesUnpooled() {
+        final Bitmap input = BitmapUtil.decodeByteArray(makePhoto(120, 80), 120, 80);
+
+        final Bitmap unpooled = BitmapUtil.frameBitmapInCircle(input);
+        final Bitmap pooled = BitmapUtil.frameBitmapInCircle(input, new BitmapPool(1024 * 1024));
+        assertEquals(unpooled.getWidth(), pooled.getWidth());
+        assertEquals(unpooled.getHeight(), pooled.getHeight());
+        final int center = pooled.getWidth() / 2;
+        assertEquals(unpooled.getPixel(center, center), pooled.getPixel(center, center));
+        assertEquals(unpooled.getPixel(0, 0), pooled.getPixel(0, 0));
+    }
+
+    @SmallTest
+    public void testPoolReusesGivenBackBitmaps() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap first = pool.get(AVATAR_SIZE, AVATAR_SIZE);
+        first.eraseColor(Color.RED);
+        pool.put(first);
+
+        final Bitmap second = pool.get(AVATAR_SIZE, AVATAR_SIZE);
+        assertSame(first, second);
+        assertEquals(Color.TRANSPARENT, second.getPixel(0, 0));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    /**
+     * Decodes, crops and frames 100 avatars the old way and with a pool, as when scrolling through
+     * senders whose avatars are given back once scrolled away, and logs the bitmaps allocated and
+     * the time taken by each.
+     */
+    @LargeTest
+    public void testAllocationsOfHundredAvatars() {
+        final byte[] photo = makePhoto(400, 400);
+
+        final long unpooledStart = SystemClock.elapsedRealtime();
+        int unpooledBitmaps = 0;
+        for (int i = 0; i < AVATARS; i++) {
+            final Bitmap decoded = BitmapUtil.decodeByteArray(photo, AVATAR_SIZE, AVATAR_SIZE);
+            final Bitmap cropped = BitmapUtil.centerCrop(decoded, AVATAR_SIZE, AVATAR_SIZE);
+            final Bitmap avatar = BitmapUtil.frameBitmapInCircle(cropped);
+            unpooledBitmaps += cropped != decoded ? 3 : 2;
+            assertNotNull(avatar);
+        }
+        final long unpooledMillis = SystemClock.elapsedRealtime() - unpooledStart;
+
+        final BitmapPool pool = new BitmapPool(2 * 1024 * 1024);
+        final long pooledStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < AVATARS; i++) {
+            final Bitmap avatar = BitmapUtil.decodeByteArrayWithCenterCrop(photo, AVATAR_SIZE,
+                    AVATAR_SIZE, true /* circle */, pool);
+            assertNotNull(avatar);
+            pool.put(avatar);
+        }
+        final long pooledMillis = SystemClock.elapsedRealtime() - pooledStart;
+        final int pooledBitmaps = pool.getMissCount();
+
+        LogUtils.i(LOG_TAG, "%d avatars: unpooled %d bitmaps in %d ms, pooled %d bitmaps"
+                + " (%d reused) in %d ms", AVATARS, unpooledBitmaps, unpooledMillis,
+                pooledBitmaps, pool.getHitCount(), pooledMillis);
+        assertTrue(unpooledBitmaps >= 2 * AVATARS);
+        if (Utils.isRunningKitkatOrLater()) {
+            // The destination and the decode are each allocated once
+            assertTrue(pooledBitmaps <= 2);
+        } else {
+            // Subsampled decodes can't use inBitmap, but the destination is still reused
+            assertTrue(pooledBitmaps <= AVATARS + 1);
+        }
+    }
+}
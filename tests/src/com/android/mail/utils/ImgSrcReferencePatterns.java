@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import java.util.regex.Pattern;
+
+/**
+ * The regular expressions {@link ImgSrcScanner} replaces, kept as the reference for parity
+ * checks.
+ */
+public final class ImgSrcReferencePatterns {
+
+    /** What {@link ImgSrcScanner#blockAbsoluteImgUrls} replaces. */
+    public static final Pattern ABSOLUTE_IMG_URL_PATTERN = Pattern.compile(
+            "(<\\s*img\\s+(?:[^>]*\\s+)?)src(\\s*=[\\s'\"]*http)", Pattern.CASE_INSENSITIVE
+                    | Pattern.MULTILINE);
+    public static final String IMG_URL_REPLACEMENT = "$1src='data:' blocked-src$2";
+
+    /** What {@link ImgSrcScanner#hasInlineImage} replaces. */
+    public static final Pattern INLINE_IMAGE_PATTERN = Pattern.compile("<img\\s+[^>]*src=",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    private ImgSrcReferencePatterns() {}
+}
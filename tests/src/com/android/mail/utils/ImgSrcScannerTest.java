@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+
+public class ImgSrcScannerTest extends AndroidTestCase {
+
+    private static final String[] FRAGMENTS = {
+        "<", "<img", "<IMG", "<  img", " ", "\n", "\t", "img", "src", "SRC", "=", "'", "\"",
+        "http", "HTTPS", ">", "x", "s", "rc", "ttp", "?view=att",
+    };
+
+    /**
+     * Inputs that make the regular expressions backtrack over the rest of the tag at every
+     * position, with no closing '&gt;' to stop them.
+     */
+    private static final String[] ADVERSARIAL_UNITS = {
+        "<img ", "<img src= ", "<img s", " src", "<img src=\"?", "<<img\t",
+    };
+
+    /**
+     * The scans look at each character a small, fixed number of times (about 8 for the worst
+     * units below). Quadratic behavior would look at each thousands of times.
+     */
+    private static final int MAX_STEPS_PER_CHAR = 16;
+
+    @SmallTest
+    public void testHasInlineImage() {
+        assertTrue(ImgSrcScanner.hasInlineImage("<img src=\"?view=att&th=1\">"));
+        assertTrue(ImgSrcScanner.hasInlineImage("<p>hi</p><IMG\nalt='x' SRC=cid:123>"));
+        assertTrue(ImgSrcScanner.hasInlineImage("<img data-src=foo>"));
+        assertFalse(ImgSrcScanner.hasInlineImage("<img alt='no source'>"));
+        assertFalse(ImgSrcScanner.hasInlineImage("< img src=foo>"));
+        assertFalse(ImgSrcScanner.hasInlineImage("<img alt=x> src=foo"));
+        assertFalse(ImgSrcScanner.hasInlineImage("<imgsrc=foo>"));
+        assertFalse(ImgSrcScanner.hasInlineImage(""));
+        assertFalse(ImgSrcScanner.hasInlineImage(null));
+    }
+
+    @SmallTest
+    public void testBlockAbsoluteImgUrlsNoCopy() {
+        final String html = "<div>plain text, <a href=\"http://x\">links</a> and"
+                + " <img src='?view=att'> relative images</div>";
+        assertSame(html, ImgSrcScanner.blockAbsoluteImgUrls(html));
+        assertNull(ImgSrcScanner.blockAbsoluteImgUrls(null));
+    }
+
+    @MediumTest
+    public void testParityWithRegex() {
+        final Random random = new Random(5522414);
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 20000; n++) {
+            sb.setLength(0);
+            final int count = random.nextInt(16);
+            for (int k = 0; k < count; k++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            final String input = sb.toString();
+            assertEquals(input, ImgSrcReferencePatterns.ABSOLUTE_IMG_URL_PATTERN.matcher(input)
+                    .replaceAll(ImgSrcReferencePatterns.IMG_URL_REPLACEMENT),
+                    ImgSrcScanner.blockAbsoluteImgUrls(input));
+            assertEquals(input, ImgSrcReferencePatterns.INLINE_IMAGE_PATTERN.matcher(input).find(),
+                    ImgSrcScanner.hasInlineImage(input));
+        }
+    }
+
+    private static String repeat(String unit, int length) {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append(unit);
+        }
+        return sb.toString();
+    }
+
+    @MediumTest
+    public void testAdversarialInputIsLinear() {
+        for (String unit : ADVERSARIAL_UNITS) {
+            final String small = repeat(unit, 16 * 1024);
+            final String large = repeat(unit, 256 * 1024);
+            final int smallSteps = ImgSrcScanner.countSteps(small);
+            final int largeSteps = ImgSrcScanner.countSteps(large);
+
+            assertTrue("'" + unit + "' x " + large.length() / unit.length() + " took "
+                    + largeSteps + " steps", largeSteps <= MAX_STEPS_PER_CHAR * large.length());
+            // Sixteen times the input is sixteen times the work, give or take a partial unit
+            final double ratio = (double) largeSteps / smallSteps;
+            final double lengthRatio = (double) large.length() / small.length();
+            assertTrue("'" + unit + "' steps grew " + ratio + "x for " + lengthRatio
+                    + "x the input", ratio < lengthRatio * 1.1);
+        }
+    }
+
+    @MediumTest
+    public void testManyMatches() {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            input.append("<img src=\"http://x/").append(i).append("\">");
+            expected.append("<img src='data:' blocked-src=\"http://x/").append(i).append("\">");
+        }
+        assertEquals(expected.toString(), ImgSrcScanner.blockAbsoluteImgUrls(input.toString()));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mail.common.base;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CharEscapersTest extends TestCase {
+    private static String repeat(String s, int times) {
+        final StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    public void testCleanInputIsNotCopied() {
+        final String clean = "Re: lunch on Friday? \u4e2d\u6587";
+        assertSame(clean, CharEscapers.asciiHtmlEscaper().escape(clean));
+        assertSame(clean, CharEscapers.xmlEscaper().escape(clean));
+        final String ascii = "Re: lunch on Friday?";
+        assertSame(ascii, CharEscapers.htmlEscaper().escape(ascii));
+        assertSame(ascii, CharEscapers.javascriptEscaper().escape(ascii));
+        final String uri = "lunch-on-Friday.";
+        assertSame(uri, CharEscapers.uriEscaper().escape(uri));
+    }
+
+    public void testLightlyEscaped() {
+        assertEquals("Tom &amp; Jerry &lt;tom@example.com&gt;",
+                CharEscapers.asciiHtmlEscaper().escape("Tom & Jerry <tom@example.com>"));
+        assertEquals("it\\x27s \\x22quoted\\x22\\n",
+                CharEscapers.javascriptEscaper().escape("it's \"quoted\"\n"));
+        assertEquals("a&spades;b&#20013;", CharEscapers.htmlEscaper().escape("a\u2660b\u4e2d"));
+        assertEquals("ab", CharEscapers.xmlContentEscaper().escape("a\u0001b"));
+    }
+
+    public void testHeavilyEscaped() {
+        assertEquals(repeat("&lt;&gt;&amp;&quot;", 1000),
+                CharEscapers.asciiHtmlEscaper().escape(repeat("<>&\"", 1000)));
+        assertEquals(repeat("\\u4e2d", 1000),
+                CharEscapers.javascriptEscaper().escape(repeat("\u4e2d", 1000)));
+    }
+
+    public void testLongInput() {
+        // Longer than the thread-local buffer, with escapes at both ends
+        final String body = repeat("plain text ", 500);
+        assertEquals("&lt;" + body + "&gt;",
+                CharEscapers.asciiHtmlEscaper().escape("<" + body + ">"));
+        assertEquals(body + "\\x26", CharEscapers.javascriptEscaper().escape(body + "&"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mail.common.base;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class CharMatcherTest extends TestCase {
+    /** Mixes ASCII, CJK, and whitespace and control characters from both ranges. */
+    private static final String ALPHABET = " \t\nab\u4e2d\u6587\u200b\u3000xyz\u0000\uffff";
+
+    private static final CharMatcher[] MATCHERS = {
+        CharMatcher.anyOf(" \n\r\t\f"),          // ASCII only
+        CharMatcher.anyOf(" \t\f\u200b\r\n"),    // ASCII and beyond
+        CharMatcher.anyOf("ab\u4e2d"),
+        CharMatcher.inRange('a', 'z').negate(),  // matches everything above ASCII
+        CharMatcher.WHITESPACE,
+    };
+
+    public void testMatchesEveryChar() {
+        for (CharMatcher m : MATCHERS) {
+            final CharMatcher[] precomputed = {
+                m.precomputed(), m.precomputed().negate().negate(),
+                m.negate().precomputed().negate(),
+            };
+            for (CharMatcher p : precomputed) {
+                for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+                    assertEquals("char " + c, m.matches((char) c), p.matches((char) c));
+                }
+            }
+        }
+    }
+
+    public void testTextRoutines() {
+        final Random random = new Random(39);
+        final StringBuilder sb = new StringBuilder();
+        for (CharMatcher m : MATCHERS) {
+            final CharMatcher p = m.precomputed();
+            for (int n = 0; n < 2000; n++) {
+                sb.setLength(0);
+                final int length = random.nextInt(12);
+                for (int k = 0; k < length; k++) {
+                    sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                }
+                final String s = sb.toString();
+                final int start = random.nextInt(length + 1);
+                assertEquals(s, m.matchesAllOf(s), p.matchesAllOf(s));
+                assertEquals(s, m.indexIn(s), p.indexIn(s));
+                assertEquals(s, m.indexIn(s, start), p.indexIn(s, start));
+                assertEquals(s, m.lastIndexIn(s), p.lastIndexIn(s));
+                assertEquals(s, m.countIn(s), p.countIn(s));
+                assertEquals(s, m.removeFrom(s), p.removeFrom(s));
+                assertEquals(s, m.replaceFrom(s, '_'), p.replaceFrom(s, '_'));
+                assertEquals(s, m.trimFrom(s), p.trimFrom(s));
+                assertEquals(s, m.trimLeadingFrom(s), p.trimLeadingFrom(s));
+                assertEquals(s, m.trimTrailingFrom(s), p.trimTrailingFrom(s));
+                assertEquals(s, m.collapseFrom(s, '-'), p.collapseFrom(s, '-'));
+                assertEquals(s, m.trimAndCollapseFrom(s, '-'), p.trimAndCollapseFrom(s, '-'));
+            }
+        }
+    }
+
+    public void testPrecomputedIsIdempotent() {
+        final CharMatcher p = CharMatcher.anyOf("abc").precomputed();
+        assertSame(p, p.precomputed());
+    }
+}